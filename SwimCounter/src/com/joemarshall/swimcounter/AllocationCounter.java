@@ -0,0 +1,57 @@
+package com.joemarshall.swimcounter;
+
+import java.lang.reflect.Method;
+
+// bytes allocated so far by the current thread, where the JVM can tell us
+// (hotspot's com.sun.management.ThreadMXBean). Looked up by reflection because
+// java.lang.management doesn't exist on android; there it just reports -1
+public class AllocationCounter
+{
+	private Object m_Bean = null;
+	private Method m_AllocatedBytes = null;
+
+	public AllocationCounter()
+	{
+		try
+		{
+			Class<?> factory = Class
+					.forName("java.lang.management.ManagementFactory");
+			Object bean = factory.getMethod("getThreadMXBean").invoke(null);
+			Class<?> beanClass = Class
+					.forName("com.sun.management.ThreadMXBean");
+			if (beanClass.isInstance(bean))
+			{
+				Method method = beanClass.getMethod("getThreadAllocatedBytes",
+						long.class);
+				method.invoke(bean, Thread.currentThread().getId());
+				m_Bean = bean;
+				m_AllocatedBytes = method;
+			}
+		} catch (Exception e)
+		{
+			// not available on this VM
+		}
+	}
+
+	public boolean isSupported()
+	{
+		return m_AllocatedBytes != null;
+	}
+
+	// bytes allocated by this thread, or -1 if unknown
+	public long allocatedBytes()
+	{
+		if (m_AllocatedBytes == null)
+		{
+			return -1;
+		}
+		try
+		{
+			return ((Long) m_AllocatedBytes.invoke(m_Bean, Thread
+					.currentThread().getId())).longValue();
+		} catch (Exception e)
+		{
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package com.joemarshall.swimcounter;
+
+// gravity estimate that follows turns properly
+//
+// between accelerometer samples the estimate is rotated by the gyroscope
+// rate, then it is pulled towards the accelerometer with a weight worked out
+// from the real time between samples, so it behaves the same whatever rate
+// the sensors run at. With a gyroscope the accelerometer is only needed to
+// stop drift, so it is trusted much less and swimming accelerations barely
+// disturb the estimate. Without one it is a time-constant low pass.
+//
+// The estimate starts at the first accelerometer sample rather than at zero,
+// so it is usable after a few samples instead of a few dozen.
+public class ComplementaryGravityFilter implements GravityFilter
+{
+	// seconds
+	private static final float TIME_CONSTANT_GYRO = 1.0f;
+	private static final float TIME_CONSTANT_NO_GYRO = 0.2f;
+	// longest gap between samples we integrate over (seconds), anything
+	// longer is treated as a restart of the sensors
+	private static final float MAX_DT = 0.5f;
+	// gyro readings older than this (ns) aren't used
+	private static final long GYRO_TIMEOUT = 100000000L;
+	private static final int SAMPLES_BEFORE_STABLE = 3;
+
+	private float[] m_Gravity = new float[3];
+	private int m_Samples = 0;
+	private long m_LastAccelTimestamp = 0;
+
+	private long m_LastGyroTimestamp = 0;
+	private boolean m_HasGyro = false;
+
+	@Override
+	public boolean onAccelerometer(long timestamp, float x, float y, float z)
+	{
+		float dt = (timestamp - m_LastAccelTimestamp) / 1000000000.0f;
+		m_LastAccelTimestamp = timestamp;
+		if (m_Samples == 0 || dt < 0 || dt > MAX_DT)
+		{
+			m_Gravity[0] = x;
+			m_Gravity[1] = y;
+			m_Gravity[2] = z;
+			m_Samples = 1;
+			return false;
+		}
+		boolean gyroRecent = m_HasGyro
+				&& timestamp - m_LastGyroTimestamp < GYRO_TIMEOUT;
+		float tau = gyroRecent ? TIME_CONSTANT_GYRO : TIME_CONSTANT_NO_GYRO;
+		float k = dt / (tau + dt);
+		m_Gravity[0] += k * (x - m_Gravity[0]);
+		m_Gravity[1] += k * (y - m_Gravity[1]);
+		m_Gravity[2] += k * (z - m_Gravity[2]);
+		if (m_Samples < SAMPLES_BEFORE_STABLE)
+		{
+			m_Samples++;
+		}
+		return m_Samples >= SAMPLES_BEFORE_STABLE;
+	}
+
+	@Override
+	public void onGyroscope(long timestamp, float x, float y, float z)
+	{
+		float dt = (timestamp - m_LastGyroTimestamp) / 1000000000.0f;
+		m_LastGyroTimestamp = timestamp;
+		if (!m_HasGyro || m_Samples == 0 || dt <= 0 || dt > MAX_DT)
+		{
+			m_HasGyro = true;
+			return;
+		}
+		// seen from the device, gravity turns the opposite way to the
+		// device: dg/dt = g x w
+		float gx = m_Gravity[0];
+		float gy = m_Gravity[1];
+		float gz = m_Gravity[2];
+		float nx = gx + dt * (gy * z - gz * y);
+		float ny = gy + dt * (gz * x - gx * z);
+		float nz = gz + dt * (gx * y - gy * x);
+		// keep the length, the small step above stretches it slightly
+		float before = gx * gx + gy * gy + gz * gz;
+		float after = nx * nx + ny * ny + nz * nz;
+		float scale = after > 0 ? (float) Math.sqrt(before / after) : 1;
+		m_Gravity[0] = nx * scale;
+		m_Gravity[1] = ny * scale;
+		m_Gravity[2] = nz * scale;
+	}
+
+	@Override
+	public float[] getGravity()
+	{
+		return m_Gravity;
+	}
+
+	@Override
+	public void reset()
+	{
+		m_Gravity[0] = m_Gravity[1] = m_Gravity[2] = 0;
+		m_Samples = 0;
+		m_HasGyro = false;
+	}
+}
@@ -0,0 +1,301 @@
+package com.joemarshall.swimcounter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// reads a recorded sensor log in csv form, one sample per line:
+//
+//   type,timestamp,v0,v1,v2[,...]
+//
+// type is the android sensor type (or LiveCounterActivity.PREPROCESSED_ORIENTATION),
+// timestamp is the sensor event time in nanoseconds. Extra value columns are ignored,
+// missing ones are 0. Blank lines, lines starting with '#' and lines that don't
+// start with a number (e.g. a header) are skipped.
+//
+// The file is pulled through a fixed size buffer a chunk at a time and the numbers
+// are parsed straight out of the bytes, so there is no per line allocation and
+// the size of the recording doesn't matter
+public class CsvSensorReader
+{
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4,
+			1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16,
+			1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	private FileInputStream m_Stream;
+	private FileChannel m_Channel;
+	private ByteBuffer m_Buffer = ByteBuffer.allocate(BUFFER_SIZE);
+	private byte[] m_Bytes = m_Buffer.array();
+
+	// parse position and error flag for the line being parsed
+	private int m_Pos;
+	private int m_End;
+	private boolean m_Error;
+	// set when a line is longer than the buffer, so we drop everything up to
+	// the next newline
+	private boolean m_SkipToNewline = false;
+
+	public long samplesRead = 0;
+	public long linesSkipped = 0;
+
+	public CsvSensorReader(File file) throws IOException
+	{
+		m_Stream = new FileInputStream(file);
+		m_Channel = m_Stream.getChannel();
+	}
+
+	// length of the file in bytes, for progress reporting
+	public long size() throws IOException
+	{
+		return m_Channel.size();
+	}
+
+	// read everything, returns the number of samples sent to sink
+	public long readAll(SensorSampleSink sink) throws IOException
+	{
+		while (readChunk(sink))
+		{
+		}
+		return samplesRead;
+	}
+
+	// read one buffer full and send every complete line in it to sink
+	// returns false once the end of the file has been reached
+	public boolean readChunk(SensorSampleSink sink) throws IOException
+	{
+		int read = m_Channel.read(m_Buffer);
+		if (read < 0)
+		{
+			// last line may not have a newline on the end
+			int end = m_Buffer.position();
+			if (end > 0 && !m_SkipToNewline)
+			{
+				parseLine(0, end, sink);
+			}
+			m_Buffer.clear();
+			return false;
+		}
+		int end = m_Buffer.position();
+		int lineStart = 0;
+		byte[] bytes = m_Bytes;
+		for (int c = 0; c < end; c++)
+		{
+			if (bytes[c] == '\n')
+			{
+				if (m_SkipToNewline)
+				{
+					m_SkipToNewline = false;
+				} else
+				{
+					parseLine(lineStart, c, sink);
+				}
+				lineStart = c + 1;
+			}
+		}
+		if (lineStart == 0 && end == BUFFER_SIZE)
+		{
+			// a whole buffer with no newline, this can't be a sample
+			if (!m_SkipToNewline)
+			{
+				linesSkipped += 1;
+			}
+			m_SkipToNewline = true;
+			m_Buffer.clear();
+			return true;
+		}
+		// keep the partial line at the end for the next read
+		m_Buffer.limit(end);
+		m_Buffer.position(lineStart);
+		m_Buffer.compact();
+		return true;
+	}
+
+	public void close() throws IOException
+	{
+		m_Channel.close();
+		m_Stream.close();
+	}
+
+	private void parseLine(int start, int end, SensorSampleSink sink)
+	{
+		byte[] bytes = m_Bytes;
+		if (end > start && bytes[end - 1] == '\r')
+		{
+			end -= 1;
+		}
+		if (end == start || bytes[start] == '#')
+		{
+			return;
+		}
+		m_Pos = start;
+		m_End = end;
+		m_Error = false;
+
+		int type = (int) parseLong();
+		if (m_Error)
+		{
+			// header or junk
+			linesSkipped += 1;
+			return;
+		}
+		nextField();
+		long timestamp = parseLong();
+		float x = 0f, y = 0f, z = 0f;
+		if (nextField())
+		{
+			x = parseFloat();
+			if (nextField())
+			{
+				y = parseFloat();
+				if (nextField())
+				{
+					z = parseFloat();
+				}
+			}
+		}
+		if (m_Error)
+		{
+			linesSkipped += 1;
+			return;
+		}
+		samplesRead += 1;
+		sink.onSample(type, x, y, z, timestamp);
+	}
+
+	// move past the comma at the current position, returns false at end of line
+	private boolean nextField()
+	{
+		while (m_Pos < m_End && m_Bytes[m_Pos] == ' ')
+		{
+			m_Pos++;
+		}
+		if (m_Pos < m_End && m_Bytes[m_Pos] == ',')
+		{
+			m_Pos++;
+			while (m_Pos < m_End && m_Bytes[m_Pos] == ' ')
+			{
+				m_Pos++;
+			}
+			return true;
+		}
+		if (m_Pos < m_End)
+		{
+			m_Error = true;
+		}
+		return false;
+	}
+
+	private long parseLong()
+	{
+		byte[] bytes = m_Bytes;
+		boolean negative = false;
+		if (m_Pos < m_End && (bytes[m_Pos] == '-' || bytes[m_Pos] == '+'))
+		{
+			negative = bytes[m_Pos] == '-';
+			m_Pos++;
+		}
+		int digitsStart = m_Pos;
+		long value = 0;
+		while (m_Pos < m_End)
+		{
+			int d = bytes[m_Pos] - '0';
+			if (d < 0 || d > 9)
+			{
+				break;
+			}
+			value = value * 10 + d;
+			m_Pos++;
+		}
+		if (m_Pos == digitsStart)
+		{
+			m_Error = true;
+		}
+		return negative ? -value : value;
+	}
+
+	private float parseFloat()
+	{
+		byte[] bytes = m_Bytes;
+		boolean negative = false;
+		if (m_Pos < m_End && (bytes[m_Pos] == '-' || bytes[m_Pos] == '+'))
+		{
+			negative = bytes[m_Pos] == '-';
+			m_Pos++;
+		}
+		// up to 18 significant digits fit in a long, anything past that
+		// just moves the exponent
+		long mantissa = 0;
+		int significant = 0;
+		int exponent = 0;
+		boolean anyDigits = false;
+		while (m_Pos < m_End)
+		{
+			int d = bytes[m_Pos] - '0';
+			if (d < 0 || d > 9)
+			{
+				break;
+			}
+			anyDigits = true;
+			if (significant < 18)
+			{
+				mantissa = mantissa * 10 + d;
+				if (mantissa != 0)
+				{
+					significant++;
+				}
+			} else
+			{
+				exponent++;
+			}
+			m_Pos++;
+		}
+		if (m_Pos < m_End && bytes[m_Pos] == '.')
+		{
+			m_Pos++;
+			while (m_Pos < m_End)
+			{
+				int d = bytes[m_Pos] - '0';
+				if (d < 0 || d > 9)
+				{
+					break;
+				}
+				anyDigits = true;
+				if (significant < 18)
+				{
+					mantissa = mantissa * 10 + d;
+					if (mantissa != 0)
+					{
+						significant++;
+					}
+					exponent--;
+				}
+				m_Pos++;
+			}
+		}
+		if (!anyDigits)
+		{
+			m_Error = true;
+			return 0f;
+		}
+		if (m_Pos < m_End && (bytes[m_Pos] == 'e' || bytes[m_Pos] == 'E'))
+		{
+			m_Pos++;
+			exponent += (int) parseLong();
+		}
+		double value = mantissa;
+		if (exponent < 0)
+		{
+			value = exponent >= -22 ? value / POWERS_OF_TEN[-exponent] : value
+					* Math.pow(10.0, exponent);
+		} else if (exponent > 0)
+		{
+			value = exponent <= 22 ? value * POWERS_OF_TEN[exponent] : value
+					* Math.pow(10.0, exponent);
+		}
+		return (float) (negative ? -value : value);
+	}
+}
@@ -0,0 +1,220 @@
+package com.joemarshall.swimcounter;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.webkit.WebView;
+
+// batches up calls into the javascript display, so that the WebView gets at
+// most one loadUrl per frame however many events come in
+//
+// intermediate times and data only keep the latest values, finished lengths
+// are all kept (in order). Everything is formatted into reused StringBuilders
+// so the only garbage is the url string for each frame.
+//
+// Can be called from any thread, the WebView is only touched on the UI thread
+//
+// sampleTimestamp on each call is the sensor timestamp of the newest sample
+// behind the values, for the latency tracer
+public class DisplayBridge implements Runnable
+{
+	static final long FRAME_TIME_MS = 16;
+
+	private WebView m_WebView;
+	private Handler m_Handler = new Handler(Looper.getMainLooper());
+	private String m_CallbackName = null;
+
+	// pending onIntermediateTimes
+	private boolean m_HaveTimes = false;
+	private long m_TimesTotal, m_TimesSwim, m_TimesInLength;
+	private int m_TimesLengths;
+
+	// pending onIntermediateData
+	private boolean m_HaveData = false;
+	private long m_DataTotal, m_DataSwim, m_DataInLength;
+	private int m_DataLengths, m_DataStrokes;
+	private String m_DataStroke;
+
+	// pending onLengthDone calls, already formatted
+	private StringBuilder m_Lengths = new StringBuilder(512);
+
+	private StringBuilder m_Frame = new StringBuilder(1024);
+	private boolean m_Scheduled = false;
+	private long m_LastFrameTime = 0;
+	// told when each kind of call is handed over and when it actually goes
+	// to the WebView (both under our lock, so it sees exactly what is
+	// pending), null for off
+	private LatencyTracer m_Tracer = null;
+
+	public DisplayBridge(WebView view)
+	{
+		m_WebView = view;
+	}
+
+	public synchronized void setTracer(LatencyTracer tracer)
+	{
+		m_Tracer = tracer;
+	}
+
+	public synchronized void setCallbackName(String name)
+	{
+		m_CallbackName = name;
+	}
+
+	// true once the page has told us who to call
+	public synchronized boolean isReady()
+	{
+		return m_CallbackName != null;
+	}
+
+	public synchronized void intermediateTimes(long totalTime, long swimTime,
+			int lengths, long timeInLength, long sampleTimestamp)
+	{
+		m_HaveTimes = true;
+		m_TimesTotal = totalTime;
+		m_TimesSwim = swimTime;
+		m_TimesLengths = lengths;
+		m_TimesInLength = timeInLength;
+		if (m_Tracer != null)
+		{
+			m_Tracer.handoff(LatencyTracer.PATH_INTERMEDIATE_TIMES,
+					sampleTimestamp);
+		}
+		schedule();
+	}
+
+	public synchronized void intermediateData(long totalTime, long swimTime,
+			int lengths, long timeInLength, int strokes, String stroke,
+			long sampleTimestamp)
+	{
+		m_HaveData = true;
+		m_DataTotal = totalTime;
+		m_DataSwim = swimTime;
+		m_DataLengths = lengths;
+		m_DataInLength = timeInLength;
+		m_DataStrokes = strokes;
+		m_DataStroke = stroke;
+		if (m_Tracer != null)
+		{
+			m_Tracer.handoff(LatencyTracer.PATH_INTERMEDIATE_DATA,
+					sampleTimestamp);
+		}
+		schedule();
+	}
+
+	public synchronized void lengthDone(long totalTime, long swimTime,
+			int lengths, long lengthTime, int strokes, String stroke,
+			String turn, long sampleTimestamp)
+	{
+		if (m_CallbackName == null)
+		{
+			return;
+		}
+		// anything intermediate from before this length finished is out of date
+		m_HaveTimes = false;
+		m_HaveData = false;
+		StringBuilder sb = m_Lengths;
+		sb.append(m_CallbackName).append(".onLengthDone(");
+		appendSeconds(sb, totalTime).append(',');
+		appendSeconds(sb, swimTime).append(',');
+		sb.append(lengths).append(',');
+		appendSeconds(sb, lengthTime).append(',');
+		sb.append(strokes).append(",\"").append(stroke).append("\",\"")
+				.append(turn).append("\");");
+		if (m_Tracer != null)
+		{
+			m_Tracer.handoff(LatencyTracer.PATH_LENGTH_DONE, sampleTimestamp);
+		}
+		schedule();
+	}
+
+	private void schedule()
+	{
+		if (!m_Scheduled && m_CallbackName != null)
+		{
+			m_Scheduled = true;
+			long wait = m_LastFrameTime + FRAME_TIME_MS
+					- SystemClock.uptimeMillis();
+			m_Handler.postDelayed(this, wait > 0 ? wait : 0);
+		}
+	}
+
+	// send everything pending as one url, on the UI thread
+	@Override
+	public void run()
+	{
+		String url;
+		synchronized (this)
+		{
+			boolean sentLengths = m_Lengths.length() > 0;
+			boolean sentData = m_HaveData;
+			boolean sentTimes = m_HaveTimes;
+			m_Scheduled = false;
+			m_LastFrameTime = SystemClock.uptimeMillis();
+			StringBuilder sb = m_Frame;
+			sb.setLength(0);
+			sb.append("javascript:");
+			sb.append(m_Lengths);
+			m_Lengths.setLength(0);
+			if (m_HaveData)
+			{
+				sb.append(m_CallbackName).append(".onIntermediateData(");
+				appendSeconds(sb, m_DataTotal).append(',');
+				appendSeconds(sb, m_DataSwim).append(',');
+				sb.append(m_DataLengths).append(',');
+				appendSeconds(sb, m_DataInLength).append(',');
+				sb.append(m_DataStrokes).append(",\"").append(m_DataStroke)
+						.append("\");");
+				m_HaveData = false;
+			}
+			if (m_HaveTimes)
+			{
+				sb.append(m_CallbackName).append(".onIntermediateTimes(");
+				appendSeconds(sb, m_TimesTotal).append(',');
+				appendSeconds(sb, m_TimesSwim).append(',');
+				sb.append(m_TimesLengths).append(',');
+				appendSeconds(sb, m_TimesInLength).append(");");
+				m_HaveTimes = false;
+			}
+			if (sb.length() == "javascript:".length())
+			{
+				return;
+			}
+			url = sb.toString();
+			if (m_Tracer != null)
+			{
+				if (sentLengths)
+				{
+					m_Tracer.shown(LatencyTracer.PATH_LENGTH_DONE);
+				}
+				if (sentData)
+				{
+					m_Tracer.shown(LatencyTracer.PATH_INTERMEDIATE_DATA);
+				}
+				if (sentTimes)
+				{
+					m_Tracer.shown(LatencyTracer.PATH_INTERMEDIATE_TIMES);
+				}
+			}
+		}
+		m_WebView.loadUrl(url);
+	}
+
+	// nanoseconds as seconds to 6 decimal places (same as %f)
+	static StringBuilder appendSeconds(StringBuilder sb, long nanos)
+	{
+		if (nanos < 0)
+		{
+			sb.append('-');
+			nanos = -nanos;
+		}
+		long micros = (nanos + 500) / 1000;
+		sb.append(micros / 1000000).append('.');
+		long fraction = micros % 1000000;
+		for (long digit = 100000; digit > fraction && digit > 1; digit /= 10)
+		{
+			sb.append('0');
+		}
+		return sb.append(fraction);
+	}
+}
@@ -0,0 +1,287 @@
+package com.joemarshall.swimcounter;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import com.joemarshall.swimcounter.SwimMetricExtractor.EventType;
+
+// diagnostics log for the extractor that is cheap enough to leave in the
+// sensor path
+//
+// callers check the level first (isLoggable), so nothing gets built when a
+// level is off. Records are stored as primitives (plus references to constant
+// strings) in a lock-free ring buffer, and a background thread turns them into
+// text and writes them to the Output (logcat). If the ring fills up, new
+// records are dropped and counted rather than blocking the sensor thread, and
+// records the Output fails to write are counted and skipped.
+public class EventLog implements Runnable
+{
+	// same numbering as android.util.Log
+	public static final int VERBOSE = 2;
+	public static final int DEBUG = 3;
+	public static final int INFO = 4;
+	public static final int WARN = 5;
+	public static final int ERROR = 6;
+	public static final int NONE = 100;
+
+	interface Output
+	{
+		public void write(int level, String tag, String message)
+				throws IOException;
+
+		public void flush() throws IOException;
+
+		public void close() throws IOException;
+	}
+
+	// writes to logcat
+	static class LogcatOutput implements Output
+	{
+		public void write(int level, String tag, String message)
+		{
+			android.util.Log.println(level, tag, message);
+		}
+
+		public void flush()
+		{
+		}
+
+		public void close()
+		{
+		}
+	}
+
+	static final int KIND_TEXT = 0;
+	static final int KIND_EVENT = 1;
+
+	private static final EventType[] EVENT_TYPES = EventType.values();
+	private static final long DRAIN_INTERVAL_NS = 50000000L;
+
+	private volatile int m_Level;
+	private Output m_Output;
+
+	// ring buffer, one column per field
+	private int m_Mask;
+	private byte[] m_RecordLevels;
+	private byte[] m_Kinds;
+	private int[] m_Ints;
+	private String[] m_Tags;
+	private String[] m_Messages;
+	// slot c is ready to read when m_Published[c] == sequence number + 1
+	private AtomicLongArray m_Published;
+	private AtomicLong m_Head = new AtomicLong(0);
+	private volatile long m_Tail = 0;
+	private AtomicLong m_Dropped = new AtomicLong(0);
+	// records the output threw on, only written by the drain thread
+	private volatile long m_Failed = 0;
+
+	private volatile boolean m_Running = false;
+	private Thread m_Thread;
+	private StringBuilder m_Text = new StringBuilder(128);
+
+	// capacity must be a power of two
+	public EventLog(Output output, int level, int capacity)
+	{
+		m_Output = output;
+		m_Level = level;
+		m_Mask = capacity - 1;
+		m_RecordLevels = new byte[capacity];
+		m_Kinds = new byte[capacity];
+		m_Ints = new int[capacity * 2];
+		m_Tags = new String[capacity];
+		m_Messages = new String[capacity];
+		m_Published = new AtomicLongArray(capacity);
+	}
+
+	public boolean isLoggable(int level)
+	{
+		return level >= m_Level;
+	}
+
+	public void setLevel(int level)
+	{
+		m_Level = level;
+	}
+
+	public long getDropped()
+	{
+		return m_Dropped.get();
+	}
+
+	public long getFailed()
+	{
+		return m_Failed;
+	}
+
+	// a message, tag and message should be constants (or at least not built
+	// specially for this call, otherwise check isLoggable first)
+	public void text(int level, String tag, String message)
+	{
+		if (level < m_Level)
+		{
+			return;
+		}
+		long seq = claim();
+		if (seq < 0)
+		{
+			return;
+		}
+		int slot = (int) seq & m_Mask;
+		m_Kinds[slot] = KIND_TEXT;
+		m_Tags[slot] = tag;
+		m_Messages[slot] = message;
+		publish(seq, slot, level);
+	}
+
+	// an extractor event
+	public void event(int level, EventType type, int value)
+	{
+		if (level < m_Level)
+		{
+			return;
+		}
+		long seq = claim();
+		if (seq < 0)
+		{
+			return;
+		}
+		int slot = (int) seq & m_Mask;
+		m_Kinds[slot] = KIND_EVENT;
+		m_Ints[slot * 2] = type.ordinal();
+		m_Ints[slot * 2 + 1] = value;
+		publish(seq, slot, level);
+	}
+
+	// get the next sequence number to write, or -1 if the ring is full
+	private long claim()
+	{
+		while (true)
+		{
+			long seq = m_Head.get();
+			if (seq - m_Tail > m_Mask)
+			{
+				m_Dropped.incrementAndGet();
+				return -1;
+			}
+			if (m_Head.compareAndSet(seq, seq + 1))
+			{
+				return seq;
+			}
+		}
+	}
+
+	private void publish(long seq, int slot, int level)
+	{
+		m_RecordLevels[slot] = (byte) level;
+		m_Published.lazySet(slot, seq + 1);
+	}
+
+	public void start()
+	{
+		m_Running = true;
+		m_Thread = new Thread(this, "EventLog");
+		m_Thread.setDaemon(true);
+		m_Thread.start();
+	}
+
+	// stop the drain thread, write out anything left and close the output
+	public void close()
+	{
+		m_Running = false;
+		if (m_Thread != null)
+		{
+			LockSupport.unpark(m_Thread);
+			try
+			{
+				m_Thread.join();
+			} catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			m_Thread = null;
+		}
+		drain();
+		try
+		{
+			m_Output.close();
+		} catch (IOException e)
+		{
+		}
+	}
+
+	@Override
+	public void run()
+	{
+		while (m_Running)
+		{
+			if (drain() == 0)
+			{
+				LockSupport.parkNanos(DRAIN_INTERVAL_NS);
+			}
+		}
+	}
+
+	// write out everything published so far, only ever called by one thread
+	// at a time, returns number of records written
+	int drain()
+	{
+		int written = 0;
+		long tail = m_Tail;
+		while (m_Published.get((int) tail & m_Mask) == tail + 1)
+		{
+			int slot = (int) tail & m_Mask;
+			try
+			{
+				write(slot);
+			} catch (IOException e)
+			{
+				// nowhere to report it, skip it so the ring doesn't back up
+				m_Failed = m_Failed + 1;
+			}
+			// let go of strings so they can be collected
+			m_Tags[slot] = null;
+			m_Messages[slot] = null;
+			tail++;
+			m_Tail = tail;
+			written++;
+		}
+		if (written > 0)
+		{
+			try
+			{
+				long dropped = m_Dropped.getAndSet(0);
+				if (dropped > 0)
+				{
+					m_Output.write(WARN, "log", "dropped " + dropped);
+				}
+				m_Output.flush();
+			} catch (IOException e)
+			{
+			}
+		}
+		return written;
+	}
+
+	private void write(int slot) throws IOException
+	{
+		StringBuilder sb = m_Text;
+		sb.setLength(0);
+		String tag;
+		switch (m_Kinds[slot])
+		{
+		case KIND_EVENT:
+			// type:value, the format anything reading logcat already expects
+			tag = "evt";
+			sb.append(EVENT_TYPES[m_Ints[slot * 2]]).append(':')
+					.append(m_Ints[slot * 2 + 1]);
+			break;
+		default:
+			tag = m_Tags[slot];
+			sb.append(m_Messages[slot]);
+			break;
+		}
+		m_Output.write(m_RecordLevels[slot], tag, sb.toString());
+	}
+}
@@ -0,0 +1,250 @@
+package com.joemarshall.swimcounter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Locale;
+
+import android.hardware.Sensor;
+
+import com.joemarshall.swimcounter.SwimMetricExtractor.EventPoint;
+import com.joemarshall.swimcounter.SwimMetricExtractor.LengthStatistics;
+
+// microbenchmarks for the per sample cost of SwimMetricExtractor
+//
+// Each scenario gets the extractor into a swim phase with an untimed prefix,
+// then times feeding it one input path (orientation, linear acceleration, raw
+// accelerometer or a mix) for that phase. The detector/ scenarios time the
+// thrust and tap detectors on their own. Reports ns and bytes allocated per
+// sample.
+//
+// usage: java com.joemarshall.swimcounter.ExtractorBenchmark [-filter text]
+//            [-time seconds] [recording.csv ...]
+// recordings given on the command line are benchmarked as they are
+public class ExtractorBenchmark implements SwimMetricExtractor.Callback
+{
+	static class Scenario
+	{
+		String name;
+		SensorTrace prefix;
+		SensorTrace measured;
+		// if not DETECTOR_NONE, time just that detector on the measured
+		// acceleration instead of the whole extractor
+		int detector = DETECTOR_NONE;
+
+		Scenario(String name, SensorTrace prefix, SensorTrace measured)
+		{
+			this.name = name;
+			this.prefix = prefix;
+			this.measured = measured;
+		}
+	}
+
+	static final int DETECTOR_NONE = 0;
+	static final int DETECTOR_PEAK = 1;
+	static final int DETECTOR_TAP = 2;
+
+	static final String[] PHASES = { "standing", "crawl", "breaststroke",
+			"turns" };
+	static final String[] PATHS = { "mixed", "orientation", "linear",
+			"global" };
+
+	// sink for callback output so the JIT can't throw the work away
+	long m_Blackhole = 0;
+	double m_MeasureSeconds = 1.0;
+	AllocationCounter m_Allocations = new AllocationCounter();
+
+	static ArrayList<Scenario> syntheticScenarios()
+	{
+		ArrayList<Scenario> scenarios = new ArrayList<Scenario>();
+		for (String phase : PHASES)
+		{
+			for (String path : PATHS)
+			{
+				int accelType = path.equals("global") ? Sensor.TYPE_ACCELEROMETER
+						: Sensor.TYPE_LINEAR_ACCELERATION;
+				SensorTrace prefix = new SensorTrace();
+				SensorTrace measured = new SensorTrace();
+				SyntheticTrace gen = new SyntheticTrace(prefix, 100.0,
+						accelType);
+				gen.standing(2.0, 0.3f);
+				if (phase.equals("crawl") || phase.equals("turns"))
+				{
+					gen.crawl(10.0, 0.3f);
+				} else if (phase.equals("breaststroke"))
+				{
+					gen.breaststroke(10.0, 0.3f);
+				}
+				gen.setTarget(measured);
+				gen.emitOrientation = path.equals("mixed")
+						|| path.equals("orientation");
+				gen.emitAcceleration = !path.equals("orientation");
+				if (phase.equals("standing"))
+				{
+					gen.standing(60.0, 0.3f);
+				} else if (phase.equals("crawl"))
+				{
+					gen.crawl(60.0, 0.3f);
+				} else if (phase.equals("breaststroke"))
+				{
+					gen.breaststroke(60.0, 0.3f);
+				} else
+				{
+					float yaw = 0.3f;
+					for (int c = 0; c < 4; c++)
+					{
+						gen.turn(yaw, yaw + (float) Math.PI, (c & 1) == 0);
+						yaw = (c & 1) == 0 ? 0.3f - (float) Math.PI : 0.3f;
+						gen.crawl(15.0, yaw);
+					}
+				}
+				scenarios.add(new Scenario(phase + "/" + path, prefix,
+						measured));
+			}
+		}
+		// the thrust and tap detectors on their own, over breaststroke
+		for (int detector = DETECTOR_PEAK; detector <= DETECTOR_TAP; detector++)
+		{
+			SensorTrace measured = new SensorTrace();
+			SyntheticTrace gen = new SyntheticTrace(measured, 100.0,
+					Sensor.TYPE_LINEAR_ACCELERATION);
+			gen.emitOrientation = false;
+			gen.breaststroke(60.0, 0.3f);
+			Scenario scenario = new Scenario(
+					detector == DETECTOR_PEAK ? "detector/peak"
+							: "detector/tap", new SensorTrace(1), measured);
+			scenario.detector = detector;
+			scenarios.add(scenario);
+		}
+		return scenarios;
+	}
+
+	// time repeated runs of one scenario, returns {ns per sample, bytes per sample}
+	double[] run(Scenario scenario)
+	{
+		// warm up
+		measure(scenario, m_MeasureSeconds * 0.5);
+		return measure(scenario, m_MeasureSeconds);
+	}
+
+	private double[] measure(Scenario scenario, double seconds)
+	{
+		long samples = 0;
+		long nanos = 0;
+		long bytes = 0;
+		long budget = (long) (seconds * 1000000000.0);
+		while (nanos < budget && scenario.detector != DETECTOR_NONE)
+		{
+			long allocStart = m_Allocations.allocatedBytes();
+			long start = System.nanoTime();
+			runDetector(scenario);
+			nanos += System.nanoTime() - start;
+			bytes += m_Allocations.allocatedBytes() - allocStart;
+			samples += scenario.measured.count;
+		}
+		while (nanos < budget)
+		{
+			SwimMetricExtractor extractor = new SwimMetricExtractor(this);
+			SensorRouter router = new SensorRouter(extractor);
+			scenario.prefix.replay(router);
+
+			long allocStart = m_Allocations.allocatedBytes();
+			long start = System.nanoTime();
+			scenario.measured.replay(router);
+			nanos += System.nanoTime() - start;
+			bytes += m_Allocations.allocatedBytes() - allocStart;
+			samples += scenario.measured.count;
+			m_Blackhole += extractor.getState().count;
+		}
+		double bytesPerSample = m_Allocations.isSupported() ? (double) bytes
+				/ samples : Double.NaN;
+		return new double[] { (double) nanos / samples, bytesPerSample };
+	}
+
+	// the same calls the extractor makes, on the y (thrust) or z (tap) axis
+	private void runDetector(Scenario scenario)
+	{
+		SensorTrace trace = scenario.measured;
+		if (scenario.detector == DETECTOR_PEAK)
+		{
+			SinglePeakDetector pd = new SinglePeakDetector();
+			for (int c = 0; c < trace.count; c++)
+			{
+				pd.addValue(trace.timestamps[c], trace.values[c * 3 + 1]);
+				if (pd.isPeak())
+				{
+					m_Blackhole++;
+				}
+			}
+		} else
+		{
+			TapDetector td = new TapDetector();
+			for (int c = 0; c < trace.count; c++)
+			{
+				td.addValue(trace.timestamps[c], trace.values[c * 3 + 2]);
+				m_Blackhole += td.numPeaks();
+			}
+		}
+	}
+
+	@Override
+	public void onEvent(EventPoint event)
+	{
+		m_Blackhole += event.m_Value;
+	}
+
+	@Override
+	public void onLengthComplete(LengthStatistics stats)
+	{
+		m_Blackhole += stats.strokes;
+	}
+
+	@Override
+	public void logError(String tag, String value)
+	{
+	}
+
+	@Override
+	public void logInfo(String tag, String value)
+	{
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		ExtractorBenchmark bench = new ExtractorBenchmark();
+		String filter = null;
+		ArrayList<Scenario> scenarios = syntheticScenarios();
+		for (int c = 0; c < args.length; c++)
+		{
+			if (args[c].equals("-filter") && c + 1 < args.length)
+			{
+				filter = args[++c];
+			} else if (args[c].equals("-time") && c + 1 < args.length)
+			{
+				bench.m_MeasureSeconds = Double.parseDouble(args[++c]);
+			} else
+			{
+				File file = new File(args[c]);
+				scenarios.add(new Scenario("recorded/" + file.getName(),
+						new SensorTrace(1), SensorTrace.load(file)));
+			}
+		}
+		System.out.println(String.format(Locale.UK, "%-28s %10s %12s %10s",
+				"scenario", "ns/sample", "samples/s", "B/sample"));
+		for (Scenario scenario : scenarios)
+		{
+			if (filter != null && !scenario.name.contains(filter))
+			{
+				continue;
+			}
+			double[] result = bench.run(scenario);
+			System.out.println(String.format(Locale.UK,
+					"%-28s %10.1f %12.0f %10.2f", scenario.name, result[0],
+					1000000000.0 / result[0], result[1]));
+		}
+		if (bench.m_Blackhole == 42)
+		{
+			System.out.println();
+		}
+	}
+}
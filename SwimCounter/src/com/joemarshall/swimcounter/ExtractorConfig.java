@@ -0,0 +1,287 @@
+package com.joemarshall.swimcounter;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+// the thresholds and time windows used by SwimMetricExtractor
+// immutable, so one config can be shared between any number of extractors
+// (e.g. in a parameter sweep); use Builder to make a changed copy
+public class ExtractorConfig
+{
+	public static final ExtractorConfig DEFAULT = new Builder().build();
+
+	// pitch less than this (radians) from horizontal means we might be swimming
+	public final double swimMaxAngleFromHorizontal;
+	// roll more than this (radians) either way counts as a stroke
+	public final double rollStrokeThreshold;
+	// yaw this far (radians) from the pool direction is a turn
+	public final double turnAngle;
+	// going flat this soon after a pitch change isn't a new length
+	public final long pitchDebounceNs;
+	// going flat this soon after a turn finishes the turn
+	public final long turnWindowNs;
+	// standing up this long ends the length
+	public final long standingTimeoutNs;
+	// ignore roll, direction and thrusts for this long after a length starts
+	public final long lengthSettleNs;
+	// thrusts closer together than this are the same kick
+	public final long thrustSpacingNs;
+	// number of yaw samples before the pool direction is trusted
+	public final int directionWarmupSamples;
+	// lengths shorter or longer than these are not written
+	public final long minLengthNs;
+	public final long maxLengthNs;
+
+	public static class Builder
+	{
+		private double swimMaxAngleFromHorizontal = 0.698131701;
+		private double rollStrokeThreshold = 0.349066;
+		private double turnAngle = Math.PI * 0.5;
+		private long pitchDebounceNs = 1000000000L;
+		private long turnWindowNs = 2000000000L;
+		private long standingTimeoutNs = 5000000000L;
+		private long lengthSettleNs = 1000000000L;
+		private long thrustSpacingNs = 500000000L;
+		private int directionWarmupSamples = 100;
+		private long minLengthNs = 4000000000L;
+		private long maxLengthNs = 300000000000L;
+
+		public Builder()
+		{
+		}
+
+		public Builder(ExtractorConfig from)
+		{
+			swimMaxAngleFromHorizontal = from.swimMaxAngleFromHorizontal;
+			rollStrokeThreshold = from.rollStrokeThreshold;
+			turnAngle = from.turnAngle;
+			pitchDebounceNs = from.pitchDebounceNs;
+			turnWindowNs = from.turnWindowNs;
+			standingTimeoutNs = from.standingTimeoutNs;
+			lengthSettleNs = from.lengthSettleNs;
+			thrustSpacingNs = from.thrustSpacingNs;
+			directionWarmupSamples = from.directionWarmupSamples;
+			minLengthNs = from.minLengthNs;
+			maxLengthNs = from.maxLengthNs;
+		}
+
+		public Builder swimMaxAngleFromHorizontal(double value)
+		{
+			swimMaxAngleFromHorizontal = value;
+			return this;
+		}
+
+		public Builder rollStrokeThreshold(double value)
+		{
+			rollStrokeThreshold = value;
+			return this;
+		}
+
+		public Builder turnAngle(double value)
+		{
+			turnAngle = value;
+			return this;
+		}
+
+		public Builder pitchDebounceNs(long value)
+		{
+			pitchDebounceNs = value;
+			return this;
+		}
+
+		public Builder turnWindowNs(long value)
+		{
+			turnWindowNs = value;
+			return this;
+		}
+
+		public Builder standingTimeoutNs(long value)
+		{
+			standingTimeoutNs = value;
+			return this;
+		}
+
+		public Builder lengthSettleNs(long value)
+		{
+			lengthSettleNs = value;
+			return this;
+		}
+
+		public Builder thrustSpacingNs(long value)
+		{
+			thrustSpacingNs = value;
+			return this;
+		}
+
+		public Builder directionWarmupSamples(int value)
+		{
+			directionWarmupSamples = value;
+			return this;
+		}
+
+		public Builder minLengthNs(long value)
+		{
+			minLengthNs = value;
+			return this;
+		}
+
+		public Builder maxLengthNs(long value)
+		{
+			maxLengthNs = value;
+			return this;
+		}
+
+		// set a value by name, for command line tools; times are in seconds,
+		// angles in radians. Returns false if there's no such setting
+		public boolean set(String name, double value)
+		{
+			long ns = (long) (value * 1000000000.0);
+			if (name.equals("swimMaxAngleFromHorizontal"))
+			{
+				swimMaxAngleFromHorizontal = value;
+			} else if (name.equals("rollStrokeThreshold"))
+			{
+				rollStrokeThreshold = value;
+			} else if (name.equals("turnAngle"))
+			{
+				turnAngle = value;
+			} else if (name.equals("pitchDebounce"))
+			{
+				pitchDebounceNs = ns;
+			} else if (name.equals("turnWindow"))
+			{
+				turnWindowNs = ns;
+			} else if (name.equals("standingTimeout"))
+			{
+				standingTimeoutNs = ns;
+			} else if (name.equals("lengthSettle"))
+			{
+				lengthSettleNs = ns;
+			} else if (name.equals("thrustSpacing"))
+			{
+				thrustSpacingNs = ns;
+			} else if (name.equals("directionWarmupSamples"))
+			{
+				directionWarmupSamples = (int) value;
+			} else if (name.equals("minLength"))
+			{
+				minLengthNs = ns;
+			} else if (name.equals("maxLength"))
+			{
+				maxLengthNs = ns;
+			} else
+			{
+				return false;
+			}
+			return true;
+		}
+
+		public ExtractorConfig build()
+		{
+			return new ExtractorConfig(this);
+		}
+	}
+
+	private ExtractorConfig(Builder b)
+	{
+		swimMaxAngleFromHorizontal = b.swimMaxAngleFromHorizontal;
+		rollStrokeThreshold = b.rollStrokeThreshold;
+		turnAngle = b.turnAngle;
+		pitchDebounceNs = b.pitchDebounceNs;
+		turnWindowNs = b.turnWindowNs;
+		standingTimeoutNs = b.standingTimeoutNs;
+		lengthSettleNs = b.lengthSettleNs;
+		thrustSpacingNs = b.thrustSpacingNs;
+		directionWarmupSamples = b.directionWarmupSamples;
+		minLengthNs = b.minLengthNs;
+		maxLengthNs = b.maxLengthNs;
+	}
+
+	// every field exactly, for checking a saved extractor state was made
+	// with the same config
+	public void save(ByteBuffer out)
+	{
+		out.putDouble(swimMaxAngleFromHorizontal);
+		out.putDouble(rollStrokeThreshold);
+		out.putDouble(turnAngle);
+		out.putLong(pitchDebounceNs);
+		out.putLong(turnWindowNs);
+		out.putLong(standingTimeoutNs);
+		out.putLong(lengthSettleNs);
+		out.putLong(thrustSpacingNs);
+		out.putInt(directionWarmupSamples);
+		out.putLong(minLengthNs);
+		out.putLong(maxLengthNs);
+	}
+
+	public static ExtractorConfig restore(ByteBuffer in)
+	{
+		Builder b = new Builder();
+		b.swimMaxAngleFromHorizontal = in.getDouble();
+		b.rollStrokeThreshold = in.getDouble();
+		b.turnAngle = in.getDouble();
+		b.pitchDebounceNs = in.getLong();
+		b.turnWindowNs = in.getLong();
+		b.standingTimeoutNs = in.getLong();
+		b.lengthSettleNs = in.getLong();
+		b.thrustSpacingNs = in.getLong();
+		b.directionWarmupSamples = in.getInt();
+		b.minLengthNs = in.getLong();
+		b.maxLengthNs = in.getLong();
+		return b.build();
+	}
+
+	@Override
+	public boolean equals(Object other)
+	{
+		if (!(other instanceof ExtractorConfig))
+		{
+			return false;
+		}
+		ExtractorConfig o = (ExtractorConfig) other;
+		return Double.compare(swimMaxAngleFromHorizontal,
+				o.swimMaxAngleFromHorizontal) == 0
+				&& Double.compare(rollStrokeThreshold, o.rollStrokeThreshold) == 0
+				&& Double.compare(turnAngle, o.turnAngle) == 0
+				&& pitchDebounceNs == o.pitchDebounceNs
+				&& turnWindowNs == o.turnWindowNs
+				&& standingTimeoutNs == o.standingTimeoutNs
+				&& lengthSettleNs == o.lengthSettleNs
+				&& thrustSpacingNs == o.thrustSpacingNs
+				&& directionWarmupSamples == o.directionWarmupSamples
+				&& minLengthNs == o.minLengthNs && maxLengthNs == o.maxLengthNs;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		long bits = Double.doubleToLongBits(swimMaxAngleFromHorizontal);
+		bits = bits * 31 + Double.doubleToLongBits(rollStrokeThreshold);
+		bits = bits * 31 + Double.doubleToLongBits(turnAngle);
+		bits = bits * 31 + pitchDebounceNs;
+		bits = bits * 31 + turnWindowNs;
+		bits = bits * 31 + standingTimeoutNs;
+		bits = bits * 31 + lengthSettleNs;
+		bits = bits * 31 + thrustSpacingNs;
+		bits = bits * 31 + directionWarmupSamples;
+		bits = bits * 31 + minLengthNs;
+		bits = bits * 31 + maxLengthNs;
+		return (int) (bits ^ (bits >>> 32));
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format(Locale.UK,
+				"swimMaxAngleFromHorizontal=%.4f rollStrokeThreshold=%.4f "
+						+ "turnAngle=%.4f pitchDebounce=%.3f turnWindow=%.3f "
+						+ "standingTimeout=%.3f lengthSettle=%.3f "
+						+ "thrustSpacing=%.3f directionWarmupSamples=%d "
+						+ "minLength=%.3f maxLength=%.3f",
+				swimMaxAngleFromHorizontal, rollStrokeThreshold, turnAngle,
+				pitchDebounceNs / 1e9, turnWindowNs / 1e9,
+				standingTimeoutNs / 1e9, lengthSettleNs / 1e9,
+				thrustSpacingNs / 1e9, directionWarmupSamples,
+				minLengthNs / 1e9, maxLengthNs / 1e9);
+	}
+}
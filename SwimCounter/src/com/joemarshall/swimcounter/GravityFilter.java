@@ -0,0 +1,21 @@
+package com.joemarshall.swimcounter;
+
+// estimates gravity in device coordinates from the accelerometer (and the
+// gyroscope, where there is one), for devices without a rotation vector
+// sensor. SensorRouter turns the estimate plus the magnetometer into an
+// orientation. Implementations are called on every sample, so they should
+// do a fixed amount of work and not allocate
+public interface GravityFilter
+{
+	// returns true once the estimate has settled enough to be used
+	public boolean onAccelerometer(long timestamp, float x, float y, float z);
+
+	// rotation rate in rad/s around the device x,y,z axes
+	public void onGyroscope(long timestamp, float x, float y, float z);
+
+	// current estimate, x,y,z - this is the filter's own array, don't change it
+	public float[] getGravity();
+
+	// forget everything, e.g. when the sensors are restarted
+	public void reset();
+}
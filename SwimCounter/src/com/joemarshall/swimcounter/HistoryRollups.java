@@ -0,0 +1,417 @@
+package com.joemarshall.swimcounter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+
+import com.joemarshall.swimcounter.SwimMetricExtractor.StrokeState;
+import com.joemarshall.swimcounter.SwimMetricExtractor.TurnType;
+
+// per day totals of the swim history, kept up to date a length at a time, so
+// charts over weeks, months or a whole year never go back to the raw lengths
+//
+// totals are held for every (day, stroke) in flat arrays addressed directly
+// by day number, plus an "all strokes" row. A week or month is at most 31
+// days of adding up, a year of weekly points a few thousand adds.
+//
+// The rollups are saved to a file along with how many lengths of the
+// LengthStore they include; on load only lengths added since are applied.
+public class HistoryRollups
+{
+	public static final int PERIOD_DAY = 0;
+	public static final int PERIOD_WEEK = 1;
+	public static final int PERIOD_MONTH = 2;
+
+	static final int FILE_MAGIC = 0x53575255; // "SWRU"
+	static final int VERSION = 1;
+	static final long MILLIS_PER_DAY = 86400000L;
+
+	private static final StrokeState[] STROKE_STATES = StrokeState.values();
+	private static final int NUM_TURN_TYPES = TurnType.values().length;
+	// one row per stroke, then one for all strokes together
+	private static final int ROWS = STROKE_STATES.length + 1;
+	private static final int ALL_STROKES = ROWS - 1;
+
+	// totals over some span of days
+	public static class Summary
+	{
+		public long startDay;
+		public long endDay; // exclusive
+		public int lengths;
+		public long strokes;
+		public long timeNs;
+		public int[] turns = new int[NUM_TURN_TYPES];
+
+		void clear(long start, long end)
+		{
+			startDay = start;
+			endDay = end;
+			lengths = 0;
+			strokes = 0;
+			timeNs = 0;
+			for (int c = 0; c < turns.length; c++)
+			{
+				turns[c] = 0;
+			}
+		}
+
+		public int turnCount(TurnType type)
+		{
+			return turns[type.ordinal()];
+		}
+
+		// seconds per 100m
+		public double pacePer100m(double poolLength)
+		{
+			if (lengths == 0)
+			{
+				return 0;
+			}
+			return (timeNs / 1000000000.0) * 100.0 / (lengths * poolLength);
+		}
+
+		// strokes per minute
+		public double strokeRate()
+		{
+			if (timeNs == 0)
+			{
+				return 0;
+			}
+			return strokes * 60000000000.0 / timeNs;
+		}
+
+		// mean seconds plus strokes per length
+		public double swolf()
+		{
+			if (lengths == 0)
+			{
+				return 0;
+			}
+			return (timeNs / 1000000000.0 + strokes) / lengths;
+		}
+	}
+
+	private TimeZone m_TimeZone;
+	private long m_FirstDay = 0;
+	private int m_Days = 0;
+	private int m_Capacity = 0;
+	// [day * ROWS + row]
+	private int[] m_Lengths = new int[0];
+	private long[] m_Strokes = new long[0];
+	private long[] m_Time = new long[0];
+	// [(day * ROWS + row) * NUM_TURN_TYPES + turn]
+	private int[] m_Turns = new int[0];
+	private long m_LengthsApplied = 0;
+
+	public HistoryRollups()
+	{
+		this(TimeZone.getDefault());
+	}
+
+	// days start at midnight in this time zone
+	public HistoryRollups(TimeZone zone)
+	{
+		m_TimeZone = zone;
+	}
+
+	public long dayOf(long millis)
+	{
+		long local = millis + m_TimeZone.getOffset(millis);
+		return (local >= 0) ? local / MILLIS_PER_DAY : (local + 1)
+				/ MILLIS_PER_DAY - 1;
+	}
+
+	// number of store lengths included so far
+	public long lengthsApplied()
+	{
+		return m_LengthsApplied;
+	}
+
+	public void add(LengthStore.Record record)
+	{
+		add(record.startMillis, record.lengthTime, record.strokes,
+				record.stroke, record.turnType);
+	}
+
+	public void add(long startMillis, long lengthTime, int strokes,
+			StrokeState stroke, TurnType turnType)
+	{
+		int day = dayIndex(dayOf(startMillis));
+		addTo(day * ROWS + stroke.ordinal(), lengthTime, strokes, turnType);
+		addTo(day * ROWS + ALL_STROKES, lengthTime, strokes, turnType);
+		m_LengthsApplied++;
+	}
+
+	private void addTo(int cell, long lengthTime, int strokes, TurnType turnType)
+	{
+		m_Lengths[cell] += 1;
+		m_Strokes[cell] += strokes;
+		m_Time[cell] += lengthTime;
+		m_Turns[cell * NUM_TURN_TYPES + turnType.ordinal()] += 1;
+	}
+
+	// index of day in the arrays, growing them (either end) if need be
+	private int dayIndex(long day)
+	{
+		if (m_Days == 0)
+		{
+			m_FirstDay = day;
+		}
+		if (day < m_FirstDay)
+		{
+			int shift = (int) (m_FirstDay - day);
+			resize(m_Days + shift, shift);
+			m_FirstDay = day;
+			m_Days += shift;
+		} else if (day >= m_FirstDay + m_Days)
+		{
+			int days = (int) (day - m_FirstDay + 1);
+			if (days > m_Capacity)
+			{
+				resize(days, 0);
+			}
+			m_Days = days;
+		}
+		return (int) (day - m_FirstDay);
+	}
+
+	// make room for at least days, moving existing ones up by shift
+	private void resize(int days, int shift)
+	{
+		int capacity = Math.max(days, m_Capacity);
+		if (days > m_Capacity)
+		{
+			capacity = Math.max(days, m_Capacity * 2);
+		}
+		int[] lengths = new int[capacity * ROWS];
+		long[] strokes = new long[capacity * ROWS];
+		long[] time = new long[capacity * ROWS];
+		int[] turns = new int[capacity * ROWS * NUM_TURN_TYPES];
+		int used = m_Days * ROWS;
+		int to = shift * ROWS;
+		System.arraycopy(m_Lengths, 0, lengths, to, used);
+		System.arraycopy(m_Strokes, 0, strokes, to, used);
+		System.arraycopy(m_Time, 0, time, to, used);
+		System.arraycopy(m_Turns, 0, turns, to * NUM_TURN_TYPES, used
+				* NUM_TURN_TYPES);
+		m_Lengths = lengths;
+		m_Strokes = strokes;
+		m_Time = time;
+		m_Turns = turns;
+		m_Capacity = capacity;
+	}
+
+	// totals for days [startDay, endDay), for one stroke or all if stroke is
+	// null
+	public void summarise(long startDay, long endDay, StrokeState stroke,
+			Summary out)
+	{
+		out.clear(startDay, endDay);
+		int row = (stroke == null) ? ALL_STROKES : stroke.ordinal();
+		long from = Math.max(startDay, m_FirstDay);
+		long to = Math.min(endDay, m_FirstDay + m_Days);
+		for (long day = from; day < to; day++)
+		{
+			int cell = (int) (day - m_FirstDay) * ROWS + row;
+			out.lengths += m_Lengths[cell];
+			out.strokes += m_Strokes[cell];
+			out.timeNs += m_Time[cell];
+			for (int c = 0; c < NUM_TURN_TYPES; c++)
+			{
+				out.turns[c] += m_Turns[cell * NUM_TURN_TYPES + c];
+			}
+		}
+	}
+
+	// one summary per day, week (starting Monday) or month covering
+	// fromMillis to toMillis, for one stroke or all if stroke is null
+	public List<Summary> query(int period, long fromMillis, long toMillis,
+			StrokeState stroke)
+	{
+		ArrayList<Summary> result = new ArrayList<Summary>();
+		long lastDay = dayOf(toMillis);
+		long day = periodStart(period, dayOf(fromMillis));
+		while (day <= lastDay)
+		{
+			long next = periodEnd(period, day);
+			Summary summary = new Summary();
+			summarise(day, next, stroke, summary);
+			result.add(summary);
+			day = next;
+		}
+		return result;
+	}
+
+	// first day of the period containing day
+	public long periodStart(int period, long day)
+	{
+		switch (period)
+		{
+		case PERIOD_WEEK:
+			// day 0 (1 Jan 1970) was a Thursday
+			long weekday = ((day + 3) % 7 + 7) % 7;
+			return day - weekday;
+		case PERIOD_MONTH:
+			Calendar calendar = dayCalendar(day);
+			calendar.set(Calendar.DAY_OF_MONTH, 1);
+			return calendarDay(calendar);
+		default:
+			return day;
+		}
+	}
+
+	// first day after the period starting at day
+	public long periodEnd(int period, long day)
+	{
+		switch (period)
+		{
+		case PERIOD_WEEK:
+			return day + 7;
+		case PERIOD_MONTH:
+			Calendar calendar = dayCalendar(day);
+			calendar.set(Calendar.DAY_OF_MONTH, 1);
+			calendar.add(Calendar.MONTH, 1);
+			return calendarDay(calendar);
+		default:
+			return day + 1;
+		}
+	}
+
+	// day numbers count whole days, so do the calendar sums in UTC
+	private static Calendar dayCalendar(long day)
+	{
+		Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+		calendar.setTimeInMillis(day * MILLIS_PER_DAY);
+		return calendar;
+	}
+
+	private static long calendarDay(Calendar calendar)
+	{
+		return calendar.getTimeInMillis() / MILLIS_PER_DAY;
+	}
+
+	public void clear()
+	{
+		m_Days = 0;
+		m_LengthsApplied = 0;
+		resize(0, 0);
+	}
+
+	// apply any lengths in store that aren't in the rollups yet
+	public void catchUp(LengthStore store) throws IOException
+	{
+		if (m_LengthsApplied > store.lengthCount())
+		{
+			// store lost lengths (repaired after a crash), start again
+			clear();
+		}
+		LengthStore.Record record = new LengthStore.Record();
+		while (m_LengthsApplied < store.lengthCount()
+				&& store.readLength(m_LengthsApplied, record))
+		{
+			add(record);
+		}
+	}
+
+	public void save(File file) throws IOException
+	{
+		File temp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(temp)));
+		try
+		{
+			out.writeInt(FILE_MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(ROWS);
+			out.writeInt(NUM_TURN_TYPES);
+			out.writeLong(m_LengthsApplied);
+			out.writeLong(m_FirstDay);
+			out.writeInt(m_Days);
+			int cells = m_Days * ROWS;
+			for (int c = 0; c < cells; c++)
+			{
+				out.writeInt(m_Lengths[c]);
+				out.writeLong(m_Strokes[c]);
+				out.writeLong(m_Time[c]);
+				for (int d = 0; d < NUM_TURN_TYPES; d++)
+				{
+					out.writeInt(m_Turns[c * NUM_TURN_TYPES + d]);
+				}
+			}
+		} finally
+		{
+			out.close();
+		}
+		// so a crash part way through leaves the old file
+		if (!temp.renameTo(file))
+		{
+			throw new IOException("can't replace " + file);
+		}
+	}
+
+	// load saved rollups, returns false if there are none or they are from a
+	// different version, throws if they are damaged. Either way these are
+	// left empty (so catchUp rebuilds them from the whole store), never half
+	// loaded with a watermark that doesn't match
+	public boolean load(File file) throws IOException
+	{
+		clear();
+		if (!file.exists())
+		{
+			return false;
+		}
+		boolean loaded = false;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+		try
+		{
+			if (in.readInt() != FILE_MAGIC || in.readInt() != VERSION
+					|| in.readInt() != ROWS || in.readInt() != NUM_TURN_TYPES)
+			{
+				return false;
+			}
+			long applied = in.readLong();
+			long firstDay = in.readLong();
+			int days = in.readInt();
+			long cellSize = 20 + 4 * NUM_TURN_TYPES;
+			if (applied < 0 || days < 0
+					|| (long) days * ROWS * cellSize > file.length())
+			{
+				throw new IOException("damaged rollups " + file);
+			}
+			resize(days, 0);
+			int cells = days * ROWS;
+			for (int c = 0; c < cells; c++)
+			{
+				m_Lengths[c] = in.readInt();
+				m_Strokes[c] = in.readLong();
+				m_Time[c] = in.readLong();
+				for (int d = 0; d < NUM_TURN_TYPES; d++)
+				{
+					m_Turns[c * NUM_TURN_TYPES + d] = in.readInt();
+				}
+			}
+			m_FirstDay = firstDay;
+			m_Days = days;
+			m_LengthsApplied = applied;
+			loaded = true;
+			return true;
+		} finally
+		{
+			in.close();
+			if (!loaded)
+			{
+				clear();
+			}
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package com.joemarshall.swimcounter;
+
+// histogram of latencies (ns) in a fixed number of log-linear buckets, in the
+// style of HdrHistogram
+//
+// each power of two is split into SUB_BUCKETS equal buckets, so any value is
+// counted to within 1/SUB_BUCKETS (about 6%) of itself, from 1ns up to
+// MAX_VALUE_NS (anything bigger goes in the top bucket, the exact max is kept
+// separately). Recording is a few shifts and an increment, no allocation.
+public class LatencyHistogram
+{
+	static final int SUB_BUCKET_BITS = 4;
+	static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	// about 4.3 seconds
+	static final int MAX_POWER = 32;
+	static final long MAX_VALUE_NS = (1L << MAX_POWER) - 1;
+	static final int BUCKETS = (MAX_POWER - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private int[] m_Counts = new int[BUCKETS];
+	private long m_Count = 0;
+	private long m_Total = 0;
+	private long m_Min = Long.MAX_VALUE;
+	private long m_Max = 0;
+
+	static int bucketOf(long value)
+	{
+		if (value < SUB_BUCKETS)
+		{
+			return (int) Math.max(value, 0);
+		}
+		if (value > MAX_VALUE_NS)
+		{
+			value = MAX_VALUE_NS;
+		}
+		int power = 63 - Long.numberOfLeadingZeros(value);
+		int shift = power - SUB_BUCKET_BITS;
+		return ((shift + 1) << SUB_BUCKET_BITS)
+				+ (int) ((value >> shift) & (SUB_BUCKETS - 1));
+	}
+
+	// smallest value that goes in bucket
+	static long bucketStart(int bucket)
+	{
+		if (bucket < SUB_BUCKETS)
+		{
+			return bucket;
+		}
+		int shift = (bucket >> SUB_BUCKET_BITS) - 1;
+		return (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) << shift;
+	}
+
+	public void record(long value)
+	{
+		m_Counts[bucketOf(value)]++;
+		m_Count++;
+		m_Total += value;
+		if (value < m_Min)
+		{
+			m_Min = value;
+		}
+		if (value > m_Max)
+		{
+			m_Max = value;
+		}
+	}
+
+	public void clear()
+	{
+		for (int c = 0; c < BUCKETS; c++)
+		{
+			m_Counts[c] = 0;
+		}
+		m_Count = 0;
+		m_Total = 0;
+		m_Min = Long.MAX_VALUE;
+		m_Max = 0;
+	}
+
+	// add everything in other to this
+	public void add(LatencyHistogram other)
+	{
+		for (int c = 0; c < BUCKETS; c++)
+		{
+			m_Counts[c] += other.m_Counts[c];
+		}
+		m_Count += other.m_Count;
+		m_Total += other.m_Total;
+		m_Min = Math.min(m_Min, other.m_Min);
+		m_Max = Math.max(m_Max, other.m_Max);
+	}
+
+	public long count()
+	{
+		return m_Count;
+	}
+
+	public long total()
+	{
+		return m_Total;
+	}
+
+	public long min()
+	{
+		return m_Count == 0 ? 0 : m_Min;
+	}
+
+	public long max()
+	{
+		return m_Max;
+	}
+
+	public double mean()
+	{
+		return m_Count == 0 ? 0 : (double) m_Total / m_Count;
+	}
+
+	// value that percentile (0-100) of recorded values are at or below, to
+	// the resolution of the buckets (the middle of the bucket it is in)
+	public long valueAtPercentile(double percentile)
+	{
+		if (m_Count == 0)
+		{
+			return 0;
+		}
+		long wanted = Math.max(1, (long) Math.ceil(m_Count * percentile / 100.0));
+		long seen = 0;
+		for (int c = 0; c < BUCKETS; c++)
+		{
+			seen += m_Counts[c];
+			if (seen >= wanted)
+			{
+				long middle = (bucketStart(c) + bucketStart(c + 1)) / 2;
+				return Math.min(Math.max(middle, min()), m_Max);
+			}
+		}
+		return m_Max;
+	}
+}
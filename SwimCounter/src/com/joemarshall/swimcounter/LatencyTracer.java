@@ -0,0 +1,242 @@
+package com.joemarshall.swimcounter;
+
+import java.util.Locale;
+
+// how far behind the sensors the display is: for each thing the display
+// shows (intermediate times, intermediate data, a finished length), a
+// LatencyHistogram of the delay from the sensor sample that produced it to
+// each stage on the way to the screen
+//
+// stages, all measured from the sensor timestamp of the newest sample the
+// extractor had seen when it produced the output:
+// detect - for events and lengths, how long after the thing happened (its own
+// timestamp) the extractor noticed, in sensor time
+// handoff - when the output was handed to the display (so this includes the
+// sensor delivering it, queueing and extraction)
+// shown - when it went to the WebView in a loadUrl (adds the wait for a frame
+// and the UI thread)
+//
+// the clock has to be on the same timebase as the sensor timestamps. For
+// replays, SimulatedClock follows the sensor time of the samples fed in, so
+// it measures the delay the pipeline itself adds (reordering, resampling,
+// how long detection takes) rather than how fast the replay ran.
+//
+// a few records per display update, so it is cheap enough to leave on; safe
+// to call from any thread.
+public class LatencyTracer
+{
+	interface Clock
+	{
+		// now, in the same timebase (ns) as the sensor timestamps
+		public long nowNs();
+	}
+
+	// sensor time, moved on by whatever feeds in the samples
+	public static class SimulatedClock implements Clock
+	{
+		private volatile long m_Now = 0L;
+
+		// the newest sample has arrived; never goes backwards
+		public void set(long timestamp)
+		{
+			if (timestamp > m_Now)
+			{
+				m_Now = timestamp;
+			}
+		}
+
+		public void reset()
+		{
+			m_Now = 0L;
+		}
+
+		@Override
+		public long nowNs()
+		{
+			return m_Now;
+		}
+	}
+
+	public static final int PATH_INTERMEDIATE_TIMES = 0;
+	public static final int PATH_INTERMEDIATE_DATA = 1;
+	public static final int PATH_LENGTH_DONE = 2;
+	static final String[] PATH_NAMES = { "intermediateTimes",
+			"intermediateData", "lengthDone" };
+	static final int PATHS = PATH_NAMES.length;
+
+	public static final int STAGE_DETECT = 0;
+	public static final int STAGE_HANDOFF = 1;
+	public static final int STAGE_SHOWN = 2;
+	static final String[] STAGE_NAMES = { "detect", "handoff", "shown" };
+	static final int STAGES = STAGE_NAMES.length;
+
+	// lengths handed off but not shown yet, more than this in one frame
+	// aren't traced to the screen
+	static final int MAX_PENDING = 8;
+
+	private static final double[] PERCENTILES = { 50, 99 };
+
+	private Clock m_Clock;
+	private boolean m_Enabled = true;
+	// [path * STAGES + stage]
+	private LatencyHistogram[] m_Histograms = new LatencyHistogram[PATHS
+			* STAGES];
+	// sample timestamps handed off for each path, waiting for shown(); the
+	// intermediate paths only keep the latest, as the display does
+	private long[] m_Pending = new long[PATHS * MAX_PENDING];
+	private int[] m_PendingCount = new int[PATHS];
+
+	// delays that came out negative, i.e. the clock and the sensor
+	// timestamps aren't on the same timebase
+	public long skewed = 0;
+
+	public LatencyTracer(Clock clock)
+	{
+		m_Clock = clock;
+		for (int c = 0; c < m_Histograms.length; c++)
+		{
+			m_Histograms[c] = new LatencyHistogram();
+		}
+	}
+
+	public synchronized void setClock(Clock clock)
+	{
+		m_Clock = clock;
+	}
+
+	public synchronized boolean isEnabled()
+	{
+		return m_Enabled;
+	}
+
+	// e.g. off for network sensors, whose timestamps come from another clock
+	public synchronized void setEnabled(boolean enabled)
+	{
+		m_Enabled = enabled;
+		if (!enabled)
+		{
+			for (int c = 0; c < PATHS; c++)
+			{
+				m_PendingCount[c] = 0;
+			}
+		}
+	}
+
+	public synchronized void clear()
+	{
+		for (int c = 0; c < m_Histograms.length; c++)
+		{
+			m_Histograms[c].clear();
+		}
+		for (int c = 0; c < PATHS; c++)
+		{
+			m_PendingCount[c] = 0;
+		}
+		skewed = 0;
+	}
+
+	// the extractor noticed something that happened at eventTimestamp while
+	// processing the sample at sampleTimestamp
+	public synchronized void detected(int path, long eventTimestamp,
+			long sampleTimestamp)
+	{
+		if (m_Enabled)
+		{
+			record(path, STAGE_DETECT, sampleTimestamp - eventTimestamp);
+		}
+	}
+
+	// output produced from the sample at sampleTimestamp has been handed to
+	// the display
+	public synchronized void handoff(int path, long sampleTimestamp)
+	{
+		if (!m_Enabled)
+		{
+			return;
+		}
+		record(path, STAGE_HANDOFF, m_Clock.nowNs() - sampleTimestamp);
+		if (path != PATH_LENGTH_DONE)
+		{
+			m_PendingCount[path] = 0;
+		}
+		if (m_PendingCount[path] < MAX_PENDING)
+		{
+			m_Pending[path * MAX_PENDING + m_PendingCount[path]] = sampleTimestamp;
+			m_PendingCount[path]++;
+		}
+	}
+
+	// everything handed off on path has gone to the screen
+	public synchronized void shown(int path)
+	{
+		if (!m_Enabled)
+		{
+			return;
+		}
+		long now = m_Clock.nowNs();
+		for (int c = 0; c < m_PendingCount[path]; c++)
+		{
+			record(path, STAGE_SHOWN, now - m_Pending[path * MAX_PENDING + c]);
+		}
+		m_PendingCount[path] = 0;
+	}
+
+	private void record(int path, int stage, long delay)
+	{
+		if (delay < 0)
+		{
+			skewed++;
+			delay = 0;
+		}
+		m_Histograms[path * STAGES + stage].record(delay);
+	}
+
+	// a copy, so it can be read while tracing carries on
+	public synchronized LatencyHistogram getHistogram(int path, int stage)
+	{
+		LatencyHistogram copy = new LatencyHistogram();
+		copy.add(m_Histograms[path * STAGES + stage]);
+		return copy;
+	}
+
+	// csv, one line per path and stage that has seen anything:
+	// path,stage,count,mean,p50,p99,max (times in ms)
+	public synchronized String snapshot()
+	{
+		StringBuilder out = new StringBuilder();
+		if (skewed > 0)
+		{
+			out.append("# ").append(skewed)
+					.append(" negative delays, clock doesn't match sensors\n");
+		}
+		out.append("path,stage,count,mean,p50,p99,max\n");
+		for (int path = 0; path < PATHS; path++)
+		{
+			for (int stage = 0; stage < STAGES; stage++)
+			{
+				LatencyHistogram histogram = m_Histograms[path * STAGES
+						+ stage];
+				if (histogram.count() == 0)
+				{
+					continue;
+				}
+				out.append(PATH_NAMES[path]).append(',')
+						.append(STAGE_NAMES[stage]).append(',')
+						.append(histogram.count()).append(',')
+						.append(millis(histogram.mean()));
+				for (double percentile : PERCENTILES)
+				{
+					out.append(',').append(
+							millis(histogram.valueAtPercentile(percentile)));
+				}
+				out.append(',').append(millis(histogram.max())).append('\n');
+			}
+		}
+		return out.toString();
+	}
+
+	private static String millis(double nanos)
+	{
+		return String.format(Locale.UK, "%.1f", nanos / 1000000.0);
+	}
+}
@@ -0,0 +1,370 @@
+package com.joemarshall.swimcounter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.joemarshall.swimcounter.SwimMetricExtractor.LengthStatistics;
+import com.joemarshall.swimcounter.SwimMetricExtractor.StrokeState;
+import com.joemarshall.swimcounter.SwimMetricExtractor.TurnType;
+
+// durable, append-only history of every length swum, grouped into sessions
+//
+// two files in one directory:
+// lengths.dat - one fixed size record per length, in the order they were swum
+// RECORD_SIZE bytes: long sessionId, long startMillis (wall clock),
+// long lengthTime (ns), double direction, int strokes,
+// byte stroke, byte turnType, short reserved
+// sessions.idx - memory mapped, a header then one entry per session
+// INDEX_ENTRY_SIZE bytes: long sessionId, long startMillis,
+// long firstLength (record number in lengths.dat), int lengthCount,
+// int reserved
+//
+// sessions only ever get added at the end, with increasing id and start time,
+// so finding one by id or time is a binary search of the mapped index and
+// opening the store costs the same however much history there is. Lengths are
+// written to lengths.dat before the index is updated; on open anything the
+// two disagree about (e.g. after the app was killed mid write) is repaired by
+// looking at the last few records only.
+public class LengthStore
+{
+	static final int DATA_MAGIC = 0x53574c44; // "SWLD"
+	static final int INDEX_MAGIC = 0x53574c49; // "SWLI"
+	static final int VERSION = 1;
+	static final int DATA_HEADER_SIZE = 16;
+	static final int RECORD_SIZE = 40;
+	static final int INDEX_HEADER_SIZE = 16;
+	static final int INDEX_ENTRY_SIZE = 32;
+	// index file grows by this many entries at a time
+	static final int INDEX_GROWTH = 1024;
+
+	private static final StrokeState[] STROKE_STATES = StrokeState.values();
+	private static final TurnType[] TURN_TYPES = TurnType.values();
+
+	// one length, as read back from the store
+	public static class Record
+	{
+		public long sessionId;
+		public long startMillis;
+		public long lengthTime;
+		public double direction;
+		public int strokes;
+		public StrokeState stroke;
+		public TurnType turnType;
+	}
+
+	private RandomAccessFile m_DataFile;
+	private FileChannel m_Data;
+	private RandomAccessFile m_IndexFile;
+	private FileChannel m_IndexChannel;
+	private MappedByteBuffer m_Index;
+	private int m_IndexCapacity;
+
+	private int m_SessionCount;
+	private long m_LengthCount;
+
+	private ByteBuffer m_Record = ByteBuffer.allocate(RECORD_SIZE);
+
+	public LengthStore(File dir) throws IOException
+	{
+		if (!dir.isDirectory() && !dir.mkdirs())
+		{
+			throw new IOException("can't make " + dir);
+		}
+		m_DataFile = new RandomAccessFile(new File(dir, "lengths.dat"), "rw");
+		m_Data = m_DataFile.getChannel();
+		m_IndexFile = new RandomAccessFile(new File(dir, "sessions.idx"), "rw");
+		m_IndexChannel = m_IndexFile.getChannel();
+		try
+		{
+			openData();
+			openIndex();
+			repair();
+		} catch (IOException e)
+		{
+			close();
+			throw e;
+		}
+	}
+
+	private void openData() throws IOException
+	{
+		ByteBuffer header = ByteBuffer.allocate(DATA_HEADER_SIZE);
+		if (m_Data.size() < DATA_HEADER_SIZE)
+		{
+			header.putInt(DATA_MAGIC).putInt(VERSION).putLong(RECORD_SIZE);
+			header.flip();
+			m_Data.truncate(0);
+			m_Data.write(header, 0);
+		} else
+		{
+			m_Data.read(header, 0);
+			if (header.getInt(0) != DATA_MAGIC || header.getInt(4) != VERSION)
+			{
+				throw new IOException("lengths.dat is not a length store");
+			}
+		}
+		// drop any half written record at the end
+		m_LengthCount = (m_Data.size() - DATA_HEADER_SIZE) / RECORD_SIZE;
+		m_Data.truncate(DATA_HEADER_SIZE + m_LengthCount * RECORD_SIZE);
+	}
+
+	private void openIndex() throws IOException
+	{
+		boolean fresh = m_IndexChannel.size() < INDEX_HEADER_SIZE;
+		long entries = Math.max(0, (m_IndexChannel.size() - INDEX_HEADER_SIZE)
+				/ INDEX_ENTRY_SIZE);
+		mapIndex((int) Math.max(entries, INDEX_GROWTH));
+		if (fresh)
+		{
+			m_Index.putInt(0, INDEX_MAGIC);
+			m_Index.putInt(4, VERSION);
+			m_Index.putLong(8, 0);
+		} else if (m_Index.getInt(0) != INDEX_MAGIC
+				|| m_Index.getInt(4) != VERSION)
+		{
+			throw new IOException("sessions.idx is not a session index");
+		}
+		m_SessionCount = (int) Math.min(m_Index.getLong(8), m_IndexCapacity);
+	}
+
+	private void mapIndex(int capacity) throws IOException
+	{
+		m_IndexCapacity = capacity;
+		m_Index = m_IndexChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+				INDEX_HEADER_SIZE + (long) capacity * INDEX_ENTRY_SIZE);
+	}
+
+	// make the index agree with lengths.dat, which is the one we trust
+	private void repair() throws IOException
+	{
+		// sessions that claim lengths that never got written
+		while (m_SessionCount > 0
+				&& sessionFirstLength(m_SessionCount - 1) > m_LengthCount)
+		{
+			m_SessionCount--;
+		}
+		if (m_SessionCount > 0)
+		{
+			int last = m_SessionCount - 1;
+			long first = sessionFirstLength(last);
+			long count = Math.min(sessionLengthCount(last), m_LengthCount
+					- first);
+			// lengths written after the index was last updated
+			Record record = new Record();
+			while (first + count < m_LengthCount
+					&& readLength(first + count, record)
+					&& record.sessionId == sessionId(last))
+			{
+				count++;
+			}
+			m_Index.putInt(entryOffset(last) + 24, (int) count);
+			// anything left over belongs to no session
+			m_LengthCount = first + count;
+		} else
+		{
+			m_LengthCount = 0;
+		}
+		m_Data.truncate(DATA_HEADER_SIZE + m_LengthCount * RECORD_SIZE);
+		m_Index.putLong(8, m_SessionCount);
+	}
+
+	private int entryOffset(int session)
+	{
+		return INDEX_HEADER_SIZE + session * INDEX_ENTRY_SIZE;
+	}
+
+	// start a new session, lengths appended from now on go in it
+	// returns the session id
+	public long startSession(long startMillis) throws IOException
+	{
+		long id = 1;
+		if (m_SessionCount > 0)
+		{
+			id = sessionId(m_SessionCount - 1) + 1;
+			// keep start times in order so they can be searched
+			startMillis = Math.max(startMillis,
+					sessionStartMillis(m_SessionCount - 1));
+		}
+		if (m_SessionCount == m_IndexCapacity)
+		{
+			mapIndex(m_IndexCapacity + INDEX_GROWTH);
+		}
+		int offset = entryOffset(m_SessionCount);
+		m_Index.putLong(offset, id);
+		m_Index.putLong(offset + 8, startMillis);
+		m_Index.putLong(offset + 16, m_LengthCount);
+		m_Index.putInt(offset + 24, 0);
+		m_Index.putInt(offset + 28, 0);
+		m_SessionCount++;
+		m_Index.putLong(8, m_SessionCount);
+		return id;
+	}
+
+	// add a length to the current session (starting one if there isn't one)
+	public void append(LengthStatistics stats, long startMillis)
+			throws IOException
+	{
+		append(stats.lengthTime, stats.strokes, stats.stroke, stats.turnType,
+				stats.direction, startMillis);
+	}
+
+	public void append(long lengthTime, int strokes, StrokeState stroke,
+			TurnType turnType, double direction, long startMillis)
+			throws IOException
+	{
+		if (m_SessionCount == 0)
+		{
+			startSession(startMillis);
+		}
+		int session = m_SessionCount - 1;
+		ByteBuffer r = m_Record;
+		r.clear();
+		r.putLong(sessionId(session));
+		r.putLong(startMillis);
+		r.putLong(lengthTime);
+		r.putDouble(direction);
+		r.putInt(strokes);
+		r.put((byte) stroke.ordinal());
+		r.put((byte) turnType.ordinal());
+		r.putShort((short) 0);
+		r.flip();
+		long position = DATA_HEADER_SIZE + m_LengthCount * RECORD_SIZE;
+		while (r.hasRemaining())
+		{
+			position += m_Data.write(r, position);
+		}
+		m_LengthCount++;
+		int offset = entryOffset(session);
+		m_Index.putInt(offset + 24, m_Index.getInt(offset + 24) + 1);
+	}
+
+	// push everything to disk, e.g. at the end of a session
+	public void flush() throws IOException
+	{
+		m_Data.force(false);
+		m_Index.force();
+	}
+
+	public void close()
+	{
+		try
+		{
+			if (m_Index != null)
+			{
+				m_Index.force();
+			}
+			m_Data.close();
+			m_DataFile.close();
+			m_IndexChannel.close();
+			m_IndexFile.close();
+		} catch (IOException e)
+		{
+			// nothing useful to do
+		}
+	}
+
+	public long lengthCount()
+	{
+		return m_LengthCount;
+	}
+
+	public int sessionCount()
+	{
+		return m_SessionCount;
+	}
+
+	public long sessionId(int session)
+	{
+		return m_Index.getLong(entryOffset(session));
+	}
+
+	public long sessionStartMillis(int session)
+	{
+		return m_Index.getLong(entryOffset(session) + 8);
+	}
+
+	public long sessionFirstLength(int session)
+	{
+		return m_Index.getLong(entryOffset(session) + 16);
+	}
+
+	public int sessionLengthCount(int session)
+	{
+		return m_Index.getInt(entryOffset(session) + 24);
+	}
+
+	// index of the session with this id, or -1
+	public int findSession(long sessionId)
+	{
+		int low = 0;
+		int high = m_SessionCount - 1;
+		while (low <= high)
+		{
+			int mid = (low + high) >>> 1;
+			long id = sessionId(mid);
+			if (id < sessionId)
+			{
+				low = mid + 1;
+			} else if (id > sessionId)
+			{
+				high = mid - 1;
+			} else
+			{
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	// index of the first session starting at or after startMillis
+	// (sessionCount() if there isn't one)
+	public int findSessionAfter(long startMillis)
+	{
+		int low = 0;
+		int high = m_SessionCount;
+		while (low < high)
+		{
+			int mid = (low + high) >>> 1;
+			if (sessionStartMillis(mid) < startMillis)
+			{
+				low = mid + 1;
+			} else
+			{
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	// read length number index (0 to lengthCount()-1) into record
+	public boolean readLength(long index, Record record) throws IOException
+	{
+		if (index < 0 || index >= m_LengthCount)
+		{
+			return false;
+		}
+		ByteBuffer r = m_Record;
+		r.clear();
+		long position = DATA_HEADER_SIZE + index * RECORD_SIZE;
+		while (r.hasRemaining())
+		{
+			int read = m_Data.read(r, position + r.position());
+			if (read < 0)
+			{
+				return false;
+			}
+		}
+		record.sessionId = r.getLong(0);
+		record.startMillis = r.getLong(8);
+		record.lengthTime = r.getLong(16);
+		record.direction = r.getDouble(24);
+		record.strokes = r.getInt(32);
+		record.stroke = STROKE_STATES[r.get(36)];
+		record.turnType = TURN_TYPES[r.get(37)];
+		return true;
+	}
+}
@@ -3,7 +3,10 @@ package com.joemarshall.swimcounter;
 // TODO: javascript error handling
 
 import java.io.File;
-import java.util.Locale;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
 import android.annotation.SuppressLint;
 import android.app.Activity;
@@ -12,7 +15,12 @@ import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 import android.webkit.ConsoleMessage;
 import android.webkit.JavascriptInterface;
@@ -27,36 +35,135 @@ import com.joemarshall.swimcounter.SwimMetricExtractor.LengthStatistics;
 import com.joemarshall.swimcounter.SwimMetricExtractor.State;
 
 public class LiveCounterActivity extends Activity implements
-		SensorEventListener, Callback, SocketReplay.Callback
+		SensorEventListener, Callback, SocketReplay.Callback,
+		SensorProcessor.Callback, SampleRateController.Callback
 {
 	SwimMetricExtractor m_Extractor = new SwimMetricExtractor(this);
+	SensorRouter m_Router = new SensorRouter(m_Extractor);
+	// the extractor runs on m_Processor's thread, fed from one queue for the
+	// phone's sensors and one for network sensors (each needs its own
+	// producer thread), so the UI thread only does the drawing
+	SensorQueue m_SensorQueue = new SensorQueue(4096);
+	SensorQueue m_NetworkQueue = new SensorQueue(4096);
+	SensorProcessor m_Processor = new SensorProcessor(m_Router,
+			new SensorQueue[] { m_SensorQueue, m_NetworkQueue }, this);
+	// sensor listeners are registered from the UI, processing (rate
+	// changes) and network threads, so the thread, the listeners and the
+	// sensors are only touched holding m_SensorLock
+	final Object m_SensorLock = new Object();
+	HandlerThread m_SensorThread;
+	// every sensor stream is resampled to this before the extractor sees it,
+	// the rate its thresholds were tuned at
+	static final double EXTRACTOR_RATE_HZ = 100.0;
+	// samples (particularly network ones) can arrive this far (ns) out of
+	// order and still be put right
+	static final long REORDER_WINDOW_NS = 50000000L;
+	// turns the sensors down while resting between sets
+	SampleRateController m_RateController = new SampleRateController(
+			m_Router, this);
+	volatile int m_SensorDelay = SensorManager.SENSOR_DELAY_FASTEST;
 	WebView m_WebView;
+	DisplayBridge m_Display;
 	SocketReplay m_SocketReplay;
+	// logcat gets the same as it always has: events at ERROR (tag evt,
+	// type:value), logError at ERROR and logInfo at VERBOSE. Turn the level
+	// up to cut out the chatter, NONE to switch events off too
+	EventLog m_Log = new EventLog(new EventLog.LogcatOutput(), EventLog.VERBOSE, 1024);
+	// history of every length swum, null if it couldn't be opened
+	LengthStore m_Store;
+	// only touched on the processing thread (or with it stopped), it is
+	// saved with the checkpoints as Android usually kills the process
+	// without calling onDestroy
+	HistoryRollups m_Rollups = new HistoryRollups();
+	boolean m_RollupsChanged = false;
+	boolean m_SessionStarted = false;
+	// the session so far, so it can carry on if the app gets killed
+	StateCheckpoint m_Checkpoint;
+	long lastCheckpointTimestamp = 0L;
+	// sensor time (ns) between checkpoints
+	static final long CHECKPOINT_INTERVAL_NS = 5000000000L;
+	// an older checkpoint than this (ms) is a different session
+	static final long CHECKPOINT_MAX_AGE_MS = 30 * 60 * 1000L;
+	// time each stage of the extractor, logged when the activity closes
+	static final boolean PROFILE_EXTRACTOR = false;
+	// sensor time (ns) between display updates
+	static final long DISPLAY_INTERVAL_NS = 50000000L;
+	// sensor event timestamps are elapsed realtime from 4.2 on, before that
+	// it varies by device (the tracer counts the delays that come out
+	// negative)
+	static final LatencyTracer.Clock SENSOR_CLOCK = new LatencyTracer.Clock()
+	{
+		public long nowNs()
+		{
+			if (Build.VERSION.SDK_INT >= 17)
+			{
+				return SystemClock.elapsedRealtimeNanos();
+			}
+			return System.nanoTime();
+		}
+	};
+	// how far the display lags the sensors, logged when the activity closes
+	LatencyTracer m_Latency = new LatencyTracer(SENSOR_CLOCK);
+	// replays through onSensorValues are traced separately, in the
+	// recording's time, so they don't mix with the live figures
+	LatencyTracer.SimulatedClock m_ReplayClock = new LatencyTracer.SimulatedClock();
+	LatencyTracer m_ReplayLatency = new LatencyTracer(m_ReplayClock);
+	// whichever of the two the samples being processed belong to
+	volatile LatencyTracer m_Tracing = m_Latency;
 
 	@Override
 	protected void onCreate(Bundle savedInstanceState)
 	{
 		super.onCreate(savedInstanceState);
 		setContentView(R.layout.activity_live_counter);
+		m_Log.start();
+		try
+		{
+			m_Store = new LengthStore(new File(getFilesDir(), "history"));
+		} catch (IOException e)
+		{
+			logError("store", e.toString());
+		}
+		if (m_Store != null)
+		{
+			// catching up can mean reading the whole store, so not on the UI
+			// thread. It's the processing thread's first job, before any
+			// lengths get added
+			m_Processor.post(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					loadRollups();
+				}
+			});
+		}
 		/*
 		 * File fromLog = new File(Environment.getExternalStorageDirectory(),
 		 * "test.csv"); if (fromLog.exists() && fromLog.canRead()) {
 		 * processLog(fromLog); }
 		 */
 		initialiseWebView();
+		m_Router.setReorderWindow(REORDER_WINDOW_NS, 1024);
+		m_Router.setResampleRate(EXTRACTOR_RATE_HZ);
+		m_Processor.setRateController(m_RateController);
+		m_Checkpoint = new StateCheckpoint(new File(getFilesDir(),
+				"checkpoint.dat"));
+		restoreCheckpoint();
+		m_Checkpoint.start();
+		m_Extractor.getProfiler().setEnabled(PROFILE_EXTRACTOR);
+		m_Processor.start();
 		//registerSensorListeners();
 		m_SocketReplay=new SocketReplay(this);
 	}
 
-	String m_JavascriptCallbackName = null;
-
 	class JsObject
 	{
 		@JavascriptInterface
 		public void setCallback(String name)
 		{
 			name.replaceAll("\\W", "");
-			m_JavascriptCallbackName = name;
+			m_Display.setCallbackName(name);
 			Log.e("js", name);
 		}
 	};
@@ -79,6 +186,8 @@ public class LiveCounterActivity extends Activity implements
 		m_WebView.getSettings().setJavaScriptEnabled(true);
 		m_WebView.addJavascriptInterface(new JsObject(), "swimMetrics");
 		m_WebView.setWebChromeClient(new BrowserCallback());
+		m_Display = new DisplayBridge(m_WebView);
+		m_Display.setTracer(m_Tracing);
 
 		m_WebView.loadUrl("file:///android_asset/numbersview.html");
 	}
@@ -98,35 +207,106 @@ public class LiveCounterActivity extends Activity implements
 	{
 		m_SocketReplay.cancel();
 		unregisterSensorListeners();
+		m_Processor.stop();
+		StageProfiler profiler = m_Extractor.getProfiler();
+		if (profiler.isEnabled())
+		{
+			logInfo("profile", profiler.snapshot());
+		}
+		if (m_Latency.isEnabled())
+		{
+			logInfo("latency", m_Latency.snapshot());
+		}
+		if (m_ReplayClock.nowNs() > 0)
+		{
+			logInfo("replay latency", m_ReplayLatency.snapshot());
+		}
+		// keep the session if we are only being restarted
+		if (!isFinishing())
+		{
+			writeCheckpoint();
+		}
+		m_Checkpoint.close();
+		if (isFinishing())
+		{
+			m_Checkpoint.delete();
+		}
+		TimestampMerger merger = m_Router.getMerger();
+		if (merger.late > 0)
+		{
+			logError("merge", "late " + merger.late + " reordered "
+					+ merger.reordered);
+		}
+		if (m_SensorQueue.dropped() > 0 || m_NetworkQueue.dropped() > 0)
+		{
+			logError("queue", "dropped " + m_SensorQueue.dropped() + ","
+					+ m_NetworkQueue.dropped() + " max depth "
+					+ m_SensorQueue.maxDepth() + ","
+					+ m_NetworkQueue.maxDepth());
+		}
+		if (m_Store != null)
+		{
+			saveRollups();
+			m_Store.close();
+		}
+		m_Log.close();
 		super.onDestroy();
 	}
 
 	private SensorManager m_SensorManager = null;
 	private Sensor m_LinearAcceleration;
 	private Sensor m_RotationVector;
+	private Sensor m_Gyroscope;
 
-	private float[] m_MagneticFieldCache = new float[3];
-
+	// call holding m_SensorLock, with m_SensorThread running
 	protected void registerIfNonNull(Sensor s)
 	{
 		if (s != null)
 		{
-			m_SensorManager.registerListener(this, s,
-					SensorManager.SENSOR_DELAY_FASTEST);
+			// deliver on the sensor thread, not the UI thread
+			m_SensorManager.registerListener(this, s, m_SensorDelay,
+					new Handler(m_SensorThread.getLooper()));
 		}
 	}
 
 	protected void registerSensorListeners()
+	{
+		synchronized (m_SensorLock)
+		{
+			registerSensorListenersLocked();
+		}
+	}
+
+	private void registerSensorListenersLocked()
 	{
 		m_SensorManager = (SensorManager) getSystemService(Context.SENSOR_SERVICE);
+		if (m_SensorThread == null)
+		{
+			m_SensorThread = new HandlerThread("sensors",
+					Process.THREAD_PRIORITY_MORE_FAVORABLE);
+			m_SensorThread.start();
+		}
 		m_RotationVector = m_SensorManager
 				.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR);
 		m_LinearAcceleration = m_SensorManager
 				.getDefaultSensor(Sensor.TYPE_LINEAR_ACCELERATION);
+		m_Gyroscope = null;
 		if (m_RotationVector == null)
 		{
 			m_RotationVector = m_SensorManager
 					.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD);
+			// gravity has to come from the accelerometer, let the gyroscope
+			// (if there is one) keep it right through turns
+			m_Gyroscope = m_SensorManager
+					.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
+			// the router belongs to the processing thread
+			m_Processor.post(new Runnable()
+			{
+				public void run()
+				{
+					m_Router.setGravityFilter(new ComplementaryGravityFilter());
+				}
+			});
 		}
 		if (m_LinearAcceleration == null)
 		{
@@ -136,13 +316,22 @@ public class LiveCounterActivity extends Activity implements
 
 		registerIfNonNull(m_LinearAcceleration);
 		registerIfNonNull(m_RotationVector);
+		registerIfNonNull(m_Gyroscope);
 	}
 
 	protected void unregisterSensorListeners()
 	{
-		if(m_SensorManager!=null)
+		synchronized (m_SensorLock)
 		{
-			m_SensorManager.unregisterListener(this);
+			if (m_SensorManager != null)
+			{
+				m_SensorManager.unregisterListener(this);
+			}
+			if (m_SensorThread != null)
+			{
+				m_SensorThread.quit();
+				m_SensorThread = null;
+			}
 		}
 	}
 
@@ -152,104 +341,202 @@ public class LiveCounterActivity extends Activity implements
 
 	}
 	
+	// called on the processing thread
+	@Override
+	public void onRateChange(boolean slow)
+	{
+		m_SensorDelay = slow ? SensorManager.SENSOR_DELAY_UI
+				: SensorManager.SENSOR_DELAY_FASTEST;
+		logInfo("rate", slow ? "resting, sensors slowed" : "full rate");
+		synchronized (m_SensorLock)
+		{
+			// not if they have been unregistered meanwhile
+			if (m_SensorManager != null && m_SensorThread != null
+					&& !usingNetworkSensors)
+			{
+				// a registered sensor keeps its rate, so register from scratch
+				m_SensorManager.unregisterListener(this);
+				registerIfNonNull(m_LinearAcceleration);
+				registerIfNonNull(m_RotationVector);
+				registerIfNonNull(m_Gyroscope);
+			}
+		}
+	}
+
 	public void useNetworkSensors()
 	{
 		if(!usingNetworkSensors)
 		{
 			usingNetworkSensors=true;
 			unregisterSensorListeners();
+			// their timestamps are from the other device's clock
+			m_Latency.setEnabled(false);
 			Log.e("socket","using network sensors");
 		}
 	}
 
 	
-	int valuesBeforeFilterStability=50;
-	float[] m_RotateMatrix = new float[9];
-	float[] m_Orientation = new float[3];
+	long lastDisplayTimestamp = 0L;
 
-	float[] filter_gravity = new float[3];
-	float[] filter_linear_accel = new float[3];
+	// only used on m_SensorThread
+	OrientationKernel m_SensorOrientation = new OrientationKernel();
 
-	void filterAccelerometer(float[] values)
+	@Override
+	public void onSensorChanged(SensorEvent event)
 	{
-		// In this example, alpha is calculated as t / (t + dT),
-		// where t is the low-pass filter's time-constant and
-		// dT is the event delivery rate.
-
-		final float alpha = 0.95f;
+		// runs on m_SensorThread, just queue it for the processing thread
+		int type = event.sensor.getType();
+		float[] values = event.values;
+		if (type == Sensor.TYPE_ROTATION_VECTOR && values.length >= 4)
+		{
+			// the queue only has room for x,y,z, so turn it into angles here
+			// rather than lose w (working it back out always gives w >= 0)
+			m_SensorOrientation.fromQuaternion(values[0], values[1],
+					values[2], values[3]);
+			m_SensorQueue.offer(PREPROCESSED_ORIENTATION,
+					m_SensorOrientation.yaw, m_SensorOrientation.pitch,
+					m_SensorOrientation.roll, event.timestamp);
+			return;
+		}
+		m_SensorQueue.offer(type, values[0], values[1], values[2],
+				event.timestamp);
+	}
+	
+	public static final int PREPROCESSED_ORIENTATION=-1;
+	
+	// feed in a sample from a recording being replayed. It's handed to the
+	// processing thread like everything else that touches the extractor, so
+	// this can be called from any thread (but only one)
+	public void onSensorValues(final int type, float[] values,
+			final long timestamp)
+	{
+		final float[] copy = values.clone();
+		m_Processor.post(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				replaySensorValues(type, copy, timestamp);
+			}
+		});
+	}
 
-		// Isolate the force of gravity with the low-pass filter.
-		filter_gravity[0] = alpha * filter_gravity[0] + (1 - alpha)
-				* values[0];
-		filter_gravity[1] = alpha * filter_gravity[1] + (1 - alpha)
-				* values[1];
-		filter_gravity[2] = alpha * filter_gravity[2] + (1 - alpha)
-				* values[2];
+	// on the processing thread. Latency is traced in the recording's time
+	private void replaySensorValues(int type, float[] values, long timestamp)
+	{
+		m_ReplayClock.set(timestamp);
+		useTracer(m_ReplayLatency);
+		if (type == Sensor.TYPE_ROTATION_VECTOR && values.length >= 4)
+		{
+			m_Router.onRotationVector(timestamp, values[0], values[1],
+					values[2], values[3]);
+		} else
+		{
+			m_Router.onSample(type, values[0], values[1], values[2],
+					timestamp);
+		}
 
-		// Remove the gravity contribution with the high-pass filter.
-		filter_linear_accel[0] = values[0] - filter_gravity[0];
-		filter_linear_accel[1] = values[1] - filter_gravity[1];
-		filter_linear_accel[2] = values[2] - filter_gravity[2];
+		updateDisplayEvery50ms(timestamp);
 	}
 
-	long lastDisplayTimestamp = 0L;
+	// switch the display's latency tracing between live and replayed samples
+	private void useTracer(LatencyTracer tracer)
+	{
+		if (m_Tracing != tracer)
+		{
+			m_Tracing = tracer;
+			if (m_Display != null)
+			{
+				m_Display.setTracer(tracer);
+			}
+		}
+	}
 
 	@Override
-	public void onSensorChanged(SensorEvent event)
+	public void onBatchProcessed()
 	{
-		onSensorValues(event.sensor.getType(),event.values,event.timestamp);
+		// live samples, from the queues
+		useTracer(m_Latency);
+		long timestamp = m_Extractor.getState().lastTimestamp;
+		updateDisplayEvery50ms(timestamp);
+		if (timestamp - lastCheckpointTimestamp > CHECKPOINT_INTERVAL_NS)
+		{
+			writeCheckpoint();
+			saveRollups();
+			lastCheckpointTimestamp = timestamp;
+		}
 	}
-	
-	public static final int PREPROCESSED_ORIENTATION=-1;
-	
-	public void onSensorValues(int type,float []values,long timestamp)
-	{
-		switch (type)
-		{
-		case Sensor.TYPE_LINEAR_ACCELERATION:
-			m_Extractor.onLinearAcceleration(timestamp, values[0],
-					values[1], values[2]);
-			break;
-		case PREPROCESSED_ORIENTATION:
-			m_Extractor.onOrientationChange(timestamp, values[0],
-					values[1],values[2]);
-			break;
-		case Sensor.TYPE_ROTATION_VECTOR:
-			SensorManager.getRotationMatrixFromVector(m_RotateMatrix,
-					values);
-			SensorManager.getOrientation(m_RotateMatrix, m_Orientation);
-			m_Extractor.onOrientationChange(timestamp, m_Orientation[0],
-					m_Orientation[1], m_Orientation[2]);
-			break;
-		case Sensor.TYPE_MAGNETIC_FIELD:
-			System.arraycopy(values, 0, m_MagneticFieldCache, 0, 3);
-			break;
-		case Sensor.TYPE_ACCELEROMETER:
-			filterAccelerometer(values);
-			if(valuesBeforeFilterStability>0)
+
+	// on the processing thread (or with it stopped), just copies the state
+	// into a buffer, the file is written in the background
+	private void writeCheckpoint()
+	{
+		ByteBuffer out = m_Checkpoint.begin();
+		if (out == null)
+		{
+			return;
+		}
+		try
+		{
+			out.put((byte) m_TimingState.ordinal());
+			out.putLong(totalTimeStartTimestamp);
+			out.putLong(swimTimeAtStartOfLength);
+			out.putLong(lastSwimTime);
+			out.putInt(lengthsCounted);
+			out.put((byte) (m_SessionStarted ? 1 : 0));
+			m_Extractor.saveState(out);
+			m_Checkpoint.commit(out);
+		} catch (BufferOverflowException e)
+		{
+			m_Checkpoint.abandon(out);
+			logError("checkpoint", "too big");
+		}
+	}
+
+	// carry on from the last checkpoint, if there is a recent one
+	private void restoreCheckpoint()
+	{
+		try
+		{
+			ByteBuffer in = m_Checkpoint.load(CHECKPOINT_MAX_AGE_MS);
+			if (in == null)
+			{
+				return;
+			}
+			TimingState timingState = TimingState.values()[in.get()];
+			long totalStart = in.getLong();
+			long swimTime = in.getLong();
+			long lastSwim = in.getLong();
+			int lengths = in.getInt();
+			boolean sessionStarted = in.get() != 0;
+			if (!m_Extractor.restoreState(in))
 			{
-				valuesBeforeFilterStability-=1;
+				logInfo("checkpoint", "different version, not restored");
 				return;
 			}
-			m_Extractor.onGlobalAcceleration(timestamp, values[0],
-					values[1], values[2]);
-			// double accelMagnitude = Math
-			// .sqrt((event.values[0] * event.values[0])
-			// / + (event.values[1] * event.values[1])
-			// + (event.values[2] * event.values[2]));
-			// if (Math.abs(accelMagnitude - SensorManager.GRAVITY_EARTH) < 1.0)
-			// {
-			SensorManager.getRotationMatrix(m_RotateMatrix, null,
-					filter_gravity, m_MagneticFieldCache);
-			SensorManager.getOrientation(m_RotateMatrix, m_Orientation);
-			m_Extractor.onOrientationChange(timestamp, m_Orientation[0],
-					m_Orientation[1], m_Orientation[2]);
-			// }
-			break;
-
-		}
-
-		if (timestamp - lastDisplayTimestamp > 50000000)
+			m_TimingState = timingState;
+			totalTimeStartTimestamp = totalStart;
+			swimTimeAtStartOfLength = swimTime;
+			lastSwimTime = lastSwim;
+			lengthsCounted = lengths;
+			m_SessionStarted = sessionStarted;
+			lastCheckpointTimestamp = m_Extractor.getState().lastTimestamp;
+			logInfo("checkpoint", "restored " + lengths + " lengths");
+		} catch (IOException e)
+		{
+			logError("checkpoint", e.toString());
+		} catch (BufferUnderflowException e)
+		{
+			// a fresh extractor rather than a half restored one
+			m_Extractor = new SwimMetricExtractor(this);
+			m_Router.setExtractor(m_Extractor);
+			logError("checkpoint", "truncated");
+		}
+	}
+
+	private void updateDisplayEvery50ms(long timestamp)
+	{
+		if (timestamp - lastDisplayTimestamp > DISPLAY_INTERVAL_NS)
 		{
 			State state = m_Extractor.getState();
 			updateDisplay(state);
@@ -259,16 +546,15 @@ public class LiveCounterActivity extends Activity implements
 
 	private void updateDisplay(State state)
 	{
-		if(m_JavascriptCallbackName!=null && (m_TimingState==TimingState.TIMING_STARTED || m_TimingState==TimingState.TIMING_AUTOSTOP))
+		if(m_Display.isReady() && (m_TimingState==TimingState.TIMING_STARTED || m_TimingState==TimingState.TIMING_AUTOSTOP))
 		{
 			long totalTime=state.lastTimestamp-totalTimeStartTimestamp;
 			long swimTime=swimTimeAtStartOfLength+state.timeInLength;
 
 			if(swimTime<lastSwimTime)swimTime=lastSwimTime;
 			lastSwimTime=swimTime;
-			String jsCallString=String.format(Locale.UK,"javascript:%s.onIntermediateTimes(%f,%f,%d,%f)", m_JavascriptCallbackName,((double) totalTime) / 1000000000.0,((double) swimTime) / 1000000000.0,lengthsCounted,((double) state.timeInLength) / 1000000000.0);
-//			Log.e("js",m_WebView.getProgress()+":"+jsCallString);
-			m_WebView.loadUrl(jsCallString);
+			m_Display.intermediateTimes(totalTime, swimTime, lengthsCounted, state.timeInLength,
+					state.lastTimestamp);
 		}		
 	}
 
@@ -280,17 +566,19 @@ public class LiveCounterActivity extends Activity implements
 			State state = m_Extractor.getState();
 			lengthsCounted+=1;		
 			swimTimeAtStartOfLength+=stats.lengthTime;			
-			if(m_JavascriptCallbackName!=null)
+			if(m_Display.isReady())
 			{
 				long totalTime=state.lastTimestamp-totalTimeStartTimestamp;
-				String jsCallString=String.format(Locale.UK,"javascript:%s.onLengthDone(%f,%f,%d,%f,%d,\"%s\",\"%s\")", m_JavascriptCallbackName,((double) totalTime) / 1000000000.0,((double) swimTimeAtStartOfLength) / 1000000000.0,lengthsCounted,((double) stats.lengthTime) / 1000000000.0, stats.strokes,
-						stats.stroke.toString(),stats.turnType.toString());				
-				m_WebView.loadUrl(jsCallString);				
+				m_Tracing.detected(LatencyTracer.PATH_LENGTH_DONE, stats.lengthStart+stats.lengthTime, state.lastTimestamp);
+				m_Display.lengthDone(totalTime, swimTimeAtStartOfLength, lengthsCounted, stats.lengthTime, stats.strokes,
+						stats.stroke.toString(),stats.turnType.toString(), state.lastTimestamp);
 			}
 		}		
-		Log.v("length", String.format("%f,%d,%s,%s",
+		storeLength(stats);
+		Log.v("length", String.format("%f,%d,%s,%s,%.1f",
 				((double) stats.lengthTime) / 1000000000.0, stats.strokes,
-				stats.stroke.toString(), stats.turnType.toString()));
+				stats.stroke.toString(), stats.turnType.toString(),
+				stats.rateStrokes));
 		if(m_TimingState==TimingState.TIMING_AUTOSTART)
 		{
 			m_TimingState=TimingState.TIMING_STOPPED;
@@ -298,22 +586,95 @@ public class LiveCounterActivity extends Activity implements
 			
 	}
 
+	private File rollupsFile()
+	{
+		return new File(new File(getFilesDir(), "history"), "rollups.dat");
+	}
+
+	// on the processing thread
+	private void loadRollups()
+	{
+		try
+		{
+			m_Rollups.load(rollupsFile());
+		} catch (IOException e)
+		{
+			// load leaves them empty, so they get rebuilt from the store
+			logError("rollups", e.toString());
+		}
+		long applied = m_Rollups.lengthsApplied();
+		try
+		{
+			m_Rollups.catchUp(m_Store);
+		} catch (IOException e)
+		{
+			logError("rollups", e.toString());
+		}
+		// so the next save doesn't have to catch up all over again
+		m_RollupsChanged = m_Rollups.lengthsApplied() != applied;
+	}
+
+	// on the processing thread (or with it stopped), if any lengths have
+	// been added since the last save
+	private void saveRollups()
+	{
+		if (m_Store == null || !m_RollupsChanged)
+		{
+			return;
+		}
+		try
+		{
+			m_Rollups.save(rollupsFile());
+			m_RollupsChanged = false;
+		} catch (IOException e)
+		{
+			logError("rollups", e.toString());
+		}
+	}
+
+	private void storeLength(LengthStatistics stats)
+	{
+		if (m_Store == null)
+		{
+			return;
+		}
+		// sensor timestamps aren't wall clock time, work back from now
+		State state = m_Extractor.getState();
+		long startMillis = System.currentTimeMillis()
+				- (state.lastTimestamp - stats.lengthStart) / 1000000L;
+		try
+		{
+			if (!m_SessionStarted)
+			{
+				m_Store.startSession(startMillis);
+				m_SessionStarted = true;
+			}
+			m_Store.append(stats, startMillis);
+			m_Rollups.add(startMillis, stats.lengthTime, stats.strokes,
+					stats.stroke, stats.turnType);
+			m_RollupsChanged = true;
+		} catch (IOException e)
+		{
+			logError("store", e.toString());
+		}
+	}
+
 	@Override
 	public void logError(String tag, String value)
 	{
-		Log.e(tag, value);
+		m_Log.text(EventLog.ERROR, tag, value);
 	}
 
 	@Override
 	public void logInfo(String tag, String value)
 	{
-		Log.v(tag, value);
+		m_Log.text(EventLog.VERBOSE, tag, value);
 	}
 
 	@Override
 	public void onEvent(EventPoint event)
 	{	
-		Log.e("evt",event.m_Type+":"+event.m_Value);
+		m_Log.event(EventLog.ERROR, event.m_Type, event.m_Value);
 		if(m_TimingState==TimingState.TIMING_AUTOSTART && event.m_Type==EventType.EVENT_START)
 		{
 			m_TimingState=TimingState.TIMING_STARTED;
@@ -321,16 +682,16 @@ public class LiveCounterActivity extends Activity implements
 		}
 		if(m_TimingState!=TimingState.TIMING_STOPPED)
 		{
-			if(m_JavascriptCallbackName!=null)
+			if(m_Display.isReady())
 			{
 				State state = m_Extractor.getState();
 				long totalTime=state.lastTimestamp-totalTimeStartTimestamp;
 				long swimTime=swimTimeAtStartOfLength+state.timeInLength;
 				if(swimTime<lastSwimTime)swimTime=lastSwimTime;
 				lastSwimTime=swimTime;
-				String jsCallString=String.format(Locale.UK,"javascript:%s.onIntermediateData(%f,%f,%d,%f,%d,\"%s\")", m_JavascriptCallbackName,((double) totalTime) / 1000000000.0,((double) swimTime) / 1000000000.0,lengthsCounted,((double) state.timeInLength) / 1000000000.0, state.count,
-						state.stroke.toString());				
-				m_WebView.loadUrl(jsCallString);
+				m_Tracing.detected(LatencyTracer.PATH_INTERMEDIATE_DATA, event.timestamp, state.lastTimestamp);
+				m_Display.intermediateData(totalTime, swimTime, lengthsCounted, state.timeInLength, state.count,
+						state.stroke.toString(), state.lastTimestamp);
 			}
 			
 		}
@@ -360,23 +721,35 @@ public class LiveCounterActivity extends Activity implements
 	long lastSwimTime=0;
 	
 	int lengthsCounted=0;
-	boolean usingNetworkSensors=false;
+	volatile boolean usingNetworkSensors=false;
 
-	float[] netValues=new float[3];
 	@Override
 	public void onNetworkSensor(int type, float x, float y, float z,long timestamp)
 	{
-		netValues[0]=x;
-		netValues[1]=y;
-		netValues[2]=z;
 		useNetworkSensors();
-		onSensorValues(type,netValues,timestamp);		
+		m_NetworkQueue.offer(type, x, y, z, timestamp);
 	}
 
 	@Override
 	public void onNetworkConnect()
+	{
+		// the extractor belongs to the processing thread
+		m_Processor.post(new Runnable()
+		{
+			public void run()
+			{
+				resetForNewConnection();
+			}
+		});
+	}
+
+	private void resetForNewConnection()
 	{
 		m_Extractor = new SwimMetricExtractor(this);
+		m_Extractor.getProfiler().setEnabled(PROFILE_EXTRACTOR);
+		m_Router.setExtractor(m_Extractor);
+		m_Router.getMerger().reset();
+		m_SessionStarted = false;
 		m_TimingState=TimingState.TIMING_AUTOSTART;
 		lastDisplayTimestamp=0L;
 		swimTimeAtStartOfLength=0;
@@ -0,0 +1,373 @@
+package com.joemarshall.swimcounter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+import com.joemarshall.swimcounter.SwimMetricExtractor.EventPoint;
+import com.joemarshall.swimcounter.SwimMetricExtractor.LengthStatistics;
+
+// headless replay of recorded sensor logs through SwimMetricExtractor,
+// so long sessions can be reprocessed on a desktop JVM instead of on the phone
+//
+// usage: java com.joemarshall.swimcounter.LogReplay [-v] [-adaptive]
+//            [-resample hz] [-reorder ms] [-profile] [-latency]
+//            log.csv [log2.swr ...]
+// (recordings can be csv or the binary format from SensorRecordingWriter)
+// prints one line per length, in the same format as the length log on the phone
+// -profile prints the extractor's per stage timings after each recording
+// -latency prints how far behind the sensors the display would be (see
+// LatencyTracer), in the recording's time, with the display updated as often
+// as LiveCounterActivity does
+public class LogReplay implements SwimMetricExtractor.Callback
+{
+	interface Callback
+	{
+		// called for every length the extractor writes out
+		public void onLengthComplete(LengthStatistics stats);
+	}
+
+	private Callback m_Callback;
+	private ExtractorConfig m_Config;
+	private SwimMetricExtractor m_Extractor;
+	private SensorRouter m_Router;
+	private SampleRateController m_RateController = null;
+	private double m_ResampleRate = 0;
+	private long m_ReorderWindow = 0;
+	private boolean m_Profile = false;
+	// null unless tracing latency
+	private LatencyTracer m_Latency = null;
+	private LatencyTracer.SimulatedClock m_Clock = new LatencyTracer.SimulatedClock();
+	private long m_LastDisplayTimestamp = 0L;
+	private SensorTrace m_Block = new SensorTrace(
+			SensorRecordingWriter.MAX_BLOCK_SAMPLES);
+	public boolean verbose = false;
+
+	static final int REORDER_CAPACITY = 4096;
+
+	public LogReplay(Callback cb)
+	{
+		this(cb, ExtractorConfig.DEFAULT);
+	}
+
+	public LogReplay(Callback cb, ExtractorConfig config)
+	{
+		m_Callback = cb;
+		m_Config = config;
+		m_Extractor = new SwimMetricExtractor(this, config);
+		m_Router = new SensorRouter(m_Extractor);
+	}
+
+	public SwimMetricExtractor getExtractor()
+	{
+		return m_Extractor;
+	}
+
+	// start again with a fresh extractor, e.g. before replaying another session
+	public void reset()
+	{
+		m_Extractor = new SwimMetricExtractor(this, m_Config);
+		m_Router = new SensorRouter(m_Extractor);
+		m_Router.setResampleRate(m_ResampleRate);
+		m_Router.setReorderWindow(m_ReorderWindow, REORDER_CAPACITY);
+		m_Extractor.getProfiler().setEnabled(m_Profile);
+		m_Clock.reset();
+		m_LastDisplayTimestamp = 0L;
+		if (m_Latency != null)
+		{
+			m_Latency.clear();
+		}
+		if (m_RateController != null)
+		{
+			m_RateController = new SampleRateController(m_Router, null);
+		}
+	}
+
+	// drop the sample rate while resting, as SampleRateController would on
+	// the phone
+	public void setAdaptiveRate(boolean adaptive)
+	{
+		m_RateController = adaptive ? new SampleRateController(m_Router, null)
+				: null;
+	}
+
+	// resample everything to rateHz first (0 for off)
+	public void setResampleRate(double rateHz)
+	{
+		m_ResampleRate = rateHz;
+		m_Router.setResampleRate(rateHz);
+	}
+
+	// put samples back in timestamp order, allowing them to be up to
+	// windowNs late (0 for off)
+	public void setReorderWindow(long windowNs)
+	{
+		m_ReorderWindow = windowNs;
+		m_Router.setReorderWindow(windowNs, REORDER_CAPACITY);
+	}
+
+	// time each stage of the extractor (see StageProfiler)
+	public void setProfiling(boolean profile)
+	{
+		m_Profile = profile;
+		m_Extractor.getProfiler().setEnabled(profile);
+	}
+
+	// trace the delay from samples to display updates (see LatencyTracer)
+	public void setLatencyTracing(boolean trace)
+	{
+		m_Latency = trace ? new LatencyTracer(m_Clock) : null;
+	}
+
+	public LatencyTracer getLatencyTracer()
+	{
+		return m_Latency;
+	}
+
+	public SampleRateController getRateController()
+	{
+		return m_RateController;
+	}
+
+	// replay the whole of a recording, returns the number of samples processed
+	// samples are read a block at a time and handed to the extractor in batches
+	public long replay(File path) throws IOException
+	{
+		long samples = 0;
+		if (SensorRecordingReader.isRecording(path))
+		{
+			SensorRecordingReader reader = new SensorRecordingReader(path);
+			try
+			{
+				while (true)
+				{
+					m_Block.clear();
+					if (!reader.readBlock(m_Block))
+					{
+						break;
+					}
+					feedBlock();
+				}
+				samples = reader.samplesRead;
+			} finally
+			{
+				reader.close();
+			}
+			m_Router.flush();
+		} else
+		{
+			CsvSensorReader reader = new CsvSensorReader(path);
+			try
+			{
+				boolean more;
+				do
+				{
+					m_Block.clear();
+					more = reader.readChunk(m_Block);
+					feedBlock();
+				} while (more);
+				samples = reader.samplesRead;
+			} finally
+			{
+				reader.close();
+			}
+			m_Router.flush();
+		}
+		return samples;
+	}
+
+	private void feedBlock()
+	{
+		if (m_Latency != null)
+		{
+			feedTraced();
+			return;
+		}
+		if (m_RateController != null)
+		{
+			m_RateController.onSamples(m_Block.types, m_Block.timestamps,
+					m_Block.values, m_Block.count);
+			return;
+		}
+		m_Router.onSamples(m_Block.types, m_Block.timestamps, m_Block.values,
+				m_Block.count);
+	}
+
+	// a sample at a time, each arriving at its own timestamp, with the display
+	// updated as LiveCounterActivity does after every batch
+	private void feedTraced()
+	{
+		for (int c = 0; c < m_Block.count; c++)
+		{
+			long timestamp = m_Block.timestamps[c];
+			m_Clock.set(timestamp);
+			SensorSampleSink sink = m_RateController != null ? m_RateController
+					: m_Router;
+			sink.onSample(m_Block.types[c], m_Block.values[c * 3],
+					m_Block.values[c * 3 + 1], m_Block.values[c * 3 + 2],
+					timestamp);
+			long processed = m_Extractor.getState().lastTimestamp;
+			if (processed - m_LastDisplayTimestamp > LiveCounterActivity.DISPLAY_INTERVAL_NS)
+			{
+				m_Latency.handoff(LatencyTracer.PATH_INTERMEDIATE_TIMES,
+						processed);
+				m_LastDisplayTimestamp = processed;
+			}
+		}
+	}
+
+	// read a recording in either binary or csv form into sink, returns the
+	// number of samples read
+	public static long readRecording(File path, SensorSampleSink sink)
+			throws IOException
+	{
+		if (SensorRecordingReader.isRecording(path))
+		{
+			SensorRecordingReader reader = new SensorRecordingReader(path);
+			try
+			{
+				return reader.readAll(sink);
+			} finally
+			{
+				reader.close();
+			}
+		}
+		CsvSensorReader reader = new CsvSensorReader(path);
+		try
+		{
+			return reader.readAll(sink);
+		} finally
+		{
+			reader.close();
+		}
+	}
+
+	@Override
+	public void onEvent(EventPoint event)
+	{
+		if (m_Latency != null)
+		{
+			long processed = m_Extractor.getState().lastTimestamp;
+			m_Latency.detected(LatencyTracer.PATH_INTERMEDIATE_DATA,
+					event.timestamp, processed);
+			m_Latency.handoff(LatencyTracer.PATH_INTERMEDIATE_DATA, processed);
+		}
+	}
+
+	@Override
+	public void onLengthComplete(LengthStatistics stats)
+	{
+		if (m_Latency != null)
+		{
+			long processed = m_Extractor.getState().lastTimestamp;
+			m_Latency.detected(LatencyTracer.PATH_LENGTH_DONE, stats.lengthStart
+					+ stats.lengthTime, processed);
+			m_Latency.handoff(LatencyTracer.PATH_LENGTH_DONE, processed);
+		}
+		m_Callback.onLengthComplete(stats);
+	}
+
+	@Override
+	public void logError(String tag, String value)
+	{
+		if (verbose)
+		{
+			System.err.println(tag + ":" + value);
+		}
+	}
+
+	@Override
+	public void logInfo(String tag, String value)
+	{
+		if (verbose)
+		{
+			System.err.println(tag + ":" + value);
+		}
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		LogReplay replay = new LogReplay(new Callback()
+		{
+			public void onLengthComplete(LengthStatistics stats)
+			{
+				System.out.println(String.format(Locale.UK, "%f,%d,%s,%s,%.1f",
+						((double) stats.lengthTime) / 1000000000.0,
+						stats.strokes, stats.stroke.toString(),
+						stats.turnType.toString(), stats.rateStrokes));
+			}
+		});
+		for (int c = 0; c < args.length; c++)
+		{
+			String arg = args[c];
+			if (arg.equals("-v"))
+			{
+				replay.verbose = true;
+				continue;
+			}
+			if (arg.equals("-adaptive"))
+			{
+				replay.setAdaptiveRate(true);
+				continue;
+			}
+			if (arg.equals("-reorder") && c + 1 < args.length)
+			{
+				replay.setReorderWindow((long) (Double
+						.parseDouble(args[++c]) * 1000000.0));
+				continue;
+			}
+			if (arg.equals("-profile"))
+			{
+				replay.setProfiling(true);
+				continue;
+			}
+			if (arg.equals("-latency"))
+			{
+				replay.setLatencyTracing(true);
+				continue;
+			}
+			if (arg.equals("-resample") && c + 1 < args.length)
+			{
+				replay.setResampleRate(Double.parseDouble(args[++c]));
+				continue;
+			}
+			replay.reset();
+			long startTime = System.nanoTime();
+			long samples = replay.replay(new File(arg));
+			double seconds = (System.nanoTime() - startTime) / 1000000000.0;
+			System.err.println(String.format(Locale.UK,
+					"%s: %d samples in %.3fs (%.0f samples/s)", arg, samples,
+					seconds, samples / seconds));
+			Resampler resampler = replay.m_Router.getResampler();
+			if (resampler != null)
+			{
+				System.err.println(String.format(Locale.UK,
+						"%s: resampled %d samples to %d", arg,
+						resampler.samplesIn, resampler.samplesOut));
+			}
+			TimestampMerger merger = replay.m_Router.getMerger();
+			if (merger != null)
+			{
+				System.err.println(String.format(Locale.UK,
+						"%s: %d reordered, %d late, %d forced", arg,
+						merger.reordered, merger.late, merger.forced));
+			}
+			SampleRateController rate = replay.getRateController();
+			if (rate != null)
+			{
+				System.err.println(String.format(Locale.UK,
+						"%s: %d samples used, %d skipped, %.1fs at low rate",
+						arg, rate.samplesPassed, rate.samplesSkipped,
+						rate.slowTimeNs / 1000000000.0));
+			}
+			if (replay.m_Profile)
+			{
+				System.err.print(replay.m_Extractor.getProfiler().snapshot());
+			}
+			if (replay.m_Latency != null)
+			{
+				System.err.print(replay.m_Latency.snapshot());
+			}
+		}
+	}
+}
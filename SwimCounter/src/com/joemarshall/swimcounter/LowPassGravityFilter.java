@@ -0,0 +1,45 @@
+package com.joemarshall.swimcounter;
+
+// the original gravity filter: a fixed low pass per sample, ignoring the
+// gyroscope and the sample rate. Needs a good number of samples to settle
+// from zero
+public class LowPassGravityFilter implements GravityFilter
+{
+	private static final float ALPHA = 0.95f;
+	private static final int SAMPLES_BEFORE_STABLE = 50;
+
+	private float[] m_Gravity = new float[3];
+	private int m_ValuesBeforeFilterStability = SAMPLES_BEFORE_STABLE;
+
+	@Override
+	public boolean onAccelerometer(long timestamp, float x, float y, float z)
+	{
+		m_Gravity[0] = ALPHA * m_Gravity[0] + (1 - ALPHA) * x;
+		m_Gravity[1] = ALPHA * m_Gravity[1] + (1 - ALPHA) * y;
+		m_Gravity[2] = ALPHA * m_Gravity[2] + (1 - ALPHA) * z;
+		if (m_ValuesBeforeFilterStability > 0)
+		{
+			m_ValuesBeforeFilterStability -= 1;
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public void onGyroscope(long timestamp, float x, float y, float z)
+	{
+	}
+
+	@Override
+	public float[] getGravity()
+	{
+		return m_Gravity;
+	}
+
+	@Override
+	public void reset()
+	{
+		m_Gravity[0] = m_Gravity[1] = m_Gravity[2] = 0;
+		m_ValuesBeforeFilterStability = SAMPLES_BEFORE_STABLE;
+	}
+}
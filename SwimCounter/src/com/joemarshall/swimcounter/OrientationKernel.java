@@ -0,0 +1,89 @@
+package com.joemarshall.swimcounter;
+
+// the orientation maths from android.hardware.SensorManager
+// (getRotationMatrixFromVector / getRotationMatrix followed by getOrientation)
+// worked straight from the quaternion or the gravity and magnetic vectors,
+// without building the 3x3 matrix or touching the android runtime
+//
+// Only the three matrix entries getOrientation reads are computed, with the
+// same float arithmetic, so the results match SensorManager's. They are left
+// in yaw, pitch and roll (radians, azimuth / pitch / roll as getOrientation
+// gives them), ready for SwimMetricExtractor.onOrientationChange. Nothing is
+// allocated, so it is fine to call on every sample.
+public class OrientationKernel
+{
+	public float yaw = 0;
+	public float pitch = 0;
+	public float roll = 0;
+
+	// a unit quaternion, as the first four values of a rotation vector event
+	// (x,y,z,w)
+	public void fromQuaternion(float x, float y, float z, float w)
+	{
+		float sq_x = 2 * x * x;
+		float sq_y = 2 * y * y;
+		float sq_z = 2 * z * z;
+		float xy = 2 * x * y;
+		float zw = 2 * z * w;
+		float xz = 2 * x * z;
+		float yw = 2 * y * w;
+		float yz = 2 * y * z;
+		float xw = 2 * x * w;
+
+		// R[1], R[4], R[6], R[7], R[8] of getRotationMatrixFromVector
+		float r1 = xy - zw;
+		float r4 = 1 - sq_x - sq_z;
+		float r6 = xz - yw;
+		float r7 = yz + xw;
+		float r8 = 1 - sq_x - sq_y;
+		setFromMatrix(r1, r4, r6, r7, r8);
+	}
+
+	// a rotation vector with only x,y,z (e.g. from a recording or the
+	// network), w is worked out from them being a unit quaternion
+	public void fromRotationVector(float x, float y, float z)
+	{
+		float w = 1 - x * x - y * y - z * z;
+		w = (w > 0) ? (float) Math.sqrt(w) : 0;
+		fromQuaternion(x, y, z, w);
+	}
+
+	// orientation from gravity (accelerometer, device coordinates) and the
+	// magnetic field. Returns false and leaves yaw, pitch and roll as they
+	// were if the two are too close to parallel (or one is zero) to say which
+	// way is north, the same case where getRotationMatrix returns false
+	public boolean fromGravityAndMagnetic(float ax, float ay, float az,
+			float ex, float ey, float ez)
+	{
+		// east = magnetic x gravity
+		float hx = ey * az - ez * ay;
+		float hy = ez * ax - ex * az;
+		float hz = ex * ay - ey * ax;
+		float normH = (float) Math.sqrt(hx * hx + hy * hy + hz * hz);
+		if (normH < 0.1f)
+		{
+			return false;
+		}
+		float invH = 1.0f / normH;
+		hx *= invH;
+		hy *= invH;
+		hz *= invH;
+		float invA = 1.0f / (float) Math.sqrt(ax * ax + ay * ay + az * az);
+		ax *= invA;
+		ay *= invA;
+		az *= invA;
+		// north = gravity x east, only the y component is needed
+		float my = az * hx - ax * hz;
+
+		// rows of the matrix are east, north, up
+		setFromMatrix(hy, my, ax, ay, az);
+		return true;
+	}
+
+	private void setFromMatrix(float r1, float r4, float r6, float r7, float r8)
+	{
+		yaw = (float) Math.atan2(r1, r4);
+		pitch = (float) Math.asin(-r7);
+		roll = (float) Math.atan2(-r6, r8);
+	}
+}
@@ -0,0 +1,310 @@
+package com.joemarshall.swimcounter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.joemarshall.swimcounter.SwimMetricExtractor.LengthStatistics;
+
+// runs a grid of extractor configs over a corpus of labelled recordings, in
+// parallel on every core, and reports how far off each config is
+//
+// usage: java com.joemarshall.swimcounter.ParameterSweep corpusdir
+//            [-grid name=v1,v2,...] [-grid name=v1,v2,...] ...
+// names are the ones ExtractorConfig.Builder.set takes (times in seconds).
+//
+// every recording (.csv or .swr) in corpusdir with a matching .labels file is
+// used. Labels have one line per length: "seconds,strokes". Detected lengths
+// are compared with the labels in order.
+public class ParameterSweep
+{
+	static class Recording
+	{
+		File file;
+		double[] lengthSeconds;
+		int[] strokes;
+	}
+
+	// error totals for one config
+	static class Result
+	{
+		ExtractorConfig config;
+		int lengthCountError = 0;
+		int labelledLengths = 0;
+		int comparedLengths = 0;
+		double strokeError = 0;
+		double timeError = 0;
+
+		synchronized void add(Recording recording, List<LengthStatistics> lengths)
+		{
+			int labelled = recording.strokes.length;
+			int compared = Math.min(labelled, lengths.size());
+			lengthCountError += Math.abs(lengths.size() - labelled);
+			labelledLengths += labelled;
+			comparedLengths += compared;
+			for (int c = 0; c < compared; c++)
+			{
+				LengthStatistics stats = lengths.get(c);
+				strokeError += Math.abs(stats.strokes - recording.strokes[c]);
+				timeError += Math.abs(stats.lengthTime / 1000000000.0
+						- recording.lengthSeconds[c]);
+			}
+		}
+
+		double meanStrokeError()
+		{
+			return comparedLengths > 0 ? strokeError / comparedLengths : 0;
+		}
+
+		double meanTimeError()
+		{
+			return comparedLengths > 0 ? timeError / comparedLengths : 0;
+		}
+	}
+
+	static List<Recording> loadCorpus(File dir) throws IOException
+	{
+		ArrayList<Recording> corpus = new ArrayList<Recording>();
+		File[] files = dir.listFiles();
+		if (files == null)
+		{
+			throw new IOException("can't read " + dir);
+		}
+		for (File file : files)
+		{
+			String name = file.getName();
+			int dot = name.lastIndexOf('.');
+			if (dot < 0 || name.endsWith(".labels"))
+			{
+				continue;
+			}
+			File labels = new File(dir, name.substring(0, dot) + ".labels");
+			if (!labels.exists())
+			{
+				continue;
+			}
+			Recording recording = new Recording();
+			recording.file = file;
+			ArrayList<Double> seconds = new ArrayList<Double>();
+			ArrayList<Integer> strokes = new ArrayList<Integer>();
+			BufferedReader in = new BufferedReader(new FileReader(labels));
+			try
+			{
+				String line;
+				int lineNumber = 0;
+				while ((line = in.readLine()) != null)
+				{
+					lineNumber++;
+					line = line.trim();
+					if (line.length() == 0 || line.startsWith("#"))
+					{
+						continue;
+					}
+					String[] row = line.split(",");
+					try
+					{
+						if (row.length < 2)
+						{
+							throw new NumberFormatException(
+									"expected length seconds,strokes");
+						}
+						seconds.add(Double.parseDouble(row[0].trim()));
+						strokes.add(Integer.parseInt(row[1].trim()));
+					} catch (NumberFormatException e)
+					{
+						throw new IOException(labels + ":" + lineNumber + ": "
+								+ e.getMessage());
+					}
+				}
+			} finally
+			{
+				in.close();
+			}
+			recording.lengthSeconds = new double[seconds.size()];
+			recording.strokes = new int[strokes.size()];
+			for (int c = 0; c < seconds.size(); c++)
+			{
+				recording.lengthSeconds[c] = seconds.get(c);
+				recording.strokes[c] = strokes.get(c);
+			}
+			corpus.add(recording);
+		}
+		return corpus;
+	}
+
+	// every combination of the grid values, on top of the default config
+	static List<ExtractorConfig> expandGrid(List<String> names,
+			List<double[]> values)
+	{
+		ArrayList<ExtractorConfig> configs = new ArrayList<ExtractorConfig>();
+		int[] index = new int[names.size()];
+		while (true)
+		{
+			ExtractorConfig.Builder builder = new ExtractorConfig.Builder();
+			for (int c = 0; c < index.length; c++)
+			{
+				builder.set(names.get(c), values.get(c)[index[c]]);
+			}
+			configs.add(builder.build());
+			// odometer style increment
+			int c = 0;
+			while (c < index.length && ++index[c] == values.get(c).length)
+			{
+				index[c] = 0;
+				c++;
+			}
+			if (c == index.length)
+			{
+				return configs;
+			}
+		}
+	}
+
+	public static List<Result> run(List<ExtractorConfig> configs,
+			List<Recording> corpus, int threads) throws Exception
+	{
+		ArrayList<Result> results = new ArrayList<Result>();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try
+		{
+			ArrayList<Future<?>> tasks = new ArrayList<Future<?>>();
+			// one task per config and recording, so a big corpus or a big
+			// grid both spread over all the cores
+			for (ExtractorConfig config : configs)
+			{
+				final Result result = new Result();
+				result.config = config;
+				results.add(result);
+				for (final Recording recording : corpus)
+				{
+					final ExtractorConfig taskConfig = config;
+					tasks.add(pool.submit(new Runnable()
+					{
+						public void run()
+						{
+							final ArrayList<LengthStatistics> lengths = new ArrayList<LengthStatistics>();
+							LogReplay replay = new LogReplay(
+									new LogReplay.Callback()
+									{
+										public void onLengthComplete(
+												LengthStatistics stats)
+										{
+											lengths.add(stats);
+										}
+									}, taskConfig);
+							try
+							{
+								replay.replay(recording.file);
+							} catch (IOException e)
+							{
+								throw new RuntimeException(recording.file
+										+ ": " + e, e);
+							}
+							result.add(recording, lengths);
+						}
+					}));
+				}
+			}
+			for (Future<?> task : tasks)
+			{
+				task.get();
+			}
+		} finally
+		{
+			pool.shutdown();
+		}
+		return results;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		if (args.length < 1)
+		{
+			System.err.println("usage: ParameterSweep corpusdir [-grid name=v1,v2,...]...");
+			return;
+		}
+		ArrayList<String> names = new ArrayList<String>();
+		ArrayList<double[]> values = new ArrayList<double[]>();
+		for (int c = 1; c < args.length; c++)
+		{
+			if (args[c].equals("-grid") && c + 1 < args.length)
+			{
+				String[] parts = args[++c].split("=");
+				if (parts.length != 2)
+				{
+					System.err.println("bad grid " + args[c]
+							+ ", should be name=v1,v2,...");
+					return;
+				}
+				String[] list = parts[1].split(",");
+				double[] grid = new double[list.length];
+				try
+				{
+					for (int d = 0; d < list.length; d++)
+					{
+						grid[d] = Double.parseDouble(list[d]);
+					}
+				} catch (NumberFormatException e)
+				{
+					System.err.println("bad grid " + args[c] + ": "
+							+ e.getMessage());
+					return;
+				}
+				if (!new ExtractorConfig.Builder().set(parts[0], 0))
+				{
+					System.err.println("unknown setting " + parts[0]);
+					return;
+				}
+				names.add(parts[0]);
+				values.add(grid);
+			}
+		}
+		List<Recording> corpus = loadCorpus(new File(args[0]));
+		List<ExtractorConfig> configs = expandGrid(names, values);
+		int threads = Runtime.getRuntime().availableProcessors();
+		System.err.println(String.format(Locale.UK,
+				"%d configs x %d recordings on %d threads", configs.size(),
+				corpus.size(), threads));
+		long start = System.nanoTime();
+		List<Result> results = run(configs, corpus, threads);
+		System.err.println(String.format(Locale.UK, "took %.1fs",
+				(System.nanoTime() - start) / 1e9));
+
+		// best first: fewest wrong length counts, then stroke error, then
+		// time error
+		Collections.sort(results, new Comparator<Result>()
+		{
+			public int compare(Result a, Result b)
+			{
+				if (a.lengthCountError != b.lengthCountError)
+				{
+					return a.lengthCountError < b.lengthCountError ? -1 : 1;
+				}
+				int strokes = Double.compare(a.meanStrokeError(),
+						b.meanStrokeError());
+				if (strokes != 0)
+				{
+					return strokes;
+				}
+				return Double.compare(a.meanTimeError(), b.meanTimeError());
+			}
+		});
+		System.out.println("length count error,labelled lengths,mean stroke error,mean time error,config");
+		for (Result result : results)
+		{
+			System.out.println(String.format(Locale.UK, "%d,%d,%.3f,%.3f,%s",
+					result.lengthCountError, result.labelledLengths,
+					result.meanStrokeError(), result.meanTimeError(),
+					result.config));
+		}
+	}
+}
@@ -0,0 +1,283 @@
+package com.joemarshall.swimcounter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import com.joemarshall.swimcounter.SwimMetricExtractor.LengthStatistics;
+
+// replays every recording in a corpus directory and checks that the
+// extractor still gives exactly the same lengths, and is no slower, than
+// when the golden files were written
+//
+// usage: java com.joemarshall.swimcounter.RegressionCheck corpusdir
+//            [-update] [-tolerance 0.1] [-repeat 5]
+//
+// for each recording (.csv or .swr) there is
+// <name>.golden - one line per length: lengthTime,strokes,stroke,turnType,direction
+// <name>.perf - samples/s and allocated bytes/sample from the baseline run
+// -update rewrites both from the current code. Without it, any changed field
+// or a drop in samples/s of more than tolerance (a fraction) is reported, and
+// the exit code is 1. Speed is the best of -repeat runs, after a warm up run.
+public class RegressionCheck
+{
+	static final String GOLDEN_SUFFIX = ".golden";
+	static final String PERF_SUFFIX = ".perf";
+
+	private List<String> m_Lengths = new ArrayList<String>();
+	private LogReplay m_Replay;
+	private AllocationCounter m_Allocations = new AllocationCounter();
+
+	private double m_Tolerance = 0.1;
+	private int m_Repeat = 5;
+	private int m_Failures = 0;
+
+	public RegressionCheck()
+	{
+		m_Replay = new LogReplay(new LogReplay.Callback()
+		{
+			public void onLengthComplete(LengthStatistics stats)
+			{
+				m_Lengths.add(formatLength(stats));
+			}
+		});
+	}
+
+	// every field, at full precision, so any change at all shows up
+	static String formatLength(LengthStatistics stats)
+	{
+		return stats.lengthTime + "," + stats.strokes + "," + stats.stroke
+				+ "," + stats.turnType + "," + Double.toString(stats.direction);
+	}
+
+	static List<String> readLines(File file) throws IOException
+	{
+		ArrayList<String> lines = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try
+		{
+			String line;
+			while ((line = in.readLine()) != null)
+			{
+				if (line.length() > 0 && !line.startsWith("#"))
+				{
+					lines.add(line);
+				}
+			}
+		} finally
+		{
+			in.close();
+		}
+		return lines;
+	}
+
+	static void writeLines(File file, String header, List<String> lines)
+			throws IOException
+	{
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		try
+		{
+			out.println(header);
+			for (String line : lines)
+			{
+				out.println(line);
+			}
+		} finally
+		{
+			out.close();
+		}
+	}
+
+	static File sibling(File recording, String suffix)
+	{
+		String name = recording.getName();
+		int dot = name.lastIndexOf('.');
+		return new File(recording.getParentFile(), name.substring(0, dot)
+				+ suffix);
+	}
+
+	static boolean isRecording(File file)
+	{
+		String name = file.getName();
+		return name.endsWith(".csv") || name.endsWith(".swr");
+	}
+
+	private void fail(String message)
+	{
+		System.out.println("FAIL " + message);
+		m_Failures++;
+	}
+
+	// compare lengths field by field against the golden lines
+	private void compareLengths(String name, List<String> golden)
+	{
+		if (golden.size() != m_Lengths.size())
+		{
+			fail(String.format(Locale.UK, "%s: %d lengths, golden has %d",
+					name, m_Lengths.size(), golden.size()));
+		}
+		String[] fields = { "lengthTime", "strokes", "stroke", "turnType",
+				"direction" };
+		int count = Math.min(golden.size(), m_Lengths.size());
+		for (int c = 0; c < count; c++)
+		{
+			String[] expected = golden.get(c).split(",");
+			String[] actual = m_Lengths.get(c).split(",");
+			for (int f = 0; f < fields.length; f++)
+			{
+				String want = f < expected.length ? expected[f] : "";
+				if (!want.equals(actual[f]))
+				{
+					fail(String.format(Locale.UK,
+							"%s: length %d %s is %s, golden %s", name, c,
+							fields[f], actual[f], want));
+				}
+			}
+		}
+	}
+
+	// replay once for the lengths and to warm up, then time m_Repeat runs
+	// returns {samples/s, bytes/sample}
+	private double[] measure(File recording) throws IOException
+	{
+		m_Lengths.clear();
+		m_Replay.reset();
+		long samples = m_Replay.replay(recording);
+		List<String> lengths = new ArrayList<String>(m_Lengths);
+
+		long best = Long.MAX_VALUE;
+		long bestAllocated = -1;
+		for (int c = 0; c < m_Repeat; c++)
+		{
+			m_Replay.reset();
+			long allocatedBefore = m_Allocations.allocatedBytes();
+			long start = System.nanoTime();
+			m_Replay.replay(recording);
+			long time = System.nanoTime() - start;
+			long allocated = m_Allocations.allocatedBytes() - allocatedBefore;
+			if (time < best)
+			{
+				best = time;
+				bestAllocated = m_Allocations.isSupported() ? allocated : -1;
+			}
+		}
+		// timed runs add to the list too, keep the first run only
+		m_Lengths.clear();
+		m_Lengths.addAll(lengths);
+		double perSecond = samples / (Math.max(best, 1) / 1000000000.0);
+		double bytesPerSample = bestAllocated < 0 || samples == 0 ? -1
+				: bestAllocated / (double) samples;
+		return new double[] { perSecond, bytesPerSample };
+	}
+
+	public void check(File recording, boolean update) throws IOException
+	{
+		String name = recording.getName();
+		double[] perf = measure(recording);
+		File goldenFile = sibling(recording, GOLDEN_SUFFIX);
+		File perfFile = sibling(recording, PERF_SUFFIX);
+		String perfLine = String.format(Locale.UK, "%.0f,%.2f", perf[0],
+				perf[1]);
+		if (update)
+		{
+			writeLines(goldenFile,
+					"# lengthTime,strokes,stroke,turnType,direction",
+					m_Lengths);
+			writeLines(perfFile, "# samples/s,bytes/sample",
+					Arrays.asList(perfLine));
+			System.out.println(String.format(Locale.UK,
+					"updated %s: %d lengths, %s", name, m_Lengths.size(),
+					perfLine));
+			return;
+		}
+		if (!goldenFile.exists())
+		{
+			fail(name + ": no " + goldenFile.getName()
+					+ " (run with -update to make one)");
+			return;
+		}
+		int failuresBefore = m_Failures;
+		compareLengths(name, readLines(goldenFile));
+
+		String baseline = "";
+		if (perfFile.exists())
+		{
+			List<String> lines = readLines(perfFile);
+			if (lines.size() > 0)
+			{
+				String[] parts = lines.get(0).split(",");
+				double baseRate = Double.parseDouble(parts[0]);
+				double baseBytes = Double.parseDouble(parts[1]);
+				baseline = String.format(Locale.UK,
+						" (baseline %.0f samples/s, %.2f B/sample)", baseRate,
+						baseBytes);
+				if (perf[0] < baseRate * (1.0 - m_Tolerance))
+				{
+					fail(String.format(Locale.UK,
+							"%s: %.0f samples/s is %.1f%% below baseline %.0f",
+							name, perf[0], 100.0 * (1.0 - perf[0] / baseRate),
+							baseRate));
+				}
+			}
+		}
+		System.out.println(String.format(Locale.UK,
+				"%s %s: %d lengths, %.0f samples/s, %.2f B/sample%s",
+				m_Failures == failuresBefore ? "ok  " : "FAIL", name,
+				m_Lengths.size(), perf[0], perf[1], baseline));
+	}
+
+	public int getFailures()
+	{
+		return m_Failures;
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length < 1)
+		{
+			System.err.println("usage: RegressionCheck corpusdir [-update] [-tolerance 0.1] [-repeat 5]");
+			System.exit(2);
+		}
+		RegressionCheck check = new RegressionCheck();
+		boolean update = false;
+		for (int c = 1; c < args.length; c++)
+		{
+			if (args[c].equals("-update"))
+			{
+				update = true;
+			} else if (args[c].equals("-tolerance") && c + 1 < args.length)
+			{
+				check.m_Tolerance = Double.parseDouble(args[++c]);
+			} else if (args[c].equals("-repeat") && c + 1 < args.length)
+			{
+				check.m_Repeat = Math.max(1, Integer.parseInt(args[++c]));
+			}
+		}
+		File[] files = new File(args[0]).listFiles();
+		if (files == null)
+		{
+			System.err.println("can't read " + args[0]);
+			System.exit(2);
+		}
+		Arrays.sort(files);
+		int recordings = 0;
+		for (File file : files)
+		{
+			if (isRecording(file))
+			{
+				check.check(file, update);
+				recordings++;
+			}
+		}
+		System.out.println(String.format(Locale.UK,
+				"%d recordings, %d failures", recordings, check.getFailures()));
+		System.exit(check.getFailures() == 0 ? 0 : 1);
+	}
+}
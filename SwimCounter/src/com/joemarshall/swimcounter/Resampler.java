@@ -0,0 +1,185 @@
+package com.joemarshall.swimcounter;
+
+// puts every sensor stream onto a fixed rate grid before it reaches the
+// extractor, so its cost and its sample-count based thresholds are the same on
+// a 50Hz phone and a 400Hz one
+//
+// each sensor type is filtered separately: a one-pole low pass (cut off at a
+// quarter of the output rate, weight worked out from the real time between
+// samples) to stop aliasing, then linear interpolation at each multiple of
+// the output period. Orientation angles are unwrapped first so nothing gets
+// averaged across the -pi / pi join. Gaps longer than MAX_INTERPOLATE_NS are
+// not filled in (e.g. when SampleRateController has slowed things down), only
+// the latest grid point is sent. Types the router doesn't use are passed
+// straight through. Nothing is allocated per sample.
+public class Resampler implements SensorSampleSink
+{
+	// longest gap (ns) between input samples that gets interpolated across
+	static final long MAX_INTERPOLATE_NS = 50000000L;
+	// a gap this long (ns) starts the stream again
+	static final long RESTART_NS = 1000000000L;
+	private static final int SLOTS = SensorRouter.NUM_SLOTS;
+	private static final float TWO_PI = (float) (2 * Math.PI);
+
+	private SensorSampleSink m_Target;
+	private long m_Period;
+	private float m_FilterRC;
+
+	// per type slot (SensorRouter.slotOf)
+	private boolean[] m_Started = new boolean[SLOTS];
+	private long[] m_LastTimestamp = new long[SLOTS];
+	private long[] m_NextOutput = new long[SLOTS];
+	// filtered value x,y,z at m_LastTimestamp
+	private float[] m_Filtered = new float[SLOTS * 3];
+	// last raw input, for unwrapping angles
+	private float[] m_LastRaw = new float[SLOTS * 3];
+	private float[] m_Unwrap = new float[SLOTS * 3];
+
+	public long samplesIn = 0;
+	public long samplesOut = 0;
+
+	public Resampler(SensorSampleSink target, double rateHz)
+	{
+		m_Target = target;
+		m_Period = (long) (1000000000.0 / rateHz);
+		double cutoff = rateHz / 4.0;
+		m_FilterRC = (float) (1.0 / (2 * Math.PI * cutoff));
+	}
+
+	public void setTarget(SensorSampleSink target)
+	{
+		m_Target = target;
+	}
+
+	public void reset()
+	{
+		for (int c = 0; c < SLOTS; c++)
+		{
+			m_Started[c] = false;
+		}
+	}
+
+	private static boolean isAngles(int type)
+	{
+		return type == LiveCounterActivity.PREPROCESSED_ORIENTATION;
+	}
+
+	@Override
+	public void onSample(int type, float x, float y, float z, long timestamp)
+	{
+		samplesIn++;
+		int slot = SensorRouter.slotOf(type);
+		if (slot < 0)
+		{
+			m_Target.onSample(type, x, y, z, timestamp);
+			samplesOut++;
+			return;
+		}
+		int v = slot * 3;
+		if (isAngles(type))
+		{
+			x = unwrap(v, x);
+			y = unwrap(v + 1, y);
+			z = unwrap(v + 2, z);
+		}
+		long last = m_LastTimestamp[slot];
+		long dt = timestamp - last;
+		if (!m_Started[slot] || dt < 0 || dt > RESTART_NS)
+		{
+			m_Started[slot] = true;
+			m_LastTimestamp[slot] = timestamp;
+			m_Filtered[v] = x;
+			m_Filtered[v + 1] = y;
+			m_Filtered[v + 2] = z;
+			// first output on the next grid point from here
+			m_NextOutput[slot] = (timestamp / m_Period + 1) * m_Period;
+			emit(type, v, timestamp);
+			return;
+		}
+		float seconds = dt / 1000000000.0f;
+		float k = seconds / (m_FilterRC + seconds);
+		float fx0 = m_Filtered[v];
+		float fy0 = m_Filtered[v + 1];
+		float fz0 = m_Filtered[v + 2];
+		float fx1 = fx0 + k * (x - fx0);
+		float fy1 = fy0 + k * (y - fy0);
+		float fz1 = fz0 + k * (z - fz0);
+		m_Filtered[v] = fx1;
+		m_Filtered[v + 1] = fy1;
+		m_Filtered[v + 2] = fz1;
+		m_LastTimestamp[slot] = timestamp;
+
+		long next = m_NextOutput[slot];
+		if (next > timestamp)
+		{
+			return;
+		}
+		if (dt > MAX_INTERPOLATE_NS)
+		{
+			// don't make up samples over a long gap, just send this one on
+			// the latest grid point
+			long gridTime = (timestamp / m_Period) * m_Period;
+			m_Target.onSample(type, wrap(type, fx1), fy1, wrap(type, fz1),
+					gridTime);
+			samplesOut++;
+			m_NextOutput[slot] = gridTime + m_Period;
+			return;
+		}
+		while (next <= timestamp)
+		{
+			float f = (float) (next - last) / dt;
+			m_Target.onSample(type, wrap(type, fx0 + f * (fx1 - fx0)), fy0 + f
+					* (fy1 - fy0), wrap(type, fz0 + f * (fz1 - fz0)), next);
+			samplesOut++;
+			next += m_Period;
+		}
+		m_NextOutput[slot] = next;
+	}
+
+	private void emit(int type, int v, long timestamp)
+	{
+		m_Target.onSample(type, wrap(type, m_Filtered[v]), m_Filtered[v + 1],
+				wrap(type, m_Filtered[v + 2]), timestamp);
+		samplesOut++;
+	}
+
+	// keep an angle continuous by adding whole turns when it jumps by more
+	// than half a turn
+	private float unwrap(int index, float angle)
+	{
+		if (m_Started[index / 3])
+		{
+			float jump = angle - m_LastRaw[index];
+			if (jump > Math.PI)
+			{
+				m_Unwrap[index] -= TWO_PI;
+			} else if (jump < -Math.PI)
+			{
+				m_Unwrap[index] += TWO_PI;
+			}
+		} else
+		{
+			m_Unwrap[index] = 0;
+		}
+		m_LastRaw[index] = angle;
+		return angle + m_Unwrap[index];
+	}
+
+	// back into -pi..pi for yaw and roll
+	private static float wrap(int type, float angle)
+	{
+		if (!isAngles(type))
+		{
+			return angle;
+		}
+		while (angle > Math.PI)
+		{
+			angle -= TWO_PI;
+		}
+		while (angle < -Math.PI)
+		{
+			angle += TWO_PI;
+		}
+		return angle;
+	}
+}
@@ -0,0 +1,72 @@
+package com.joemarshall.swimcounter;
+
+import java.nio.ByteBuffer;
+
+// exponentially weighted mean and variance of a signal, O(1) per sample
+// weight is per sample, so the time constant is roughly 1/weight samples
+public class RunningStats
+{
+	private float m_Weight;
+	private float m_Mean = 0;
+	private float m_Variance = 0;
+	private int m_Count = 0;
+
+	public RunningStats(float weight)
+	{
+		m_Weight = weight;
+	}
+
+	public void clear()
+	{
+		m_Mean = 0;
+		m_Variance = 0;
+		m_Count = 0;
+	}
+
+	public void add(float value)
+	{
+		if (m_Count == 0)
+		{
+			m_Mean = value;
+			m_Variance = 0;
+		} else
+		{
+			// start as a plain mean so it isn't biased by the first value
+			float weight = Math.max(m_Weight, 1.0f / (m_Count + 1));
+			float diff = value - m_Mean;
+			float increment = weight * diff;
+			m_Mean += increment;
+			m_Variance = (1 - weight) * (m_Variance + diff * increment);
+		}
+		m_Count++;
+	}
+
+	public int count()
+	{
+		return m_Count;
+	}
+
+	public float mean()
+	{
+		return m_Mean;
+	}
+
+	public float standardDeviation()
+	{
+		return (float) Math.sqrt(m_Variance);
+	}
+
+	public void save(ByteBuffer out)
+	{
+		out.putFloat(m_Mean);
+		out.putFloat(m_Variance);
+		out.putInt(m_Count);
+	}
+
+	public void restore(ByteBuffer in)
+	{
+		m_Mean = in.getFloat();
+		m_Variance = in.getFloat();
+		m_Count = in.getInt();
+	}
+}
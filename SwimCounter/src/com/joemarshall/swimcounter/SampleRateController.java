@@ -0,0 +1,172 @@
+package com.joemarshall.swimcounter;
+
+import com.joemarshall.swimcounter.SwimMetricExtractor.State;
+import com.joemarshall.swimcounter.SwimMetricExtractor.SwimState;
+
+// cuts the sample rate while the swimmer is resting, and puts it straight
+// back up when they look like they're about to swim
+//
+// sits in front of a SensorRouter. At full rate everything is passed on. Once
+// the extractor has said SWIMMING_NOT for REST_DELAY_NS, only one sample of
+// each sensor type per slow interval gets through. As soon as the pitch comes
+// within WAKE_MARGIN of the swimming angle (or the extractor thinks they're
+// swimming) it goes back to full rate. Works on samples from anywhere, so the
+// same thing happens in replay as on the phone; on the phone the callback
+// also turns the hardware rate down.
+public class SampleRateController implements SensorSampleSink
+{
+	interface Callback
+	{
+		// rate has gone down (slow=true) or back up
+		public void onRateChange(boolean slow);
+	}
+
+	// resting this long (ns) before the rate goes down
+	static final long REST_DELAY_NS = 10000000000L;
+	// radians beyond the swimming angle at which we go back to full rate
+	static final double WAKE_MARGIN = 0.35;
+	static final long DEFAULT_SLOW_INTERVAL_NS = 100000000L;
+	private static final long RATE_WINDOW_NS = 1000000000L;
+
+	private SensorRouter m_Router;
+	private Callback m_Callback;
+	private long m_SlowIntervalNs;
+	private SensorTrace m_Batch = new SensorTrace(256);
+
+	private boolean m_Slow = false;
+	private long m_RestStart = -1;
+	// per type slot (SensorRouter.slotOf)
+	private long[] m_LastPassed = new long[SensorRouter.NUM_SLOTS];
+
+	private long m_WindowStart = -1;
+	private int m_WindowSamples = 0;
+	private float m_EffectiveRate = 0;
+
+	public long samplesPassed = 0;
+	public long samplesSkipped = 0;
+	public long slowTimeNs = 0;
+	private long m_LastTimestamp = -1;
+
+	public SampleRateController(SensorRouter router, Callback cb)
+	{
+		this(router, cb, DEFAULT_SLOW_INTERVAL_NS);
+	}
+
+	public SampleRateController(SensorRouter router, Callback cb,
+			long slowIntervalNs)
+	{
+		m_Router = router;
+		m_Callback = cb;
+		m_SlowIntervalNs = slowIntervalNs;
+	}
+
+	public boolean isSlow()
+	{
+		return m_Slow;
+	}
+
+	// samples per second passed on, over the last second of sensor time
+	public float getEffectiveRate()
+	{
+		return m_EffectiveRate;
+	}
+
+	@Override
+	public void onSample(int type, float x, float y, float z, long timestamp)
+	{
+		if (accept(type, timestamp))
+		{
+			m_Router.onSample(type, x, y, z, timestamp);
+			updateRate(timestamp);
+		}
+	}
+
+	// block version, the samples that get through are passed on to the
+	// router as one batch
+	public void onSamples(int[] types, long[] timestamps, float[] values,
+			int count)
+	{
+		m_Batch.clear();
+		for (int c = 0; c < count; c++)
+		{
+			if (accept(types[c], timestamps[c]))
+			{
+				m_Batch.onSample(types[c], values[c * 3], values[c * 3 + 1],
+						values[c * 3 + 2], timestamps[c]);
+			}
+		}
+		if (m_Batch.count > 0)
+		{
+			m_Router.onSamples(m_Batch.types, m_Batch.timestamps,
+					m_Batch.values, m_Batch.count);
+			updateRate(m_Batch.timestamps[m_Batch.count - 1]);
+		}
+	}
+
+	private boolean accept(int type, long timestamp)
+	{
+		if (m_Slow && m_LastTimestamp >= 0)
+		{
+			slowTimeNs += timestamp - m_LastTimestamp;
+		}
+		m_LastTimestamp = timestamp;
+		int slot = SensorRouter.slotOf(type);
+		if (slot >= 0)
+		{
+			if (m_Slow && timestamp - m_LastPassed[slot] < m_SlowIntervalNs)
+			{
+				samplesSkipped++;
+				return false;
+			}
+			m_LastPassed[slot] = timestamp;
+		}
+		samplesPassed++;
+		m_WindowSamples++;
+		return true;
+	}
+
+	// look at the extractor state after some samples have gone through
+	private void updateRate(long timestamp)
+	{
+		if (m_WindowStart < 0 || timestamp - m_WindowStart > RATE_WINDOW_NS
+				|| timestamp < m_WindowStart)
+		{
+			if (m_WindowStart >= 0 && timestamp > m_WindowStart)
+			{
+				m_EffectiveRate = m_WindowSamples * 1000000000.0f
+						/ (timestamp - m_WindowStart);
+			}
+			m_WindowStart = timestamp;
+			m_WindowSamples = 0;
+		}
+
+		State state = m_Router.getExtractor().getState();
+		float pitch = state.lastPitch();
+		double wakeAngle = m_Router.getExtractor().getConfig().swimMaxAngleFromHorizontal
+				+ WAKE_MARGIN;
+		if (state.swimming != SwimState.SWIMMING_NOT
+				|| Math.abs(pitch) < wakeAngle)
+		{
+			m_RestStart = -1;
+			setSlow(false);
+		} else if (m_RestStart < 0 || timestamp < m_RestStart)
+		{
+			m_RestStart = timestamp;
+		} else if (timestamp - m_RestStart > REST_DELAY_NS)
+		{
+			setSlow(true);
+		}
+	}
+
+	private void setSlow(boolean slow)
+	{
+		if (slow != m_Slow)
+		{
+			m_Slow = slow;
+			if (m_Callback != null)
+			{
+				m_Callback.onRateChange(slow);
+			}
+		}
+	}
+}
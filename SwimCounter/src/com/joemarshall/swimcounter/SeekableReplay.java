@@ -0,0 +1,471 @@
+package com.joemarshall.swimcounter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+
+import com.joemarshall.swimcounter.SwimMetricExtractor.EventPoint;
+import com.joemarshall.swimcounter.SwimMetricExtractor.LengthStatistics;
+
+// replay of a recording that can jump to any moment in it, for looking at
+// what the extractor did at one point of a long session without replaying
+// the whole thing every time
+//
+// usage: java com.joemarshall.swimcounter.SeekableReplay recording
+//            [-from seconds] [-to seconds] [-realtime speed] [-v]
+// prints the events and lengths between from and to (seconds from the start
+// of the recording), at full speed or at speed x real time
+//
+// open() makes one pass over the recording at full speed, noting where each
+// block starts (for binary recordings, the file offset and first timestamp
+// from the block headers; csv recordings are held in memory and cut into
+// blocks) and saving the extractor state every CHECKPOINT_INTERVAL_NS at a
+// block boundary. seek() restores the last checkpoint before the time and
+// replays from there, so the cost of a seek is at most one checkpoint
+// interval of replay, wherever it is in the session.
+//
+// The router (merger, resampler, gravity filter) isn't saved; instead the
+// block before the checkpoint is run through it into a throwaway extractor,
+// which leaves it as it was when the checkpoint was taken.
+public class SeekableReplay implements SwimMetricExtractor.Callback
+{
+	static final long CHECKPOINT_INTERVAL_NS = 60000000000L;
+	static final int STATE_BUFFER_SIZE = 64 * 1024;
+	// in csv recordings
+	static final int BLOCK_SAMPLES = SensorRecordingWriter.MAX_BLOCK_SAMPLES;
+
+	// extractor state at the start of a block
+	static class Checkpoint
+	{
+		int block;
+		long timestamp;
+		byte[] state;
+	}
+
+	private SwimMetricExtractor.Callback m_Callback;
+	private ExtractorConfig m_Config;
+	private double m_ResampleRate = 0;
+	private long m_ReorderWindow = 0;
+
+	private SwimMetricExtractor m_Extractor;
+	private SensorRouter m_Router;
+	// extractor callbacks are only passed on while playing, not while
+	// indexing or fast forwarding
+	private boolean m_Forward = false;
+
+	// binary recordings are read a block at a time, csv ones are all here
+	private SensorRecordingReader m_Reader = null;
+	private SensorTrace m_Csv = null;
+
+	// block index
+	private int m_Blocks = 0;
+	private long[] m_BlockOffsets = new long[64];
+	private long[] m_BlockTimestamps = new long[64];
+	private long m_EndTimestamp = 0;
+	private ArrayList<Checkpoint> m_Checkpoints = new ArrayList<Checkpoint>();
+	private ByteBuffer m_StateBuffer = ByteBuffer.allocate(STATE_BUFFER_SIZE);
+
+	// position: sample m_Next of block m_Block (held in m_Trace)
+	private SensorTrace m_Trace = new SensorTrace(BLOCK_SAMPLES);
+	private int m_Block = 0;
+	private int m_Next = 0;
+
+	public SeekableReplay(SwimMetricExtractor.Callback cb)
+	{
+		this(cb, ExtractorConfig.DEFAULT);
+	}
+
+	public SeekableReplay(SwimMetricExtractor.Callback cb,
+			ExtractorConfig config)
+	{
+		m_Callback = cb;
+		m_Config = config;
+	}
+
+	// as LogReplay, set these before open()
+	public void setResampleRate(double rateHz)
+	{
+		m_ResampleRate = rateHz;
+	}
+
+	public void setReorderWindow(long windowNs)
+	{
+		m_ReorderWindow = windowNs;
+	}
+
+	// index the recording and take checkpoints, leaves the position at the
+	// start
+	public void open(File path) throws IOException
+	{
+		close();
+		m_Blocks = 0;
+		m_Checkpoints.clear();
+		if (SensorRecordingReader.isRecording(path))
+		{
+			m_Reader = new SensorRecordingReader(path);
+		} else
+		{
+			m_Csv = SensorTrace.load(path);
+		}
+		startExtractor();
+		m_Forward = false;
+		long lastCheckpoint = Long.MIN_VALUE;
+		long offset = m_Reader != null ? m_Reader.position() : 0;
+		while (loadBlock(offset))
+		{
+			long start = m_Trace.timestamps[0];
+			if (m_Blocks == m_BlockOffsets.length)
+			{
+				m_BlockOffsets = Arrays.copyOf(m_BlockOffsets, m_Blocks * 2);
+				m_BlockTimestamps = Arrays.copyOf(m_BlockTimestamps,
+						m_Blocks * 2);
+			}
+			m_BlockOffsets[m_Blocks] = offset;
+			m_BlockTimestamps[m_Blocks] = start;
+			if (m_Blocks == 0
+					|| start - lastCheckpoint >= CHECKPOINT_INTERVAL_NS)
+			{
+				addCheckpoint(m_Blocks, start);
+				lastCheckpoint = start;
+			}
+			m_Blocks++;
+			m_Router.onSamples(m_Trace.types, m_Trace.timestamps,
+					m_Trace.values, m_Trace.count);
+			m_EndTimestamp = m_Trace.lastTimestamp();
+			offset = m_Reader != null ? m_Reader.position() : offset
+					+ m_Trace.count;
+		}
+		seek(startTimestamp());
+	}
+
+	public void close() throws IOException
+	{
+		if (m_Reader != null)
+		{
+			m_Reader.close();
+			m_Reader = null;
+		}
+		m_Csv = null;
+	}
+
+	private void addCheckpoint(int block, long timestamp)
+	{
+		Checkpoint checkpoint = new Checkpoint();
+		checkpoint.block = block;
+		checkpoint.timestamp = timestamp;
+		// the first one is just a fresh extractor
+		if (block > 0)
+		{
+			m_StateBuffer.clear();
+			m_Extractor.saveState(m_StateBuffer);
+			checkpoint.state = Arrays.copyOf(m_StateBuffer.array(),
+					m_StateBuffer.position());
+		}
+		m_Checkpoints.add(checkpoint);
+	}
+
+	// fresh extractor and router
+	private void startExtractor()
+	{
+		m_Extractor = new SwimMetricExtractor(this, m_Config);
+		m_Router = new SensorRouter(m_Extractor);
+		m_Router.setResampleRate(m_ResampleRate);
+		m_Router.setReorderWindow(m_ReorderWindow, LogReplay.REORDER_CAPACITY);
+	}
+
+	// decode the block at offset into m_Trace, false at the end
+	private boolean loadBlock(long offset) throws IOException
+	{
+		m_Trace.clear();
+		if (m_Reader != null)
+		{
+			m_Reader.seek(offset);
+			return m_Reader.readBlock(m_Trace) && m_Trace.count > 0;
+		}
+		int from = (int) offset;
+		int to = Math.min(m_Csv.count, from + BLOCK_SAMPLES);
+		m_Csv.replay(m_Trace, from, to);
+		return m_Trace.count > 0;
+	}
+
+	private boolean loadBlockNumber(int block) throws IOException
+	{
+		m_Block = block;
+		m_Next = 0;
+		if (block >= m_Blocks)
+		{
+			m_Trace.clear();
+			return false;
+		}
+		return loadBlock(m_BlockOffsets[block]);
+	}
+
+	// go to timestamp, so the next sample played is the first one after it
+	public void seek(long timestamp) throws IOException
+	{
+		// last checkpoint at or before timestamp
+		int low = 0;
+		int high = m_Checkpoints.size() - 1;
+		while (low < high)
+		{
+			int mid = (low + high + 1) >>> 1;
+			if (m_Checkpoints.get(mid).timestamp <= timestamp)
+			{
+				low = mid;
+			} else
+			{
+				high = mid - 1;
+			}
+		}
+		m_Forward = false;
+		if (m_Checkpoints.isEmpty())
+		{
+			startExtractor();
+			loadBlockNumber(0);
+			return;
+		}
+		Checkpoint checkpoint = m_Checkpoints.get(low);
+		if (checkpoint.block > 0)
+		{
+			// get the router back to how it was, then swap in the extractor
+			startExtractor();
+			loadBlockNumber(checkpoint.block - 1);
+			m_Router.onSamples(m_Trace.types, m_Trace.timestamps,
+					m_Trace.values, m_Trace.count);
+			SwimMetricExtractor extractor = new SwimMetricExtractor(this,
+					m_Config);
+			extractor.restoreState(ByteBuffer.wrap(checkpoint.state));
+			m_Extractor = extractor;
+			m_Router.setExtractor(extractor);
+		} else
+		{
+			startExtractor();
+		}
+		loadBlockNumber(checkpoint.block);
+		play(timestamp, 0);
+	}
+
+	// seconds from the start of the recording
+	public void seekSeconds(double seconds) throws IOException
+	{
+		seek(startTimestamp() + (long) (seconds * 1000000000.0));
+	}
+
+	// play up to and including timestamp, passing on extractor callbacks, at
+	// full speed (speed 0) or speed x real time. Returns the number of samples
+	// played
+	public long playTo(long timestamp, double speed) throws IOException
+	{
+		m_Forward = true;
+		try
+		{
+			return play(timestamp, speed);
+		} finally
+		{
+			m_Forward = false;
+		}
+	}
+
+	private long play(long timestamp, double speed) throws IOException
+	{
+		long samples = 0;
+		long wallStart = System.nanoTime();
+		long sensorStart = Long.MIN_VALUE;
+		while (m_Block < m_Blocks)
+		{
+			if (m_Next == m_Trace.count)
+			{
+				if (!loadBlockNumber(m_Block + 1))
+				{
+					m_Router.flush();
+					break;
+				}
+				continue;
+			}
+			long next = m_Trace.timestamps[m_Next];
+			if (next > timestamp)
+			{
+				break;
+			}
+			if (speed > 0)
+			{
+				if (sensorStart == Long.MIN_VALUE)
+				{
+					sensorStart = next;
+				}
+				waitUntil(wallStart + (long) ((next - sensorStart) / speed));
+			}
+			int v = m_Next * 3;
+			m_Router.onSample(m_Trace.types[m_Next], m_Trace.values[v],
+					m_Trace.values[v + 1], m_Trace.values[v + 2], next);
+			m_Next++;
+			samples++;
+		}
+		return samples;
+	}
+
+	private static void waitUntil(long wallTime)
+	{
+		long wait = wallTime - System.nanoTime();
+		if (wait > 1000000L)
+		{
+			try
+			{
+				Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+			} catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	public long startTimestamp()
+	{
+		return m_Blocks > 0 ? m_BlockTimestamps[0] : 0L;
+	}
+
+	public long endTimestamp()
+	{
+		return m_EndTimestamp;
+	}
+
+	public int blockCount()
+	{
+		return m_Blocks;
+	}
+
+	public int checkpointCount()
+	{
+		return m_Checkpoints.size();
+	}
+
+	// the extractor as of the current position, e.g. to look at its state
+	public SwimMetricExtractor getExtractor()
+	{
+		return m_Extractor;
+	}
+
+	@Override
+	public void onEvent(EventPoint event)
+	{
+		if (m_Forward)
+		{
+			m_Callback.onEvent(event);
+		}
+	}
+
+	@Override
+	public void onLengthComplete(LengthStatistics stats)
+	{
+		if (m_Forward)
+		{
+			m_Callback.onLengthComplete(stats);
+		}
+	}
+
+	@Override
+	public void logError(String tag, String value)
+	{
+		if (m_Forward)
+		{
+			m_Callback.logError(tag, value);
+		}
+	}
+
+	@Override
+	public void logInfo(String tag, String value)
+	{
+		if (m_Forward)
+		{
+			m_Callback.logInfo(tag, value);
+		}
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length < 1)
+		{
+			System.err.println("usage: SeekableReplay recording [-from seconds] [-to seconds] [-realtime speed] [-v]");
+			System.exit(2);
+		}
+		final boolean[] verbose = { false };
+		double from = 0;
+		double to = Double.MAX_VALUE;
+		double speed = 0;
+		for (int c = 1; c < args.length; c++)
+		{
+			if (args[c].equals("-from") && c + 1 < args.length)
+			{
+				from = Double.parseDouble(args[++c]);
+			} else if (args[c].equals("-to") && c + 1 < args.length)
+			{
+				to = Double.parseDouble(args[++c]);
+			} else if (args[c].equals("-realtime") && c + 1 < args.length)
+			{
+				speed = Double.parseDouble(args[++c]);
+			} else if (args[c].equals("-v"))
+			{
+				verbose[0] = true;
+			}
+		}
+		final long[] start = { 0 };
+		SeekableReplay replay = new SeekableReplay(
+				new SwimMetricExtractor.Callback()
+				{
+					public void onEvent(EventPoint event)
+					{
+						System.out.println(String.format(Locale.UK,
+								"%.3f,event,%s,%d",
+								(event.timestamp - start[0]) / 1e9,
+								event.m_Type, event.m_Value));
+					}
+
+					public void onLengthComplete(LengthStatistics stats)
+					{
+						System.out.println(String.format(Locale.UK,
+								"%.3f,length,%f,%d,%s,%s",
+								(stats.lengthStart - start[0]) / 1e9,
+								stats.lengthTime / 1e9, stats.strokes,
+								stats.stroke, stats.turnType));
+					}
+
+					public void logError(String tag, String value)
+					{
+						if (verbose[0])
+						{
+							System.err.println(tag + ":" + value);
+						}
+					}
+
+					public void logInfo(String tag, String value)
+					{
+						if (verbose[0])
+						{
+							System.err.println(tag + ":" + value);
+						}
+					}
+				});
+		long begin = System.nanoTime();
+		replay.open(new File(args[0]));
+		start[0] = replay.startTimestamp();
+		System.err.println(String.format(Locale.UK,
+				"indexed %d blocks, %d checkpoints, %.1fs long in %.3fs",
+				replay.blockCount(), replay.checkpointCount(),
+				(replay.endTimestamp() - start[0]) / 1e9,
+				(System.nanoTime() - begin) / 1e9));
+		begin = System.nanoTime();
+		replay.seekSeconds(from);
+		System.err.println(String.format(Locale.UK, "seek to %.1fs took %.3fs",
+				from, (System.nanoTime() - begin) / 1e9));
+		// playing right to the end flushes anything the router is holding
+		long end = Long.MAX_VALUE;
+		if (to * 1e9 < replay.endTimestamp() - start[0])
+		{
+			end = start[0] + (long) (to * 1e9);
+		}
+		replay.playTo(end, speed);
+	}
+}
@@ -0,0 +1,130 @@
+package com.joemarshall.swimcounter;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+// the thread that runs the extractor: takes samples off one or more
+// SensorQueues, in batches, and passes them through a SensorRouter
+//
+// each queue must have a single producer, so give every source of samples
+// (sensor thread, network thread) its own queue. Extractor callbacks happen
+// on this thread. Anything else that touches the extractor should be handed
+// over with post(), so the extractor only ever sees one thread.
+public class SensorProcessor implements Runnable
+{
+	interface Callback
+	{
+		// called on the processing thread after each batch of samples
+		public void onBatchProcessed();
+	}
+
+	private static final int BATCH_SIZE = 256;
+
+	private SensorRouter m_Router;
+	private SensorQueue[] m_Queues;
+	private Callback m_Callback;
+	private SampleRateController m_RateController = null;
+	private SensorTrace m_Batch = new SensorTrace(BATCH_SIZE);
+	private ConcurrentLinkedQueue<Runnable> m_Tasks = new ConcurrentLinkedQueue<Runnable>();
+
+	private volatile boolean m_Running = false;
+	private Thread m_Thread;
+
+	public long samplesProcessed = 0;
+
+	public SensorProcessor(SensorRouter router, SensorQueue[] queues,
+			Callback cb)
+	{
+		m_Router = router;
+		m_Queues = queues;
+		m_Callback = cb;
+	}
+
+	// samples go through this (which passes them on to the router) if set
+	public void setRateController(SampleRateController controller)
+	{
+		m_RateController = controller;
+	}
+
+	public void start()
+	{
+		m_Running = true;
+		m_Thread = new Thread(this, "SensorProcessor");
+		// the queues wake the thread when samples arrive, so it can sleep
+		// until then rather than polling
+		for (SensorQueue queue : m_Queues)
+		{
+			queue.setConsumer(m_Thread);
+		}
+		m_Thread.start();
+	}
+
+	// stop the thread, anything still queued is thrown away
+	public void stop()
+	{
+		m_Running = false;
+		if (m_Thread != null)
+		{
+			for (SensorQueue queue : m_Queues)
+			{
+				queue.setConsumer(null);
+			}
+			LockSupport.unpark(m_Thread);
+			try
+			{
+				m_Thread.join();
+			} catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			m_Thread = null;
+		}
+	}
+
+	// run task on the processing thread, before any more samples
+	public void post(Runnable task)
+	{
+		m_Tasks.add(task);
+		LockSupport.unpark(m_Thread);
+	}
+
+	@Override
+	public void run()
+	{
+		while (m_Running)
+		{
+			Runnable task;
+			while ((task = m_Tasks.poll()) != null)
+			{
+				task.run();
+			}
+			boolean idle = true;
+			for (SensorQueue queue : m_Queues)
+			{
+				m_Batch.clear();
+				if (queue.drainTo(m_Batch, BATCH_SIZE) > 0)
+				{
+					idle = false;
+					if (m_RateController != null)
+					{
+						m_RateController.onSamples(m_Batch.types,
+								m_Batch.timestamps, m_Batch.values,
+								m_Batch.count);
+					} else
+					{
+						m_Router.onSamples(m_Batch.types, m_Batch.timestamps,
+								m_Batch.values, m_Batch.count);
+					}
+					samplesProcessed += m_Batch.count;
+					m_Callback.onBatchProcessed();
+				}
+			}
+			if (idle && m_Tasks.isEmpty())
+			{
+				// woken by a queue, post() or stop() (or spuriously, which
+				// just means another look round)
+				LockSupport.park(this);
+			}
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package com.joemarshall.swimcounter;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// lock-free queue of sensor samples from exactly one producer thread (e.g. the
+// sensor callback thread) to exactly one consumer (the processing thread)
+//
+// samples are stored as primitives in preallocated arrays, so nothing is
+// allocated per sample. If the consumer falls behind and the queue fills up,
+// new samples are dropped and counted rather than blocking the producer.
+// The producer wakes the consumer thread when the queue goes from empty to
+// not empty, so the consumer can sleep for as long as there's nothing to do.
+public class SensorQueue implements SensorSampleSink
+{
+	private final int m_Mask;
+	private final int[] m_Types;
+	private final long[] m_Timestamps;
+	private final float[] m_Values;
+
+	// next slot to write, only written by the producer
+	private final AtomicLong m_Head = new AtomicLong(0);
+	// next slot to read, only written by the consumer
+	private final AtomicLong m_Tail = new AtomicLong(0);
+	// producer's last look at m_Tail, saves reading it every sample
+	private long m_CachedTail = 0;
+
+	// parked thread to wake when a sample arrives
+	private volatile Thread m_Consumer = null;
+
+	private volatile long m_Dropped = 0;
+	private volatile int m_MaxDepth = 0;
+
+	// capacity must be a power of two
+	public SensorQueue(int capacity)
+	{
+		m_Mask = capacity - 1;
+		m_Types = new int[capacity];
+		m_Timestamps = new long[capacity];
+		m_Values = new float[capacity * 3];
+	}
+
+	// producer side, returns false if the sample was dropped
+	public boolean offer(int type, float x, float y, float z, long timestamp)
+	{
+		long head = m_Head.get();
+		if (head - m_CachedTail > m_Mask)
+		{
+			m_CachedTail = m_Tail.get();
+			if (head - m_CachedTail > m_Mask)
+			{
+				m_Dropped = m_Dropped + 1;
+				return false;
+			}
+		}
+		int slot = (int) head & m_Mask;
+		m_Types[slot] = type;
+		m_Timestamps[slot] = timestamp;
+		m_Values[slot * 3] = x;
+		m_Values[slot * 3 + 1] = y;
+		m_Values[slot * 3 + 2] = z;
+		// a full store (not lazySet) and a full store of m_Tail in drainTo,
+		// so that either the consumer sees this sample before it parks or
+		// we see it has emptied the queue and wake it
+		m_Head.set(head + 1);
+		if (m_Tail.get() == head)
+		{
+			Thread consumer = m_Consumer;
+			if (consumer != null)
+			{
+				LockSupport.unpark(consumer);
+			}
+		}
+		return true;
+	}
+
+	// thread to unpark when the queue stops being empty, or null
+	public void setConsumer(Thread consumer)
+	{
+		m_Consumer = consumer;
+	}
+
+	@Override
+	public void onSample(int type, float x, float y, float z, long timestamp)
+	{
+		offer(type, x, y, z, timestamp);
+	}
+
+	// consumer side, passes up to max queued samples to sink, returns how
+	// many were passed
+	public int drainTo(SensorSampleSink sink, int max)
+	{
+		long tail = m_Tail.get();
+		int available = (int) (m_Head.get() - tail);
+		if (available > m_MaxDepth)
+		{
+			m_MaxDepth = available;
+		}
+		int count = Math.min(available, max);
+		for (int c = 0; c < count; c++)
+		{
+			int slot = (int) (tail + c) & m_Mask;
+			sink.onSample(m_Types[slot], m_Values[slot * 3],
+					m_Values[slot * 3 + 1], m_Values[slot * 3 + 2],
+					m_Timestamps[slot]);
+		}
+		if (count > 0)
+		{
+			m_Tail.set(tail + count);
+		}
+		return count;
+	}
+
+	public boolean isEmpty()
+	{
+		return m_Head.get() == m_Tail.get();
+	}
+
+	// samples waiting right now
+	public int depth()
+	{
+		return (int) (m_Head.get() - m_Tail.get());
+	}
+
+	// most samples ever seen waiting by the consumer
+	public int maxDepth()
+	{
+		return m_MaxDepth;
+	}
+
+	public long dropped()
+	{
+		return m_Dropped;
+	}
+}
@@ -0,0 +1,268 @@
+package com.joemarshall.swimcounter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+// reads sensor recordings in the binary format written by SensorRecordingWriter
+// (see there for the layout), a block at a time
+public class SensorRecordingReader
+{
+	private FileInputStream m_Stream;
+	private FileChannel m_Channel;
+	private long m_Position;
+	private boolean m_Quantised;
+	private float m_Quantum;
+
+	private byte[] m_HeaderBytes = new byte[SensorRecordingWriter.BLOCK_HEADER_SIZE];
+	private ByteBuffer m_Header = ByteBuffer.wrap(m_HeaderBytes);
+	private byte[] m_Payload = new byte[1 << 16];
+	private int[] m_PreviousValues = new int[(SensorRecordingWriter.TYPE_MASK + 1) * 3];
+	private CRC32 m_Crc = new CRC32();
+
+	// header of the last block read or skipped
+	public int blockSamples;
+	public long blockFirstTimestamp;
+	public long blockLastTimestamp;
+	public long blockOffset;
+
+	public long samplesRead = 0;
+
+	public SensorRecordingReader(File file) throws IOException
+	{
+		m_Stream = new FileInputStream(file);
+		m_Channel = m_Stream.getChannel();
+		ByteBuffer header = ByteBuffer
+				.allocate(SensorRecordingWriter.FILE_HEADER_SIZE);
+		if (!readFully(header, 0))
+		{
+			close();
+			throw new IOException(file + " is not a sensor recording");
+		}
+		int flags = header.get(5);
+		if (header.getInt(0) != SensorRecordingWriter.MAGIC
+				|| header.get(4) != SensorRecordingWriter.VERSION)
+		{
+			close();
+			throw new IOException(file
+					+ " is not a sensor recording (or is a newer version)");
+		}
+		m_Quantised = (flags & SensorRecordingWriter.FLAG_QUANTISED) != 0;
+		m_Quantum = header.getFloat(8);
+		m_Position = SensorRecordingWriter.FILE_HEADER_SIZE;
+	}
+
+	// true if this file starts with the binary recording magic number
+	public static boolean isRecording(File file) throws IOException
+	{
+		FileInputStream in = new FileInputStream(file);
+		try
+		{
+			byte[] magic = new byte[4];
+			if (in.read(magic) != 4)
+			{
+				return false;
+			}
+			return ByteBuffer.wrap(magic).getInt() == SensorRecordingWriter.MAGIC;
+		} finally
+		{
+			in.close();
+		}
+	}
+
+	// offset of the next block
+	public long position()
+	{
+		return m_Position;
+	}
+
+	// carry on from a block offset (e.g. one from blockOffset)
+	public void seek(long offset)
+	{
+		m_Position = offset;
+	}
+
+	public long readAll(SensorSampleSink sink) throws IOException
+	{
+		while (readBlock(sink))
+		{
+		}
+		return samplesRead;
+	}
+
+	// read the header of the next block and skip over its samples
+	// returns false at the end of the file
+	public boolean skipBlock() throws IOException
+	{
+		if (!readBlockHeader())
+		{
+			return false;
+		}
+		m_Position += m_Header.getInt(0);
+		return true;
+	}
+
+	// decode the next block into sink, returns false at the end of the file
+	public boolean readBlock(SensorSampleSink sink) throws IOException
+	{
+		if (!readBlockHeader())
+		{
+			return false;
+		}
+		int length = m_Header.getInt(0);
+		int crc = m_Header.getInt(24);
+		// a sample count too big for the payload makes decode run past the
+		// end, by at most a sample, before it notices; zeros there end each
+		// varint so it stays inside the array
+		int slack = SensorRecordingWriter.MAX_SAMPLE_SIZE;
+		if (length + slack > m_Payload.length)
+		{
+			m_Payload = new byte[length + slack];
+		}
+		Arrays.fill(m_Payload, length, length + slack, (byte) 0);
+		if (!readFully(ByteBuffer.wrap(m_Payload, 0, length), m_Position))
+		{
+			// truncated block at the end, e.g. recording was cut off
+			return false;
+		}
+		m_Crc.reset();
+		m_Crc.update(m_Payload, 0, length);
+		if ((int) m_Crc.getValue() != crc)
+		{
+			throw new IOException("checksum mismatch in block at "
+					+ blockOffset);
+		}
+		m_Position += length;
+		decode(length, sink);
+		return true;
+	}
+
+	public void close() throws IOException
+	{
+		m_Channel.close();
+		m_Stream.close();
+	}
+
+	private boolean readBlockHeader() throws IOException
+	{
+		m_Header.clear();
+		if (!readFully(m_Header, m_Position))
+		{
+			return false;
+		}
+		blockOffset = m_Position;
+		blockSamples = m_Header.getInt(4);
+		blockFirstTimestamp = m_Header.getLong(8);
+		blockLastTimestamp = m_Header.getLong(16);
+		// the header isn't covered by the checksum, so check it is something
+		// the writer could have written before going by it
+		int length = m_Header.getInt(0);
+		if (length < 0 || blockSamples < 0
+				|| blockSamples > SensorRecordingWriter.MAX_BLOCK_SAMPLES
+				|| length > blockSamples * SensorRecordingWriter.MAX_SAMPLE_SIZE)
+		{
+			throw new IOException("corrupt block header at " + blockOffset);
+		}
+		m_Position += SensorRecordingWriter.BLOCK_HEADER_SIZE;
+		return true;
+	}
+
+	private void decode(int length, SensorSampleSink sink) throws IOException
+	{
+		byte[] in = m_Payload;
+		int[] previous = m_PreviousValues;
+		boolean quantised = m_Quantised;
+		float quantum = m_Quantum;
+		long timestamp = blockFirstTimestamp;
+		if (quantised)
+		{
+			for (int c = 0; c < previous.length; c++)
+			{
+				previous[c] = 0;
+			}
+		}
+		int pos = 0;
+		for (int c = 0; c < blockSamples; c++)
+		{
+			// inline varint decodes, this is the hot loop for replay
+			long raw = 0;
+			int shift = 0;
+			byte b;
+			do
+			{
+				b = in[pos++];
+				raw |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while (b < 0);
+			int type = (int) ((raw >>> 1) ^ -(raw & 1));
+
+			raw = 0;
+			shift = 0;
+			do
+			{
+				b = in[pos++];
+				raw |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while (b < 0);
+			timestamp += (raw >>> 1) ^ -(raw & 1);
+
+			float x, y, z;
+			if (quantised)
+			{
+				int slot = ((type + 1) & SensorRecordingWriter.TYPE_MASK) * 3;
+				for (int v = 0; v < 3; v++)
+				{
+					raw = 0;
+					shift = 0;
+					do
+					{
+						b = in[pos++];
+						raw |= (long) (b & 0x7F) << shift;
+						shift += 7;
+					} while (b < 0);
+					previous[slot + v] += (int) ((raw >>> 1) ^ -(raw & 1));
+				}
+				x = previous[slot] * quantum;
+				y = previous[slot + 1] * quantum;
+				z = previous[slot + 2] * quantum;
+			} else
+			{
+				x = Float.intBitsToFloat(getInt(in, pos));
+				y = Float.intBitsToFloat(getInt(in, pos + 4));
+				z = Float.intBitsToFloat(getInt(in, pos + 8));
+				pos += 12;
+			}
+			if (pos > length)
+			{
+				throw new IOException("corrupt block at " + blockOffset);
+			}
+			samplesRead++;
+			sink.onSample(type, x, y, z, timestamp);
+		}
+	}
+
+	private static int getInt(byte[] in, int pos)
+	{
+		return ((in[pos] & 0xFF) << 24) | ((in[pos + 1] & 0xFF) << 16)
+				| ((in[pos + 2] & 0xFF) << 8) | (in[pos + 3] & 0xFF);
+	}
+
+	private boolean readFully(ByteBuffer buffer, long position)
+			throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			int read = m_Channel.read(buffer, position);
+			if (read < 0)
+			{
+				return false;
+			}
+			position += read;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,203 @@
+package com.joemarshall.swimcounter;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+// writes sensor samples in the compact binary recording format
+//
+// file:   magic "SWRC", version byte, flags byte, 2 reserved bytes,
+//         float quantum (size of a step when values are quantised)
+// then a series of blocks, each of which can be decoded on its own:
+//         int payload length, int sample count,
+//         long first timestamp, long last timestamp, int crc32 of payload,
+//         payload
+// each sample in the payload:
+//         type                      zigzag varint
+//         timestamp - previous one  zigzag varint (first sample in block is
+//                                   relative to the block's first timestamp)
+//         x,y,z                     quantised: zigzag varint of the change in
+//                                   round(value/quantum) since the last sample
+//                                   of the same type in this block
+//                                   otherwise: raw float bits, 4 bytes each
+// everything is big endian
+public class SensorRecordingWriter implements SensorSampleSink
+{
+	static final int MAGIC = 0x53575243;
+	static final int VERSION = 1;
+	static final int FLAG_QUANTISED = 1;
+	static final int FILE_HEADER_SIZE = 12;
+	static final int BLOCK_HEADER_SIZE = 28;
+	static final int MAX_BLOCK_SAMPLES = 4096;
+	// type, timestamp delta, 3 values
+	static final int MAX_SAMPLE_SIZE = 5 + 10 + 3 * 5;
+	// previous quantised values are kept per type, in slot (type+1)&TYPE_MASK
+	static final int TYPE_MASK = 31;
+
+	private OutputStream m_Out;
+	private boolean m_Quantised;
+	private float m_InverseQuantum;
+
+	private byte[] m_Payload = new byte[MAX_BLOCK_SAMPLES * MAX_SAMPLE_SIZE];
+	private byte[] m_Header = new byte[BLOCK_HEADER_SIZE];
+	private int m_Length = 0;
+	private int m_Samples = 0;
+	private long m_FirstTimestamp;
+	private long m_PreviousTimestamp;
+	private int[] m_PreviousValues = new int[(TYPE_MASK + 1) * 3];
+	private CRC32 m_Crc = new CRC32();
+
+	public long samplesWritten = 0;
+	public long bytesWritten = 0;
+
+	// quantum is the resolution to store values at, or 0 to store them exactly
+	public SensorRecordingWriter(OutputStream out, float quantum)
+			throws IOException
+	{
+		m_Out = out;
+		m_Quantised = quantum > 0f;
+		m_InverseQuantum = m_Quantised ? 1f / quantum : 0f;
+		byte[] header = new byte[FILE_HEADER_SIZE];
+		putInt(header, 0, MAGIC);
+		header[4] = VERSION;
+		header[5] = (byte) (m_Quantised ? FLAG_QUANTISED : 0);
+		putInt(header, 8, Float.floatToIntBits(m_Quantised ? quantum : 0f));
+		m_Out.write(header);
+		bytesWritten += FILE_HEADER_SIZE;
+	}
+
+	@Override
+	public void onSample(int type, float x, float y, float z, long timestamp)
+	{
+		if (m_Samples == 0)
+		{
+			m_FirstTimestamp = timestamp;
+			m_PreviousTimestamp = timestamp;
+			Arrays.fill(m_PreviousValues, 0);
+		}
+		byte[] out = m_Payload;
+		int pos = m_Length;
+		pos = putVarLong(out, pos, zigzag(type));
+		pos = putVarLong(out, pos, zigzag(timestamp - m_PreviousTimestamp));
+		m_PreviousTimestamp = timestamp;
+		if (m_Quantised)
+		{
+			int slot = ((type + 1) & TYPE_MASK) * 3;
+			pos = putValue(out, pos, x, slot);
+			pos = putValue(out, pos, y, slot + 1);
+			pos = putValue(out, pos, z, slot + 2);
+		} else
+		{
+			putInt(out, pos, Float.floatToRawIntBits(x));
+			putInt(out, pos + 4, Float.floatToRawIntBits(y));
+			putInt(out, pos + 8, Float.floatToRawIntBits(z));
+			pos += 12;
+		}
+		m_Length = pos;
+		m_Samples++;
+		samplesWritten++;
+		if (m_Samples == MAX_BLOCK_SAMPLES)
+		{
+			try
+			{
+				flushBlock();
+			} catch (IOException e)
+			{
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	// write out whatever is in the current block
+	public void flushBlock() throws IOException
+	{
+		if (m_Samples == 0)
+		{
+			return;
+		}
+		m_Crc.reset();
+		m_Crc.update(m_Payload, 0, m_Length);
+		putInt(m_Header, 0, m_Length);
+		putInt(m_Header, 4, m_Samples);
+		putLong(m_Header, 8, m_FirstTimestamp);
+		putLong(m_Header, 16, m_PreviousTimestamp);
+		putInt(m_Header, 24, (int) m_Crc.getValue());
+		m_Out.write(m_Header);
+		m_Out.write(m_Payload, 0, m_Length);
+		bytesWritten += BLOCK_HEADER_SIZE + m_Length;
+		m_Length = 0;
+		m_Samples = 0;
+	}
+
+	public void close() throws IOException
+	{
+		flushBlock();
+		m_Out.close();
+	}
+
+	private int putValue(byte[] out, int pos, float value, int slot)
+	{
+		int quantised = Math.round(value * m_InverseQuantum);
+		int delta = quantised - m_PreviousValues[slot];
+		m_PreviousValues[slot] = quantised;
+		return putVarLong(out, pos, zigzag(delta));
+	}
+
+	static long zigzag(long value)
+	{
+		return (value << 1) ^ (value >> 63);
+	}
+
+	static int putVarLong(byte[] out, int pos, long value)
+	{
+		while ((value & ~0x7FL) != 0)
+		{
+			out[pos++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out[pos++] = (byte) value;
+		return pos;
+	}
+
+	static void putInt(byte[] out, int pos, int value)
+	{
+		out[pos] = (byte) (value >>> 24);
+		out[pos + 1] = (byte) (value >>> 16);
+		out[pos + 2] = (byte) (value >>> 8);
+		out[pos + 3] = (byte) value;
+	}
+
+	static void putLong(byte[] out, int pos, long value)
+	{
+		putInt(out, pos, (int) (value >>> 32));
+		putInt(out, pos + 4, (int) value);
+	}
+
+	// convert csv recordings to binary
+	// usage: java com.joemarshall.swimcounter.SensorRecordingWriter in.csv out.swr [quantum]
+	public static void main(String[] args) throws IOException
+	{
+		float quantum = args.length > 2 ? Float.parseFloat(args[2]) : 0.0001f;
+		CsvSensorReader reader = new CsvSensorReader(new File(args[0]));
+		SensorRecordingWriter writer = new SensorRecordingWriter(
+				new BufferedOutputStream(new FileOutputStream(args[1]), 1 << 16),
+				quantum);
+		try
+		{
+			reader.readAll(writer);
+		} finally
+		{
+			writer.close();
+			reader.close();
+		}
+		System.err.println(String.format(Locale.UK,
+				"%d samples, %d bytes (%.1f bytes/sample)",
+				writer.samplesWritten, writer.bytesWritten,
+				(double) writer.bytesWritten / writer.samplesWritten));
+	}
+}
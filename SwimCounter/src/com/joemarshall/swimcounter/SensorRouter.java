@@ -0,0 +1,270 @@
+package com.joemarshall.swimcounter;
+
+import android.hardware.Sensor;
+
+// routes live, recorded or network sensor samples into a SwimMetricExtractor
+// turning rotation vectors, or accelerometer plus magnetometer on devices
+// without a rotation vector sensor, into orientation on the way
+//
+// Nothing here touches the android runtime (the sensor types are compile time
+// constants and OrientationKernel does the SensorManager maths), so it can be
+// used headless on a desktop JVM
+public class SensorRouter implements SensorSampleSink
+{
+	private SwimMetricExtractor m_Extractor;
+	private OrientationKernel m_Orientation = new OrientationKernel();
+
+	// accelerometer fallback: gravity comes from this, the original
+	// fixed low pass unless something better is set
+	private GravityFilter m_GravityFilter = new LowPassGravityFilter();
+	private float[] m_MagneticField = new float[3];
+
+	// optional stages every sample goes through before routing: first
+	// the merger puts streams in timestamp order, then the resampler puts
+	// them on a fixed rate. m_Input is the first stage, or null if there
+	// aren't any
+	private TimestampMerger m_Merger = null;
+	private Resampler m_Resampler = null;
+	private SensorSampleSink m_Input = null;
+	private SensorSampleSink m_Route = new SensorSampleSink()
+	{
+		public void onSample(int type, float x, float y, float z,
+				long timestamp)
+		{
+			route(type, x, y, z, timestamp);
+		}
+	};
+
+	// samples of types we don't use
+	public long unsupportedSamples = 0;
+
+	// number of types route() uses, see slotOf
+	static final int NUM_SLOTS = 6;
+
+	public SensorRouter(SwimMetricExtractor extractor)
+	{
+		m_Extractor = extractor;
+	}
+
+	public void setExtractor(SwimMetricExtractor extractor)
+	{
+		m_Extractor = extractor;
+	}
+
+	public SwimMetricExtractor getExtractor()
+	{
+		return m_Extractor;
+	}
+
+	public void setGravityFilter(GravityFilter filter)
+	{
+		m_GravityFilter = filter;
+	}
+
+	public GravityFilter getGravityFilter()
+	{
+		return m_GravityFilter;
+	}
+
+	// resample all the sensor streams to rateHz before they go any further,
+	// 0 to turn it off
+	public void setResampleRate(double rateHz)
+	{
+		m_Resampler = (rateHz > 0) ? new Resampler(m_Route, rateHz) : null;
+		connectStages();
+	}
+
+	public Resampler getResampler()
+	{
+		return m_Resampler;
+	}
+
+	// hold samples for up to windowNs to put them in timestamp order, 0 to
+	// turn it off. Capacity is the most samples held at once
+	public void setReorderWindow(long windowNs, int capacity)
+	{
+		if (m_Merger != null)
+		{
+			m_Merger.flush();
+		}
+		m_Merger = (windowNs > 0) ? new TimestampMerger(m_Route, windowNs,
+				capacity) : null;
+		connectStages();
+	}
+
+	public TimestampMerger getMerger()
+	{
+		return m_Merger;
+	}
+
+	// pass on anything the merger is holding, e.g. at the end of a recording
+	public void flush()
+	{
+		if (m_Merger != null)
+		{
+			m_Merger.flush();
+		}
+	}
+
+	private void connectStages()
+	{
+		m_Input = null;
+		SensorSampleSink next = m_Route;
+		if (m_Resampler != null)
+		{
+			m_Resampler.setTarget(next);
+			next = m_Input = m_Resampler;
+		}
+		if (m_Merger != null)
+		{
+			m_Merger.setTarget(next);
+			m_Input = m_Merger;
+		}
+	}
+
+	@Override
+	public void onSample(int type, float x, float y, float z, long timestamp)
+	{
+		if (m_Input != null)
+		{
+			m_Input.onSample(type, x, y, z, timestamp);
+		} else
+		{
+			route(type, x, y, z, timestamp);
+		}
+	}
+
+	private void route(int type, float x, float y, float z, long timestamp)
+	{
+		switch (type)
+		{
+		case Sensor.TYPE_LINEAR_ACCELERATION:
+			m_Extractor.onLinearAcceleration(timestamp, x, y, z);
+			break;
+		case LiveCounterActivity.PREPROCESSED_ORIENTATION:
+			m_Extractor.onOrientationChange(timestamp, x, y, z);
+			break;
+		case Sensor.TYPE_ROTATION_VECTOR:
+			m_Orientation.fromRotationVector(x, y, z);
+			sendOrientation(timestamp);
+			break;
+		case Sensor.TYPE_MAGNETIC_FIELD:
+			m_MagneticField[0] = x;
+			m_MagneticField[1] = y;
+			m_MagneticField[2] = z;
+			break;
+		case Sensor.TYPE_ACCELEROMETER:
+			onAccelerometer(timestamp, x, y, z);
+			break;
+		case Sensor.TYPE_GYROSCOPE:
+			m_GravityFilter.onGyroscope(timestamp, x, y, z);
+			break;
+		default:
+			unsupportedSamples += 1;
+			break;
+		}
+	}
+
+	// 0 to NUM_SLOTS-1 for each type route() uses, -1 for anything else, so
+	// stages that keep state per type (resampling, rate limiting) can keep
+	// it in arrays without two types ever sharing a slot
+	static int slotOf(int type)
+	{
+		switch (type)
+		{
+		case Sensor.TYPE_LINEAR_ACCELERATION:
+			return 0;
+		case LiveCounterActivity.PREPROCESSED_ORIENTATION:
+			return 1;
+		case Sensor.TYPE_ROTATION_VECTOR:
+			return 2;
+		case Sensor.TYPE_MAGNETIC_FIELD:
+			return 3;
+		case Sensor.TYPE_ACCELEROMETER:
+			return 4;
+		case Sensor.TYPE_GYROSCOPE:
+			return 5;
+		default:
+			return -1;
+		}
+	}
+
+	// a rotation vector event that has the w component too. It goes through
+	// the merger and resampler like everything else, as orientation angles
+	public void onRotationVector(long timestamp, float x, float y, float z,
+			float w)
+	{
+		m_Orientation.fromQuaternion(x, y, z, w);
+		onSample(LiveCounterActivity.PREPROCESSED_ORIENTATION,
+				m_Orientation.yaw, m_Orientation.pitch, m_Orientation.roll,
+				timestamp);
+	}
+
+	private void sendOrientation(long timestamp)
+	{
+		m_Extractor.onOrientationChange(timestamp, m_Orientation.yaw,
+				m_Orientation.pitch, m_Orientation.roll);
+	}
+
+	private void onAccelerometer(long timestamp, float x, float y, float z)
+	{
+		if (!m_GravityFilter.onAccelerometer(timestamp, x, y, z))
+		{
+			return;
+		}
+		m_Extractor.onGlobalAcceleration(timestamp, x, y, z);
+		// if there's no fix (e.g. no magnetometer yet) this sends the last
+		// orientation again, as getRotationMatrix leaves the matrix alone
+		float[] gravity = m_GravityFilter.getGravity();
+		m_Orientation.fromGravityAndMagnetic(gravity[0], gravity[1],
+				gravity[2], m_MagneticField[0], m_MagneticField[1],
+				m_MagneticField[2]);
+		sendOrientation(timestamp);
+	}
+
+	// route a block of samples, values holds x,y,z for each one. Runs of
+	// linear acceleration or orientation go to the extractor's batch calls in
+	// one go, anything that needs fusing goes a sample at a time
+	public void onSamples(int[] types, long[] timestamps, float[] values,
+			int count)
+	{
+		if (m_Input != null)
+		{
+			for (int c = 0; c < count; c++)
+			{
+				m_Input.onSample(types[c], values[c * 3],
+						values[c * 3 + 1], values[c * 3 + 2], timestamps[c]);
+			}
+			return;
+		}
+		int start = 0;
+		while (start < count)
+		{
+			int type = types[start];
+			int end = start + 1;
+			while (end < count && types[end] == type)
+			{
+				end++;
+			}
+			switch (type)
+			{
+			case Sensor.TYPE_LINEAR_ACCELERATION:
+				m_Extractor.onLinearAccelerationBatch(timestamps, values,
+						start, end - start);
+				break;
+			case LiveCounterActivity.PREPROCESSED_ORIENTATION:
+				m_Extractor.onOrientationBatch(timestamps, values, start, end
+						- start);
+				break;
+			default:
+				for (int c = start; c < end; c++)
+				{
+					route(type, values[c * 3], values[c * 3 + 1],
+							values[c * 3 + 2], timestamps[c]);
+				}
+				break;
+			}
+			start = end;
+		}
+	}
+}
@@ -0,0 +1,9 @@
+package com.joemarshall.swimcounter;
+
+// something that takes a stream of sensor samples, where type is the android
+// sensor type (or LiveCounterActivity.PREPROCESSED_ORIENTATION) and timestamp
+// is the sensor event time in nanoseconds
+public interface SensorSampleSink
+{
+	public void onSample(int type, float x, float y, float z, long timestamp);
+}
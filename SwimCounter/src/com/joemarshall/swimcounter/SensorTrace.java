@@ -0,0 +1,92 @@
+package com.joemarshall.swimcounter;
+
+import java.io.File;
+import java.io.IOException;
+
+// a sensor trace held in memory in primitive arrays, so that it can be replayed
+// over and over (e.g. by the benchmarks) with no i/o or allocation
+public class SensorTrace implements SensorSampleSink
+{
+	public int[] types;
+	public long[] timestamps;
+	// x,y,z for each sample
+	public float[] values;
+	public int count = 0;
+
+	public SensorTrace()
+	{
+		this(1024);
+	}
+
+	public SensorTrace(int capacity)
+	{
+		types = new int[capacity];
+		timestamps = new long[capacity];
+		values = new float[capacity * 3];
+	}
+
+	// load a whole recording (csv or binary) into memory
+	public static SensorTrace load(File path) throws IOException
+	{
+		SensorTrace trace = new SensorTrace();
+		LogReplay.readRecording(path, trace);
+		return trace;
+	}
+
+	@Override
+	public void onSample(int type, float x, float y, float z, long timestamp)
+	{
+		if (count == types.length)
+		{
+			grow();
+		}
+		types[count] = type;
+		timestamps[count] = timestamp;
+		values[count * 3] = x;
+		values[count * 3 + 1] = y;
+		values[count * 3 + 2] = z;
+		count++;
+	}
+
+	public void replay(SensorSampleSink sink)
+	{
+		replay(sink, 0, count);
+	}
+
+	// replay samples [from,to)
+	public void replay(SensorSampleSink sink, int from, int to)
+	{
+		int[] types = this.types;
+		long[] timestamps = this.timestamps;
+		float[] values = this.values;
+		for (int c = from; c < to; c++)
+		{
+			sink.onSample(types[c], values[c * 3], values[c * 3 + 1],
+					values[c * 3 + 2], timestamps[c]);
+		}
+	}
+
+	public long lastTimestamp()
+	{
+		return count > 0 ? timestamps[count - 1] : 0L;
+	}
+
+	public void clear()
+	{
+		count = 0;
+	}
+
+	private void grow()
+	{
+		int capacity = types.length * 2;
+		int[] newTypes = new int[capacity];
+		long[] newTimestamps = new long[capacity];
+		float[] newValues = new float[capacity * 3];
+		System.arraycopy(types, 0, newTypes, 0, count);
+		System.arraycopy(timestamps, 0, newTimestamps, 0, count);
+		System.arraycopy(values, 0, newValues, 0, count * 3);
+		types = newTypes;
+		timestamps = newTimestamps;
+		values = newValues;
+	}
+}
@@ -0,0 +1,101 @@
+package com.joemarshall.swimcounter;
+
+import java.nio.ByteBuffer;
+
+// streaming peak detector, used to find thrusts (breaststroke kicks) in the
+// acceleration
+//
+// a sample is a peak if it is the biggest value within HALF_WINDOW_NS either
+// side of it, and stands out from the signal: at least MIN_HEIGHT and
+// THRESHOLD_SDS standard deviations above the running mean. A peak can only
+// be known HALF_WINDOW_NS after it happens, so isPeak() is true for the one
+// sample when that time is up. O(1) amortised per sample, no allocation.
+public class SinglePeakDetector
+{
+	static final long HALF_WINDOW_NS = 250000000L;
+	static final float MIN_HEIGHT = 2.0f;
+	static final float THRESHOLD_SDS = 2.0f;
+	private static final float STATS_WEIGHT = 0.005f;
+
+	private SlidingMax m_Max = new SlidingMax(HALF_WINDOW_NS * 2, 1024);
+	private RunningStats m_Stats = new RunningStats(STATS_WEIGHT);
+	private long m_LastPeak = Long.MIN_VALUE;
+	private boolean m_IsPeak = false;
+	private float m_PeakValue = 0;
+	private long m_PeakTimestamp = 0;
+
+	// forget recent samples (but not the signal level)
+	public void clear()
+	{
+		m_Max.clear();
+		m_LastPeak = Long.MIN_VALUE;
+		m_IsPeak = false;
+	}
+
+	public void addValue(long timestamp, float value)
+	{
+		// threshold from before this sample, so a big peak doesn't raise the
+		// bar for itself
+		float threshold = Math.max(MIN_HEIGHT, m_Stats.mean() + THRESHOLD_SDS
+				* m_Stats.standardDeviation());
+		m_Stats.add(value);
+		m_Max.add(timestamp, value);
+		m_IsPeak = false;
+		long candidate = m_Max.maxTimestamp();
+		// the max of the last full window is a peak once half a window has
+		// gone by after it (so it is the max on both sides). If it only got to
+		// the front because something bigger before it went out of the
+		// window, that bigger one was checked first: anything within half a
+		// window after it isn't the biggest on its left side
+		if (candidate != m_LastPeak
+				&& timestamp - candidate >= HALF_WINDOW_NS)
+		{
+			boolean shadowed = m_LastPeak != Long.MIN_VALUE
+					&& candidate - m_LastPeak < HALF_WINDOW_NS;
+			m_LastPeak = candidate;
+			if (!shadowed && m_Max.max() > threshold)
+			{
+				m_IsPeak = true;
+				m_PeakValue = m_Max.max();
+				m_PeakTimestamp = candidate;
+			}
+		}
+	}
+
+	// true if the last value added confirmed a peak
+	public boolean isPeak()
+	{
+		return m_IsPeak;
+	}
+
+	public float peakValue()
+	{
+		return m_PeakValue;
+	}
+
+	// when the last peak actually happened
+	public long peakTimestamp()
+	{
+		return m_PeakTimestamp;
+	}
+
+	public void save(ByteBuffer out)
+	{
+		m_Max.save(out);
+		m_Stats.save(out);
+		out.putLong(m_LastPeak);
+		out.put((byte) (m_IsPeak ? 1 : 0));
+		out.putFloat(m_PeakValue);
+		out.putLong(m_PeakTimestamp);
+	}
+
+	public void restore(ByteBuffer in)
+	{
+		m_Max.restore(in);
+		m_Stats.restore(in);
+		m_LastPeak = in.getLong();
+		m_IsPeak = in.get() != 0;
+		m_PeakValue = in.getFloat();
+		m_PeakTimestamp = in.getLong();
+	}
+}
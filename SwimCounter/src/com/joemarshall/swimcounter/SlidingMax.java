@@ -0,0 +1,106 @@
+package com.joemarshall.swimcounter;
+
+import java.nio.ByteBuffer;
+
+// maximum of a signal over the last windowNs of time, O(1) amortised per
+// sample
+//
+// keeps a monotonic deque: each sample is only kept while nothing newer is at
+// least as big, so the front is always the maximum. The deque is a ring of
+// primitive arrays, so nothing is allocated; if it is full (only possible if
+// the sample rate is more than capacity / window) the oldest entry is dropped.
+// For a sliding minimum, add the negated signal.
+public class SlidingMax
+{
+	private long m_Window;
+	private int m_Mask;
+	private long[] m_Timestamps;
+	private float[] m_Values;
+	private int m_Head = 0;
+	private int m_Size = 0;
+
+	// capacity must be a power of two
+	public SlidingMax(long windowNs, int capacity)
+	{
+		m_Window = windowNs;
+		m_Mask = capacity - 1;
+		m_Timestamps = new long[capacity];
+		m_Values = new float[capacity];
+	}
+
+	public void clear()
+	{
+		m_Head = 0;
+		m_Size = 0;
+	}
+
+	public void add(long timestamp, float value)
+	{
+		// anything not bigger than the new value can never be the max again
+		while (m_Size > 0 && m_Values[(m_Head + m_Size - 1) & m_Mask] <= value)
+		{
+			m_Size--;
+		}
+		if (m_Size > m_Mask)
+		{
+			m_Head = (m_Head + 1) & m_Mask;
+			m_Size--;
+		}
+		int slot = (m_Head + m_Size) & m_Mask;
+		m_Timestamps[slot] = timestamp;
+		m_Values[slot] = value;
+		m_Size++;
+		// drop anything too old
+		long oldest = timestamp - m_Window;
+		while (m_Size > 1 && m_Timestamps[m_Head] < oldest)
+		{
+			m_Head = (m_Head + 1) & m_Mask;
+			m_Size--;
+		}
+	}
+
+	public boolean isEmpty()
+	{
+		return m_Size == 0;
+	}
+
+	public float max()
+	{
+		return m_Values[m_Head];
+	}
+
+	// when the current maximum happened
+	public long maxTimestamp()
+	{
+		return m_Timestamps[m_Head];
+	}
+
+	// only the entries in the deque are saved
+	public void save(ByteBuffer out)
+	{
+		out.putInt(m_Size);
+		for (int c = 0; c < m_Size; c++)
+		{
+			int slot = (m_Head + c) & m_Mask;
+			out.putLong(m_Timestamps[slot]);
+			out.putFloat(m_Values[slot]);
+		}
+	}
+
+	public void restore(ByteBuffer in)
+	{
+		int size = in.getInt();
+		clear();
+		for (int c = 0; c < size; c++)
+		{
+			long timestamp = in.getLong();
+			float value = in.getFloat();
+			if (m_Size <= m_Mask)
+			{
+				m_Timestamps[m_Size] = timestamp;
+				m_Values[m_Size] = value;
+				m_Size++;
+			}
+		}
+	}
+}
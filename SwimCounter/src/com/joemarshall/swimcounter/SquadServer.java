@@ -0,0 +1,336 @@
+package com.joemarshall.swimcounter;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Locale;
+
+import com.joemarshall.swimcounter.SwimMetricExtractor.EventPoint;
+import com.joemarshall.swimcounter.SwimMetricExtractor.LengthStatistics;
+
+// headless server that takes network sensor streams from a whole squad at
+// once, on a single thread with non-blocking i/o. Each connection gets its
+// own SwimMetricExtractor and its lengths go to that swimmer's sink.
+//
+// each connection sends an int swimmer id, followed by any number of samples:
+//   int type, long timestamp, float x, float y, float z
+// all big endian
+public class SquadServer implements Runnable
+{
+	interface Callback
+	{
+		// a swimmer has connected, return where their lengths should go
+		public LogReplay.Callback onSwimmerConnect(int swimmer);
+		public void onSwimmerDisconnect(int swimmer);
+	}
+
+	static final int SAMPLE_SIZE = 24;
+	static final int BUFFER_SIZE = 1 << 14;
+	// phones send accelerometer and orientation from different threads, so
+	// they can arrive a little out of order
+	static final long REORDER_WINDOW_NS = 50000000L;
+
+	class Swimmer implements SwimMetricExtractor.Callback
+	{
+		int id = -1;
+		boolean haveId = false;
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		SwimMetricExtractor extractor = new SwimMetricExtractor(this);
+		SensorRouter router = new SensorRouter(extractor);
+		LogReplay.Callback sink;
+		long samples = 0;
+		// samples decoded from the last read, handed to the router in one go
+		SensorTrace batch = new SensorTrace(BUFFER_SIZE / SAMPLE_SIZE);
+
+		Swimmer()
+		{
+			router.setReorderWindow(REORDER_WINDOW_NS, 1024);
+		}
+
+		// decode everything complete in the buffer, returns false if the
+		// swimmer sent something invalid and should be disconnected
+		boolean process()
+		{
+			ByteBuffer in = buffer;
+			in.flip();
+			if (!haveId)
+			{
+				if (in.remaining() < 4)
+				{
+					in.compact();
+					return true;
+				}
+				id = in.getInt();
+				if (id < 0)
+				{
+					return false;
+				}
+				haveId = true;
+				sink = m_Callback.onSwimmerConnect(id);
+			}
+			batch.clear();
+			while (in.remaining() >= SAMPLE_SIZE)
+			{
+				int type = in.getInt();
+				long timestamp = in.getLong();
+				float x = in.getFloat();
+				float y = in.getFloat();
+				float z = in.getFloat();
+				batch.onSample(type, x, y, z, timestamp);
+			}
+			in.compact();
+			router.onSamples(batch.types, batch.timestamps, batch.values,
+					batch.count);
+			samples += batch.count;
+			return true;
+		}
+
+		@Override
+		public void onEvent(EventPoint event)
+		{
+		}
+
+		@Override
+		public void onLengthComplete(LengthStatistics stats)
+		{
+			if (sink != null)
+			{
+				sink.onLengthComplete(stats);
+			}
+		}
+
+		@Override
+		public void logError(String tag, String value)
+		{
+		}
+
+		@Override
+		public void logInfo(String tag, String value)
+		{
+		}
+	}
+
+	private Callback m_Callback;
+	private Selector m_Selector;
+	private ServerSocketChannel m_ServerChannel;
+	private volatile boolean m_Running = true;
+
+	public int connections = 0;
+
+	public SquadServer(int port, Callback cb) throws IOException
+	{
+		m_Callback = cb;
+		m_Selector = Selector.open();
+		m_ServerChannel = ServerSocketChannel.open();
+		m_ServerChannel.configureBlocking(false);
+		m_ServerChannel.socket().setReuseAddress(true);
+		m_ServerChannel.socket().bind(new InetSocketAddress(port));
+		m_ServerChannel.register(m_Selector, SelectionKey.OP_ACCEPT);
+	}
+
+	public int getPort()
+	{
+		return m_ServerChannel.socket().getLocalPort();
+	}
+
+	public void stop()
+	{
+		m_Running = false;
+		m_Selector.wakeup();
+	}
+
+	@Override
+	public void run()
+	{
+		try
+		{
+			while (m_Running)
+			{
+				m_Selector.select();
+				Iterator<SelectionKey> keys = m_Selector.selectedKeys()
+						.iterator();
+				while (keys.hasNext())
+				{
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid())
+					{
+						continue;
+					}
+					if (key.isAcceptable())
+					{
+						accept();
+					} else if (key.isReadable())
+					{
+						read(key);
+					}
+				}
+			}
+		} catch (IOException e)
+		{
+			System.err.println("squad server: " + e);
+		} finally
+		{
+			closeAll();
+		}
+	}
+
+	// a connection that can't be set up is closed, without stopping the
+	// server or anyone else
+	private void accept()
+	{
+		while (true)
+		{
+			SocketChannel channel;
+			try
+			{
+				channel = m_ServerChannel.accept();
+			} catch (IOException e)
+			{
+				// e.g. out of file descriptors, try again next select
+				System.err.println("squad server: accept " + e);
+				return;
+			}
+			if (channel == null)
+			{
+				return;
+			}
+			try
+			{
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				channel.register(m_Selector, SelectionKey.OP_READ,
+						new Swimmer());
+				connections++;
+			} catch (IOException e)
+			{
+				System.err.println("squad server: accept " + e);
+				try
+				{
+					channel.close();
+				} catch (IOException closeError)
+				{
+				}
+			}
+		}
+	}
+
+	private void read(SelectionKey key)
+	{
+		Swimmer swimmer = (Swimmer) key.attachment();
+		SocketChannel channel = (SocketChannel) key.channel();
+		int read;
+		try
+		{
+			read = channel.read(swimmer.buffer);
+		} catch (IOException e)
+		{
+			read = -1;
+		}
+		if (read < 0)
+		{
+			disconnect(key, swimmer);
+			return;
+		}
+		boolean ok;
+		try
+		{
+			ok = swimmer.process();
+		} catch (RuntimeException e)
+		{
+			// a problem with one swimmer's data or sink only loses them
+			System.err.println("squad server: swimmer " + swimmer.id + " " + e);
+			ok = false;
+		}
+		if (!ok)
+		{
+			disconnect(key, swimmer);
+		}
+	}
+
+	private void disconnect(SelectionKey key, Swimmer swimmer)
+	{
+		key.cancel();
+		try
+		{
+			key.channel().close();
+		} catch (IOException e)
+		{
+		}
+		connections--;
+		if (!swimmer.haveId)
+		{
+			return;
+		}
+		try
+		{
+			swimmer.router.flush();
+		} catch (RuntimeException e)
+		{
+			System.err.println("squad server: swimmer " + swimmer.id + " " + e);
+		}
+		// and the callback mustn't take the server down with it
+		try
+		{
+			m_Callback.onSwimmerDisconnect(swimmer.id);
+		} catch (RuntimeException e)
+		{
+			System.err.println("squad server: swimmer " + swimmer.id + " " + e);
+		}
+	}
+
+	private void closeAll()
+	{
+		for (SelectionKey key : m_Selector.keys())
+		{
+			if (key.isValid() && key.attachment() instanceof Swimmer)
+			{
+				disconnect(key, (Swimmer) key.attachment());
+			}
+		}
+		try
+		{
+			m_ServerChannel.close();
+			m_Selector.close();
+		} catch (IOException e)
+		{
+		}
+	}
+
+	// usage: java com.joemarshall.swimcounter.SquadServer [port]
+	// prints swimmer,length time,strokes,stroke,turn for every length
+	public static void main(String[] args) throws IOException
+	{
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 5678;
+		SquadServer server = new SquadServer(port, new Callback()
+		{
+			public LogReplay.Callback onSwimmerConnect(final int swimmer)
+			{
+				System.err.println("swimmer " + swimmer + " connected");
+				return new LogReplay.Callback()
+				{
+					public void onLengthComplete(LengthStatistics stats)
+					{
+						System.out.println(String.format(Locale.UK,
+								"%d,%f,%d,%s,%s", swimmer,
+								((double) stats.lengthTime) / 1000000000.0,
+								stats.strokes, stats.stroke.toString(),
+								stats.turnType.toString()));
+					}
+				};
+			}
+
+			public void onSwimmerDisconnect(int swimmer)
+			{
+				System.err.println("swimmer " + swimmer + " disconnected");
+			}
+		});
+		System.err.println("listening on " + server.getPort());
+		server.run();
+	}
+}
@@ -0,0 +1,235 @@
+package com.joemarshall.swimcounter;
+
+import java.util.Locale;
+
+// where the extractor's time goes: a LatencyHistogram of every stage of
+// updateState, per input type, plus how often each stage found something
+// (a turn, a roll, a thrust, ...)
+//
+// off by default, when every call is one field test and a return. When on,
+// each sample starts with begin(), each stage calls lap() as it finishes
+// (which records the time since the last lap against that stage) and end()
+// records the whole sample. That is one System.nanoTime() per stage, whose
+// own cost (measured when profiling is turned on, timerOverheadNs) is
+// included in every figure. Memory is fixed once it is turned on.
+//
+// the extractor's callbacks (onEvent, onLengthComplete) run inline from some
+// stages and can do anything (write files, update the display). The time
+// between callbackStart() and callbackEnd() goes in its own "callbacks" stage
+// and is taken out of the stage that made the call and the total, so those
+// only measure the extractor.
+//
+// only touch it from the thread running the extractor; snapshot() (e.g.
+// posted to SensorProcessor) gives a copy of the figures as text.
+public class StageProfiler
+{
+	public static final int INPUT_ORIENTATION = 0;
+	public static final int INPUT_ACCELERATION = 1;
+	static final String[] INPUT_NAMES = { "orientation", "acceleration" };
+
+	public static final int STAGE_TIME = 0; // time in length
+	public static final int STAGE_STROKE_RATE = 1;
+	public static final int STAGE_ROLL_CLASSIFY = 2;
+	public static final int STAGE_TAPS = 3;
+	public static final int STAGE_TURN = 4;
+	public static final int STAGE_SWIM_STATE = 5;
+	public static final int STAGE_ROLL = 6;
+	public static final int STAGE_DIRECTION = 7;
+	public static final int STAGE_THRUST = 8;
+	public static final int STAGE_STROKE = 9;
+	// time spent in the extractor's callbacks
+	public static final int STAGE_CALLBACKS = 10;
+	// the whole sample, begin() to end(), less callbacks
+	public static final int STAGE_TOTAL = 11;
+	static final String[] STAGE_NAMES = { "time", "strokeRate",
+			"rollClassify", "taps", "turn", "swimState", "roll", "direction",
+			"thrust", "stroke", "callbacks", "total" };
+	static final int STAGES = STAGE_NAMES.length;
+
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+	private boolean m_Enabled = false;
+	// [input * STAGES + stage], made when first enabled
+	private LatencyHistogram[] m_Histograms;
+	private long[] m_Hits;
+
+	private int m_Input = 0;
+	private long m_Start = 0;
+	private long m_Lap = 0;
+	private long m_CallbackStart = 0;
+	private int m_CallbackDepth = 0;
+
+	public long timerOverheadNs = 0;
+
+	public boolean isEnabled()
+	{
+		return m_Enabled;
+	}
+
+	public void setEnabled(boolean enabled)
+	{
+		if (enabled && m_Histograms == null)
+		{
+			m_Histograms = new LatencyHistogram[INPUT_NAMES.length * STAGES];
+			for (int c = 0; c < m_Histograms.length; c++)
+			{
+				m_Histograms[c] = new LatencyHistogram();
+			}
+			m_Hits = new long[m_Histograms.length];
+			timerOverheadNs = measureTimerOverhead();
+		}
+		m_Enabled = enabled;
+		m_CallbackDepth = 0;
+	}
+
+	public void clear()
+	{
+		if (m_Histograms != null)
+		{
+			for (int c = 0; c < m_Histograms.length; c++)
+			{
+				m_Histograms[c].clear();
+				m_Hits[c] = 0;
+			}
+		}
+	}
+
+	// cheapest of a few back to back nanoTime calls
+	private static long measureTimerOverhead()
+	{
+		long best = Long.MAX_VALUE;
+		for (int c = 0; c < 1000; c++)
+		{
+			long start = System.nanoTime();
+			long end = System.nanoTime();
+			best = Math.min(best, end - start);
+		}
+		return best;
+	}
+
+	public void begin(int input)
+	{
+		if (!m_Enabled)
+		{
+			return;
+		}
+		m_Input = input;
+		m_Start = m_Lap = System.nanoTime();
+	}
+
+	// the stage that just ran, since begin() or the last lap()
+	public void lap(int stage)
+	{
+		if (!m_Enabled)
+		{
+			return;
+		}
+		long now = System.nanoTime();
+		m_Histograms[m_Input * STAGES + stage].record(now - m_Lap);
+		m_Lap = now;
+	}
+
+	// as lap, and count a hit for the stage if it found something
+	public void lap(int stage, boolean hit)
+	{
+		if (!m_Enabled)
+		{
+			return;
+		}
+		lap(stage);
+		if (hit)
+		{
+			m_Hits[m_Input * STAGES + stage]++;
+		}
+	}
+
+	// the extractor is calling out to its callback
+	public void callbackStart()
+	{
+		if (!m_Enabled)
+		{
+			return;
+		}
+		if (m_CallbackDepth++ == 0)
+		{
+			m_CallbackStart = System.nanoTime();
+		}
+	}
+
+	// and it has returned: count the time against the callbacks, not the
+	// stage that called it
+	public void callbackEnd()
+	{
+		if (!m_Enabled || m_CallbackDepth == 0)
+		{
+			return;
+		}
+		if (--m_CallbackDepth == 0)
+		{
+			long spent = System.nanoTime() - m_CallbackStart;
+			m_Histograms[m_Input * STAGES + STAGE_CALLBACKS].record(spent);
+			m_Lap += spent;
+			m_Start += spent;
+		}
+	}
+
+	public void end()
+	{
+		if (!m_Enabled)
+		{
+			return;
+		}
+		m_Histograms[m_Input * STAGES + STAGE_TOTAL].record(System.nanoTime()
+				- m_Start);
+	}
+
+	public LatencyHistogram getHistogram(int input, int stage)
+	{
+		return m_Histograms == null ? null : m_Histograms[input * STAGES
+				+ stage];
+	}
+
+	public long getHits(int input, int stage)
+	{
+		return m_Hits == null ? 0 : m_Hits[input * STAGES + stage];
+	}
+
+	// csv, one line per input and stage that has run:
+	// input,stage,count,hits,mean,p50,p90,p99,p99.9,max (times in ns)
+	public String snapshot()
+	{
+		StringBuilder out = new StringBuilder();
+		out.append("# timer overhead ").append(timerOverheadNs)
+				.append("ns\n");
+		out.append("input,stage,count,hits,mean,p50,p90,p99,p99.9,max\n");
+		if (m_Histograms == null)
+		{
+			return out.toString();
+		}
+		for (int input = 0; input < INPUT_NAMES.length; input++)
+		{
+			for (int stage = 0; stage < STAGES; stage++)
+			{
+				LatencyHistogram histogram = m_Histograms[input * STAGES
+						+ stage];
+				if (histogram.count() == 0)
+				{
+					continue;
+				}
+				out.append(INPUT_NAMES[input]).append(',')
+						.append(STAGE_NAMES[stage]).append(',')
+						.append(histogram.count()).append(',')
+						.append(m_Hits[input * STAGES + stage]).append(',')
+						.append(String.format(Locale.UK, "%.1f",
+								histogram.mean()));
+				for (double percentile : PERCENTILES)
+				{
+					out.append(',').append(
+							histogram.valueAtPercentile(percentile));
+				}
+				out.append(',').append(histogram.max()).append('\n');
+			}
+		}
+		return out.toString();
+	}
+}
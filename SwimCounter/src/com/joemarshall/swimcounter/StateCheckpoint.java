@@ -0,0 +1,214 @@
+package com.joemarshall.swimcounter;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+// a snapshot of the session (extractor state plus whatever the caller adds),
+// saved every so often so that if the app is killed mid swim it can carry on
+// from where it was instead of losing the session
+//
+// the caller fills a buffer from begin() on its own thread and hands it back
+// with commit(); a background thread writes it to a temp file, syncs it and
+// renames it over the last one, so there is always one whole checkpoint on
+// disk. There is only one buffer: if the last checkpoint is still being
+// written, begin() returns null and that checkpoint is skipped, so saving
+// never blocks the sensor path.
+//
+// file: int magic, int version, long savedMillis (wall clock), int length,
+// int crc32 of the payload, then length bytes of payload
+public class StateCheckpoint implements Runnable
+{
+	static final int MAGIC = 0x53574350; // "SWCP"
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 24;
+	static final int BUFFER_SIZE = 64 * 1024;
+	private static final long IDLE_PARK_NS = 1000000000L;
+
+	private File m_File;
+	// free for the caller, or null while it is being filled or written
+	private AtomicReference<ByteBuffer> m_Free = new AtomicReference<ByteBuffer>();
+	// filled and waiting to be written
+	private AtomicReference<ByteBuffer> m_Pending = new AtomicReference<ByteBuffer>();
+	private CRC32 m_Crc = new CRC32();
+
+	private volatile boolean m_Running = false;
+	private Thread m_Thread;
+
+	public int written = 0;
+	public int skipped = 0;
+	public int failed = 0;
+
+	public StateCheckpoint(File file)
+	{
+		m_File = file;
+		m_Free.set(ByteBuffer.allocate(BUFFER_SIZE));
+	}
+
+	public void start()
+	{
+		m_Running = true;
+		m_Thread = new Thread(this, "StateCheckpoint");
+		m_Thread.setDaemon(true);
+		m_Thread.start();
+	}
+
+	// stop the writer thread, after writing anything already committed
+	public void close()
+	{
+		m_Running = false;
+		if (m_Thread != null)
+		{
+			LockSupport.unpark(m_Thread);
+			try
+			{
+				m_Thread.join();
+			} catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			m_Thread = null;
+		}
+		writePending();
+	}
+
+	// the buffer to put the next checkpoint in, or null if the last one is
+	// still being written
+	public ByteBuffer begin()
+	{
+		ByteBuffer buffer = m_Free.getAndSet(null);
+		if (buffer == null)
+		{
+			skipped++;
+			return null;
+		}
+		buffer.clear();
+		buffer.position(HEADER_SIZE);
+		return buffer;
+	}
+
+	// write out what has been put in buffer since begin()
+	public void commit(ByteBuffer buffer)
+	{
+		buffer.flip();
+		m_Pending.set(buffer);
+		if (m_Thread != null)
+		{
+			LockSupport.unpark(m_Thread);
+		}
+	}
+
+	// give back a buffer from begin() without writing it (e.g. it overflowed)
+	public void abandon(ByteBuffer buffer)
+	{
+		m_Free.set(buffer);
+	}
+
+	@Override
+	public void run()
+	{
+		while (m_Running)
+		{
+			if (!writePending())
+			{
+				LockSupport.parkNanos(IDLE_PARK_NS);
+			}
+		}
+	}
+
+	private boolean writePending()
+	{
+		ByteBuffer buffer = m_Pending.getAndSet(null);
+		if (buffer == null)
+		{
+			return false;
+		}
+		try
+		{
+			write(buffer);
+			written++;
+		} catch (IOException e)
+		{
+			failed++;
+		}
+		m_Free.set(buffer);
+		return true;
+	}
+
+	private void write(ByteBuffer buffer) throws IOException
+	{
+		int length = buffer.limit() - HEADER_SIZE;
+		m_Crc.reset();
+		m_Crc.update(buffer.array(), HEADER_SIZE, length);
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, VERSION);
+		buffer.putLong(8, System.currentTimeMillis());
+		buffer.putInt(16, length);
+		buffer.putInt(20, (int) m_Crc.getValue());
+
+		File temp = new File(m_File.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		try
+		{
+			out.write(buffer.array(), 0, buffer.limit());
+			// on disk before it replaces the old one
+			out.getFD().sync();
+		} finally
+		{
+			out.close();
+		}
+		if (!temp.renameTo(m_File))
+		{
+			throw new IOException("can't replace " + m_File);
+		}
+	}
+
+	// the payload of the saved checkpoint, or null if there isn't one, it is
+	// damaged, or it was saved more than maxAgeMillis ago
+	public ByteBuffer load(long maxAgeMillis) throws IOException
+	{
+		long size = m_File.length();
+		if (!m_File.exists() || size < HEADER_SIZE || size > BUFFER_SIZE)
+		{
+			return null;
+		}
+		byte[] data = new byte[(int) size];
+		DataInputStream in = new DataInputStream(new FileInputStream(m_File));
+		try
+		{
+			in.readFully(data);
+		} finally
+		{
+			in.close();
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		int length = buffer.getInt(16);
+		long age = System.currentTimeMillis() - buffer.getLong(8);
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+				|| length != size - HEADER_SIZE || age < 0
+				|| age > maxAgeMillis)
+		{
+			return null;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(data, HEADER_SIZE, length);
+		if ((int) crc.getValue() != buffer.getInt(20))
+		{
+			return null;
+		}
+		buffer.position(HEADER_SIZE);
+		return buffer;
+	}
+
+	// e.g. at the end of a session, so it isn't picked up next time
+	public void delete()
+	{
+		m_File.delete();
+	}
+}
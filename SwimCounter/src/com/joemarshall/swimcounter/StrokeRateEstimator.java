@@ -0,0 +1,394 @@
+package com.joemarshall.swimcounter;
+
+import java.nio.ByteBuffer;
+
+// live stroke rate from the frequency of the roll and thrust signals, as a
+// cadence figure and a cross-check on the counted strokes
+//
+// samples are averaged into BIN_RATE_HZ bins, and a sliding DFT keeps just the
+// frequency bins that cover the range of stroke rates over the last WINDOW
+// bins. Each new bin updates those few bins in place (add the new value, take
+// away the one leaving the window, rotate), so the work per sample is
+// constant and nothing is buffered beyond the window itself.
+//
+// The sliding DFT is damped very slightly so rounding errors die away rather
+// than building up. Hann windowing is done on the bins (each one minus half its
+// neighbours), so the spectrum peak is clean enough to interpolate between bins.
+// Bin 0 (the mean) is left out of that, so a constant offset, like the mean of
+// the size of the acceleration, doesn't leak into the lowest bin.
+//
+// Thrust comes in short pulses, so much of its power is at twice the stroke
+// rate; each candidate rate is scored on its own power plus that of its second
+// harmonic, which stops the harmonic being taken for the rate.
+//
+// Roll (as sin(roll), so swimming on your back works the same) goes through
+// one cycle per two strokes; thrust has a peak every stroke. Whichever has
+// the clearer peak gives the rate.
+public class StrokeRateEstimator
+{
+	// enough for the second harmonic of the fastest rate
+	static final int BIN_RATE_HZ = 8;
+	static final long BIN_NS = 1000000000L / BIN_RATE_HZ;
+	// 8 seconds, so bins are 0.125Hz apart
+	static final int WINDOW = 64;
+	// rates of 0.25Hz to 1.5Hz (15 to 90 cycles a minute), plus bins up to
+	// twice that for the second harmonic
+	static final int FIRST_BIN = 2;
+	static final int LAST_BIN = 12;
+	static final int LAST_HARMONIC_BIN = 2 * LAST_BIN;
+	// longer gaps than this start again rather than hold the last value
+	static final long MAX_GAP_NS = 1000000000L;
+	// don't give a rate until this much of the window is filled
+	static final int MIN_BINS = WINDOW / 2;
+	static final double DAMPING = 0.9999;
+	// below this the rate isn't used for counting strokes
+	static final float MIN_CONFIDENCE = 0.5f;
+
+	// minimum RMS in the band for a signal to count at all
+	static final float MIN_ROLL_RMS = 0.1f; // sin(roll), about 6 degrees
+	static final float MIN_THRUST_RMS = 0.3f; // m/s^2
+
+	// powers of bins FIRST_BIN-1 to LAST_HARMONIC_BIN+1, so that every
+	// candidate and harmonic has both neighbours
+	private static final int BINS = LAST_HARMONIC_BIN - FIRST_BIN + 3;
+	// and the DFT bins for windowing those, up to LAST_HARMONIC_BIN+2 (bin
+	// FIRST_BIN-2 is the mean, taken as 0)
+	private static final int DFT_BINS = BINS + 1;
+	private static final double[] ROTATE_RE = new double[DFT_BINS];
+	private static final double[] ROTATE_IM = new double[DFT_BINS];
+	private static final double DAMPING_N = Math.pow(DAMPING, WINDOW);
+
+	static
+	{
+		for (int c = 0; c < DFT_BINS; c++)
+		{
+			double w = 2.0 * Math.PI * (FIRST_BIN - 1 + c) / WINDOW;
+			ROTATE_RE[c] = DAMPING * Math.cos(w);
+			ROTATE_IM[c] = DAMPING * Math.sin(w);
+		}
+	}
+
+	// one signal: bin averaging, the window and its DFT bins
+	static class Channel
+	{
+		private float m_MinRms;
+		// values are angles, averaged as such and then put through sin()
+		private boolean m_Angle;
+		// sum and count of samples in the bin being filled (for angles, the
+		// sum is of differences from the first one)
+		private long m_Bin = Long.MIN_VALUE;
+		private double m_Sum = 0;
+		private int m_Samples = 0;
+		private float m_First = 0;
+		private float m_LastValue = 0;
+
+		private float[] m_Window = new float[WINDOW];
+		private int m_Head = 0;
+		private int m_Filled = 0;
+		// FIRST_BIN-1 to LAST_HARMONIC_BIN+2, the last only for windowing
+		private double[] m_Re = new double[DFT_BINS];
+		private double[] m_Im = new double[DFT_BINS];
+		// Hann windowed power, [c] is bin FIRST_BIN - 1 + c
+		private double[] m_Power = new double[BINS];
+
+		// result of the last estimate()
+		float frequency = 0;
+		float confidence = 0;
+
+		Channel(float minRms, boolean angle)
+		{
+			m_MinRms = minRms;
+			m_Angle = angle;
+		}
+
+		void clear()
+		{
+			m_Bin = Long.MIN_VALUE;
+			m_Sum = 0;
+			m_Samples = 0;
+			m_Head = 0;
+			m_Filled = 0;
+			for (int c = 0; c < WINDOW; c++)
+			{
+				m_Window[c] = 0;
+			}
+			for (int c = 0; c < DFT_BINS; c++)
+			{
+				m_Re[c] = 0;
+				m_Im[c] = 0;
+			}
+			frequency = 0;
+			confidence = 0;
+		}
+
+		void add(long timestamp, float value)
+		{
+			long bin = timestamp / BIN_NS;
+			if (m_Bin == Long.MIN_VALUE || bin < m_Bin
+					|| (bin - m_Bin) * BIN_NS > MAX_GAP_NS)
+			{
+				if (m_Bin != Long.MIN_VALUE)
+				{
+					clear();
+				}
+				m_Bin = bin;
+				m_LastValue = m_Angle ? (float) Math.sin(value) : value;
+			}
+			if (bin > m_Bin)
+			{
+				if (m_Samples > 0)
+				{
+					m_LastValue = binValue();
+				}
+				// bins with no samples in hold the last value
+				for (long c = m_Bin; c < bin; c++)
+				{
+					push(m_LastValue);
+				}
+				m_Bin = bin;
+				m_Sum = 0;
+				m_Samples = 0;
+				estimate();
+			}
+			if (m_Samples == 0)
+			{
+				m_First = value;
+			}
+			if (m_Angle)
+			{
+				// the short way round from the first sample
+				float difference = value - m_First;
+				if (difference > Math.PI)
+				{
+					difference -= 2 * Math.PI;
+				} else if (difference < -Math.PI)
+				{
+					difference += 2 * Math.PI;
+				}
+				m_Sum += difference;
+			} else
+			{
+				m_Sum += value;
+			}
+			m_Samples++;
+		}
+
+		private float binValue()
+		{
+			if (m_Angle)
+			{
+				return (float) Math.sin(m_First + m_Sum / m_Samples);
+			}
+			return (float) (m_Sum / m_Samples);
+		}
+
+		private void push(float value)
+		{
+			float old = m_Window[m_Head];
+			m_Window[m_Head] = value;
+			m_Head = (m_Head + 1) & (WINDOW - 1);
+			if (m_Filled < WINDOW)
+			{
+				m_Filled++;
+			}
+			double delta = value - DAMPING_N * old;
+			for (int c = 0; c < DFT_BINS; c++)
+			{
+				double re = m_Re[c] + delta;
+				double im = m_Im[c];
+				m_Re[c] = re * ROTATE_RE[c] - im * ROTATE_IM[c];
+				m_Im[c] = re * ROTATE_IM[c] + im * ROTATE_RE[c];
+			}
+		}
+
+		// find the rate with the most power at it and its second harmonic
+		private void estimate()
+		{
+			if (m_Filled < MIN_BINS)
+			{
+				frequency = 0;
+				confidence = 0;
+				return;
+			}
+			double total = 0;
+			for (int c = 0; c < BINS; c++)
+			{
+				m_Power[c] = power(c);
+				total += m_Power[c];
+			}
+			// sum of |X|^2 over the band is the mean square times N^2/2, and
+			// the Hann window takes away another factor of 8/3
+			double rms = Math.sqrt(total * 2.0 * 8.0 / 3.0) / m_Filled;
+			if (total <= 0 || rms < m_MinRms)
+			{
+				frequency = 0;
+				confidence = 0;
+				return;
+			}
+			double best = -1;
+			int bestBin = 1;
+			for (int c = 1; c <= LAST_BIN - FIRST_BIN + 1; c++)
+			{
+				// only peaks of the spectrum can be the rate
+				if (m_Power[c] < m_Power[c - 1] || m_Power[c] < m_Power[c + 1])
+				{
+					continue;
+				}
+				double score = around(c) + around(harmonic(c));
+				if (score > best)
+				{
+					best = score;
+					bestBin = c;
+				}
+			}
+			// parabola through the peak and its neighbours, on magnitudes
+			double a = Math.sqrt(m_Power[bestBin - 1]);
+			double b = Math.sqrt(m_Power[bestBin]);
+			double g = Math.sqrt(m_Power[bestBin + 1]);
+			double offset = 0;
+			double denominator = a - 2 * b + g;
+			if (denominator < 0)
+			{
+				offset = 0.5 * (a - g) / denominator;
+			}
+			frequency = (float) ((FIRST_BIN - 1 + bestBin + offset)
+					* BIN_RATE_HZ / WINDOW);
+			// fraction of the power in the band that is at the rate or its
+			// harmonic
+			confidence = (float) Math.min(1.0, best / total);
+		}
+
+		// index of the second harmonic of index c
+		private static int harmonic(int c)
+		{
+			return 2 * (FIRST_BIN - 1 + c) - (FIRST_BIN - 1);
+		}
+
+		// power in bin c and the bins either side (a peak between two bins
+		// spreads over them)
+		private double around(int c)
+		{
+			return m_Power[c - 1] + m_Power[c] + m_Power[c + 1];
+		}
+
+		// everything, so a restored channel carries on exactly as this one would
+		void save(ByteBuffer out)
+		{
+			out.putLong(m_Bin);
+			out.putDouble(m_Sum);
+			out.putInt(m_Samples);
+			out.putFloat(m_First);
+			out.putFloat(m_LastValue);
+			out.putShort((short) m_Head);
+			out.putShort((short) m_Filled);
+			for (int c = 0; c < WINDOW; c++)
+			{
+				out.putFloat(m_Window[c]);
+			}
+			for (int c = 0; c < DFT_BINS; c++)
+			{
+				out.putDouble(m_Re[c]);
+				out.putDouble(m_Im[c]);
+			}
+			out.putFloat(frequency);
+			out.putFloat(confidence);
+		}
+
+		void restore(ByteBuffer in)
+		{
+			m_Bin = in.getLong();
+			m_Sum = in.getDouble();
+			m_Samples = in.getInt();
+			m_First = in.getFloat();
+			m_LastValue = in.getFloat();
+			m_Head = in.getShort() & (WINDOW - 1);
+			m_Filled = Math.min(in.getShort(), WINDOW);
+			for (int c = 0; c < WINDOW; c++)
+			{
+				m_Window[c] = in.getFloat();
+			}
+			for (int c = 0; c < DFT_BINS; c++)
+			{
+				m_Re[c] = in.getDouble();
+				m_Im[c] = in.getDouble();
+			}
+			frequency = in.getFloat();
+			confidence = in.getFloat();
+		}
+
+		// Hann windowed power of bin FIRST_BIN - 1 + c
+		private double power(int c)
+		{
+			double leftRe = (c > 0) ? m_Re[c - 1] : 0;
+			double leftIm = (c > 0) ? m_Im[c - 1] : 0;
+			double re = 0.5 * m_Re[c] - 0.25 * (leftRe + m_Re[c + 1]);
+			double im = 0.5 * m_Im[c] - 0.25 * (leftIm + m_Im[c + 1]);
+			return re * re + im * im;
+		}
+	}
+
+	private Channel m_Roll = new Channel(MIN_ROLL_RMS, true);
+	private Channel m_Thrust = new Channel(MIN_THRUST_RMS, false);
+
+	public void clear()
+	{
+		m_Roll.clear();
+		m_Thrust.clear();
+	}
+
+	public void save(ByteBuffer out)
+	{
+		m_Roll.save(out);
+		m_Thrust.save(out);
+	}
+
+	public void restore(ByteBuffer in)
+	{
+		m_Roll.restore(in);
+		m_Thrust.restore(in);
+	}
+
+	public void addRoll(long timestamp, float roll)
+	{
+		m_Roll.add(timestamp, roll);
+	}
+
+	// thrust as detectThrust sees it (forward linear acceleration, or the
+	// size of the global acceleration less gravity)
+	public void addThrust(long timestamp, float thrust)
+	{
+		m_Thrust.add(timestamp, thrust);
+	}
+
+	private boolean rollIsBetter()
+	{
+		return m_Roll.confidence >= m_Thrust.confidence;
+	}
+
+	// strokes per minute, 0 if there is no clear rate
+	public float strokeRate()
+	{
+		if (rollIsBetter())
+		{
+			// two strokes per roll cycle
+			return m_Roll.frequency * 120.0f;
+		}
+		return m_Thrust.frequency * 60.0f;
+	}
+
+	// 0 to 1, how much of the signal is at the stroke rate
+	public float confidence()
+	{
+		return Math.max(m_Roll.confidence, m_Thrust.confidence);
+	}
+
+	public float rollConfidence()
+	{
+		return m_Roll.confidence;
+	}
+
+	public float thrustConfidence()
+	{
+		return m_Thrust.confidence;
+	}
+}
@@ -1,12 +1,14 @@
 package com.joemarshall.swimcounter;
 
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
 
 public class SwimMetricExtractor
 {
 	interface Callback
 	{
 		// called on a stroke or whatever (see EventPoint)
+		// NB: the same EventPoint object is reused for every event, so copy
+		// anything you want to keep
 		public void onEvent(EventPoint event);
 		// called when a length is complete
 		public void onLengthComplete(LengthStatistics stats);
@@ -88,8 +90,8 @@ public class SwimMetricExtractor
 			events.clear();
 			stroke = StrokeState.STROKE_UNKNOWN;
 			swimming = SwimState.SWIMMING_NOT;
-			lastRoll = null;
-			lastThrust = null;
+			lastRollValue = NO_ROLL;
+			hasThrust = false;
 			leftCount = 0;
 			rightCount = 0;
 			leftOrRightLast = 0;
@@ -100,12 +102,109 @@ public class SwimMetricExtractor
 			direction_meanY = 0.;
 			direction_count = 0.;
 			timeInLength=0L;
+			rateStrokes = 0.;
 		}
 		
-		public void addEvent(EventPoint event)
+		// pitch of the latest orientation sample, NaN if there hasn't been one
+		public float lastPitch()
 		{
-			events.add(event);
-			m_Callback.onEvent(event);
+			return lastOrientation == null ? Float.NaN : lastOrientation.pitch;
+		}
+
+		// strokes per minute from the roll / thrust frequency, 0 if unclear
+		public float strokeRate()
+		{
+			return rate.strokeRate();
+		}
+
+		// 0 to 1, how clear the stroke rate is
+		public float strokeRateConfidence()
+		{
+			return rate.confidence();
+		}
+
+		void save(ByteBuffer out)
+		{
+			out.put((byte) swimming.ordinal());
+			out.put((byte) stroke.ordinal());
+			out.putInt(count);
+			out.putLong(timeInLength);
+			out.putLong(lastTimestamp);
+			events.save(out);
+			// lastHistory and lastOrientation are always one of the extractor's
+			// two points (or null)
+			out.put((byte) (lastHistory == null ? 0
+					: lastHistory == oriPoint ? 1 : 2));
+			out.put((byte) (lastOrientation == null ? 0 : 1));
+			out.putInt(lastRollValue);
+			out.put((byte) (hasThrust ? 1 : 0));
+			out.putLong(lastThrustTimestamp);
+			out.putInt(rollState);
+			out.put((byte) (turnPending ? 1 : 0));
+			out.putDouble(currentDirection);
+			out.putLong(lengthStart);
+			out.putInt(leftCount);
+			out.putInt(rightCount);
+			out.putInt(thrustCount);
+			out.putInt(leftOrRightLast);
+			out.put((byte) (hasPitchChange ? 1 : 0));
+			out.putLong(lastPitchChangeTimestamp);
+			out.putDouble(direction_meanX);
+			out.putDouble(direction_meanY);
+			out.putDouble(direction_count);
+			pd.save(out);
+			td.save(out);
+			out.putInt(taps);
+			out.put((byte) (isTumbleTurn ? 1 : 0));
+			rate.save(out);
+			out.putDouble(rateStrokes);
+			out.putLong(lastRateTimestamp);
+		}
+
+		void restore(ByteBuffer in)
+		{
+			swimming = SwimState.values()[in.get()];
+			stroke = StrokeState.values()[in.get()];
+			count = in.getInt();
+			timeInLength = in.getLong();
+			lastTimestamp = in.getLong();
+			events.restore(in);
+			byte history = in.get();
+			lastHistory = history == 0 ? null : history == 1 ? oriPoint
+					: accPoint;
+			lastOrientation = in.get() == 0 ? null : oriPoint;
+			lastRollValue = in.getInt();
+			hasThrust = in.get() != 0;
+			lastThrustTimestamp = in.getLong();
+			rollState = in.getInt();
+			turnPending = in.get() != 0;
+			currentDirection = in.getDouble();
+			lengthStart = in.getLong();
+			leftCount = in.getInt();
+			rightCount = in.getInt();
+			thrustCount = in.getInt();
+			leftOrRightLast = in.getInt();
+			hasPitchChange = in.get() != 0;
+			lastPitchChangeTimestamp = in.getLong();
+			direction_meanX = in.getDouble();
+			direction_meanY = in.getDouble();
+			direction_count = in.getDouble();
+			pd.restore(in);
+			td.restore(in);
+			taps = in.getInt();
+			isTumbleTurn = in.get() != 0;
+			rate.restore(in);
+			rateStrokes = in.getDouble();
+			lastRateTimestamp = in.getLong();
+		}
+
+		public void addEvent(long timestamp, EventType type, int value)
+		{
+			events.add(timestamp, type, value);
+			m_EventView.set(timestamp, type, value);
+			m_Profiler.callbackStart();
+			m_Callback.onEvent(m_EventView);
+			m_Profiler.callbackEnd();
 		}
 
 		public SwimState swimming;
@@ -118,13 +217,19 @@ public class SwimMetricExtractor
 
 		public long lastTimestamp = 0L;
 		// history of state changes
-		private ArrayList<EventPoint> events = new ArrayList<EventPoint>(1000);
+		private EventRing events = new EventRing(EVENT_HISTORY_SIZE);
 
 		private HistoryPoint lastHistory = null;
-		private EventPoint lastRoll = null;
-		private EventPoint lastThrust = null;
+		// value of the last roll event, NO_ROLL if none this length
+		private int lastRollValue = NO_ROLL;
+		private boolean hasThrust = false;
+		private long lastThrustTimestamp = 0L;
 
 		private OrientationHistoryPoint lastOrientation = null;
+		// roll state of lastOrientation (see detectRoll)
+		private int rollState = 0;
+		// set when the last direction update means the next sample is a turn
+		private boolean turnPending = false;
 		private double currentDirection = 999.999;
 		private long lengthStart = 0L;
 
@@ -136,7 +241,8 @@ public class SwimMetricExtractor
 		private int leftOrRightLast = 0;
 
 		// statistics on the acceleration, used to identify breaststroke kicks
-		public EventPoint lastPitchChange;
+		public boolean hasPitchChange = false;
+		public long lastPitchChangeTimestamp = 0L;
 
 		// statistics on the compass direction, we use the vector mean of this
 		// to estimate the pool direction
@@ -149,6 +255,12 @@ public class SwimMetricExtractor
 		TapDetector td=new TapDetector();
 		public int taps;
 		public boolean isTumbleTurn;
+
+		// stroke rate, kept going across lengths (not cleared by reset)
+		StrokeRateEstimator rate = new StrokeRateEstimator();
+		// strokes so far this length going by the stroke rate
+		private double rateStrokes;
+		private long lastRateTimestamp = 0L;
 	};
 
 	
@@ -219,6 +331,8 @@ public class SwimMetricExtractor
 		EVENT_SWIMSTATE // 0=not swimming, 1= maybe, 2=definitely swimming
 	};
 
+	private static final EventType[] EVENT_TYPES = EventType.values();
+
 	class EventPoint 
 	{
 		public EventType m_Type;
@@ -226,24 +340,148 @@ public class SwimMetricExtractor
 		public long timestamp;
 
 		public EventPoint(long timestamp, EventType type, int value)
+		{
+			set(timestamp, type, value);
+		}
+		
+		void set(long timestamp, EventType type, int value)
 		{
 			this.timestamp=timestamp;
-			// TODO Auto-generated constructor stub
 			m_Type = type;
 			m_Value = value;
 		}
 	}
 
+	// fixed size history of the events in a length, kept as parallel
+	// primitive columns so that adding an event never allocates. When it
+	// fills up the oldest events get overwritten, but the first event of the
+	// length is kept separately because the end of length timing needs it
+	class EventRing
+	{
+		private long[] timestamps;
+		private byte[] types;
+		private int[] values;
+		private int mask;
+		// total number of events added since clear
+		private int size;
+		private long firstTimestamp;
+
+		// capacity must be a power of two
+		EventRing(int capacity)
+		{
+			timestamps = new long[capacity];
+			types = new byte[capacity];
+			values = new int[capacity];
+			mask = capacity - 1;
+		}
+
+		void clear()
+		{
+			size = 0;
+		}
+
+		void add(long timestamp, EventType type, int value)
+		{
+			if (size == 0)
+			{
+				firstTimestamp = timestamp;
+			}
+			int slot = size & mask;
+			timestamps[slot] = timestamp;
+			types[slot] = (byte) type.ordinal();
+			values[slot] = value;
+			size++;
+		}
+
+		int size()
+		{
+			return size;
+		}
+
+		long firstTimestamp()
+		{
+			return firstTimestamp;
+		}
+
+		// number of events still held, the most recent of which is at index size()-1
+		int available()
+		{
+			return size < timestamps.length ? size : timestamps.length;
+		}
+
+		long timestampAt(int index)
+		{
+			return timestamps[index & mask];
+		}
+
+		EventType typeAt(int index)
+		{
+			return EVENT_TYPES[types[index & mask]];
+		}
+
+		int valueAt(int index)
+		{
+			return values[index & mask];
+		}
+
+		// only the events still held are saved
+		void save(ByteBuffer out)
+		{
+			out.putInt(size);
+			out.putLong(firstTimestamp);
+			for (int c = size - available(); c < size; c++)
+			{
+				out.putLong(timestamps[c & mask]);
+				out.put(types[c & mask]);
+				out.putInt(values[c & mask]);
+			}
+		}
+
+		void restore(ByteBuffer in)
+		{
+			size = in.getInt();
+			firstTimestamp = in.getLong();
+			for (int c = size - available(); c < size; c++)
+			{
+				timestamps[c & mask] = in.getLong();
+				types[c & mask] = in.get();
+				values[c & mask] = in.getInt();
+			}
+		}
+	}
+
+	static final int EVENT_HISTORY_SIZE = 1024;
+	// bump when saveState changes
+	static final int STATE_VERSION = 3;
+	static final int NO_ROLL = -5;
+
+	// passed to Callback.onEvent for every event
+	private EventPoint m_EventView = new EventPoint(0L, EventType.EVENT_START, 0);
+
 	private State m_State = new State();
 
-	private final double SWIM_MAX_ANGLE_FROM_HORIZONTAL = 0.698131701;
-	private final double ROLL_STROKE_THRESHOLD = 0.349066;
+	private ExtractorConfig m_Config;
 
 	private Callback m_Callback;
+	// fill in State.debugVals (builds a string on every sample, so off by default)
+	private boolean m_DebugValues = false;
+	// per stage timings, off unless someone turns it on
+	private StageProfiler m_Profiler = new StageProfiler();
 
 	public SwimMetricExtractor(Callback cb)
+	{
+		this(cb, ExtractorConfig.DEFAULT);
+	}
+
+	public SwimMetricExtractor(Callback cb, ExtractorConfig config)
 	{
 		m_Callback=cb;
+		m_Config=config;
+	}
+
+	public ExtractorConfig getConfig()
+	{
+		return m_Config;
 	}
 
 	double angleDifference(double angle1, double angle2)
@@ -261,47 +499,183 @@ public class SwimMetricExtractor
 
 	}
 
-	// update the state of the swim tracking
+	// update the state of the swim tracking from whatever lastHistory is
+	// (the on* methods go straight to the stage for their own sensor type)
 	public void updateState()
+	{
+		if (m_State.lastHistory instanceof AccelHistoryPoint)
+		{
+			updateAccelerationState((AccelHistoryPoint) m_State.lastHistory);
+		} else
+		{
+			updateOrientationState();
+		}
+	}
+
+	// orientation stage: turns, swimming or not, roll and pool direction all
+	// come from orientation
+	private void updateOrientationState()
 	{
 		// if no data yet, then can't update state
 		if (m_State.lastOrientation == null)
 		{
 			return;
 		}
-		// m_State.debugVals=""+m_State.m_LastOrientation.yaw;
+		m_Profiler.begin(StageProfiler.INPUT_ORIENTATION);
+		orientationStages();
+		m_Profiler.end();
+	}
 
-		m_State.lastTimestamp = m_State.lastHistory.timestamp;
-		if (m_State.swimming != SwimState.SWIMMING_NOT)
+	private void orientationStages()
+	{
+		m_State.lastTimestamp = m_State.lastOrientation.timestamp;
+		updateTimeInLength();
+		m_Profiler.lap(StageProfiler.STAGE_TIME);
+
+		m_State.rate.addRoll(m_State.lastTimestamp, m_State.lastOrientation.roll);
+		updateRateStrokes();
+		m_Profiler.lap(StageProfiler.STAGE_STROKE_RATE);
+
+		m_State.rollState = classifyRoll(m_State.lastOrientation);
+		m_State.turnPending = false;
+		m_Profiler.lap(StageProfiler.STAGE_ROLL_CLASSIFY);
+		boolean turned = detectTurn();
+		m_Profiler.lap(StageProfiler.STAGE_TURN, turned);
+		if (turned)
 		{
-			m_State.timeInLength = m_State.lastTimestamp
-					- m_State.lengthStart;
+			return;
 		}
+		SwimState swimming = m_State.swimming;
+		boolean isSwimming = updateSwimState();
+		m_Profiler.lap(StageProfiler.STAGE_SWIM_STATE,
+				swimming != m_State.swimming);
+		if (!isSwimming)
+		{
+			return;
+		}
+		boolean strokeChanged = detectRoll();
+		m_Profiler.lap(StageProfiler.STAGE_ROLL, strokeChanged);
+		// lastHistory is cleared if we've just ended a length, in which case
+		// this sample doesn't count towards the next length's direction
+		if (m_State.lastHistory != null)
+		{
+			updateDirection();
+			m_Profiler.lap(StageProfiler.STAGE_DIRECTION);
+		}
+		if (strokeChanged)
+		{
+			updateStroke();
+			m_Profiler.lap(StageProfiler.STAGE_STROKE);
+		}
+	}
 
-		if(m_State.lastHistory instanceof AccelHistoryPoint)
+	// acceleration stage: taps and thrusts come from acceleration, plus anything
+	// time based in the orientation stages (standing timeout, roll once we are
+	// a second into the length, a turn found from the last direction update)
+	private void updateAccelerationState(AccelHistoryPoint at)
+	{
+		// if no orientation yet, then can't update state
+		if (m_State.lastOrientation == null)
+		{
+			return;
+		}
+		m_Profiler.begin(StageProfiler.INPUT_ACCELERATION);
+		accelerationStages(at);
+		m_Profiler.end();
+	}
+
+	private void accelerationStages(AccelHistoryPoint at)
+	{
+		m_State.lastTimestamp = at.timestamp;
+		updateTimeInLength();
+		m_Profiler.lap(StageProfiler.STAGE_TIME);
+
+		m_State.td.addValue(at.timestamp, at.z);
+		int taps = m_State.taps;
+		m_State.taps=m_State.td.numPeaks();
+		if(m_DebugValues)
 		{
-			AccelHistoryPoint at=(AccelHistoryPoint) m_State.lastHistory ;
-			m_State.td.addValue(at.timestamp, at.z);
-			m_State.taps=m_State.td.numPeaks();
-			
 			m_State.debugVals=""+m_State.taps+":\n"+at.z;
-		}else
+		}
+		m_Profiler.lap(StageProfiler.STAGE_TAPS, m_State.taps > taps);
+		m_State.rate.addThrust(at.timestamp, (float) thrustValue(at));
+		updateRateStrokes();
+		m_Profiler.lap(StageProfiler.STAGE_STROKE_RATE);
+
+		// yaw and pool direction haven't changed since the last orientation,
+		// so only look for a turn if that left one pending
+		if (m_State.turnPending)
+		{
+			boolean turned = detectTurn();
+			m_Profiler.lap(StageProfiler.STAGE_TURN, turned);
+			if (turned)
+			{
+				return;
+			}
+		}
+		SwimState swimming = m_State.swimming;
+		boolean isSwimming = updateSwimState();
+		m_Profiler.lap(StageProfiler.STAGE_SWIM_STATE,
+				swimming != m_State.swimming);
+		if (!isSwimming)
 		{
-//			m_Callback.logInfo("pitch",""+m_State.lastOrientation.pitch);
+			return;
 		}
-		
-		
-		// detect turns:
-		// a turn has happened when the compass direction rotates by >90
-		// degrees:
-		// and we have a valid direction value already
-		// i.e. this is a turn, rather than a start
+		boolean strokeChanged = detectRoll();
+		m_Profiler.lap(StageProfiler.STAGE_ROLL, strokeChanged);
+		// lastHistory is cleared if we've just ended a length
+		if (m_State.lastHistory != null)
+		{
+			boolean thrust = detectThrust(at);
+			m_Profiler.lap(StageProfiler.STAGE_THRUST, thrust);
+			strokeChanged |= thrust;
+		}
+		if (strokeChanged)
+		{
+			updateStroke();
+			m_Profiler.lap(StageProfiler.STAGE_STROKE);
+		}
+	}
+
+	// add up strokes going by the stroke rate, over the same part of the
+	// length that strokes are counted in, as a check on the count
+	private void updateRateStrokes()
+	{
+		long elapsed = m_State.lastTimestamp - m_State.lastRateTimestamp;
+		m_State.lastRateTimestamp = m_State.lastTimestamp;
+		if (m_State.swimming != SwimState.SWIMMING_NOT
+				&& m_State.timeInLength > m_Config.lengthSettleNs
+				&& elapsed > 0 && elapsed < StrokeRateEstimator.MAX_GAP_NS
+				&& m_State.rate.confidence() >= StrokeRateEstimator.MIN_CONFIDENCE)
+		{
+			m_State.rateStrokes += m_State.rate.strokeRate() * elapsed
+					/ 60000000000.0;
+		}
+	}
+
+	private void updateTimeInLength()
+	{
+		if (m_State.swimming != SwimState.SWIMMING_NOT)
+		{
+			m_State.timeInLength = m_State.lastTimestamp
+					- m_State.lengthStart;
+		}
+	}
+
+	// detect turns:
+	// a turn has happened when the compass direction rotates by >90
+	// degrees:
+	// and we have a valid direction value already
+	// i.e. this is a turn, rather than a start
+	// returns true if there was a turn
+	private boolean detectTurn()
+	{
 		if (m_State.currentDirection < 10.0)
 		{
 			double directionDiff = angleDifference(
 					m_State.lastOrientation.yaw, m_State.currentDirection);
 //			m_Callback.logInfo("dir", String.format("%02.2f : %02.2f : %02.2f",m_State.currentDirection,m_State.lastOrientation.yaw,directionDiff));
-			if (directionDiff > Math.PI * 0.5)
+			if (directionDiff > m_Config.turnAngle)
 			{
 				// we have turned, so this must be a new length
 				if(m_State.events.size()>0)
@@ -309,22 +683,29 @@ public class SwimMetricExtractor
 					onEndOfLength(EndType.END_TURNING);
 
 					m_State.lengthStart = m_State.lastTimestamp;
-					m_State.addEvent(new EventPoint(m_State.lastTimestamp,
-							EventType.EVENT_START, 1));
+					m_State.addEvent(m_State.lastTimestamp,
+							EventType.EVENT_START, 1);
 //					m_Callback.logError("dir", String.format("trn: %02.2f : %02.2f : %02.2f",m_State.currentDirection,m_State.lastOrientation.yaw,directionDiff));
 					
 				}
 				m_State.currentDirection = 999.0;
+				m_State.turnPending = false;
 				m_State.swimming = SwimState.SWIMMING_NOT;
 				m_State.direction_count = 0;
 				m_State.direction_meanX = 0;
 				m_State.direction_meanY = 0;
 				
-				return;
+				return true;
 			}
 		}
+		return false;
+	}
 
-		// first, work out whether we're swimming or not
+	// work out whether we're swimming or not
+	// returns false if we've just stopped swimming, in which case nothing
+	// else needs updating
+	private boolean updateSwimState()
+	{
 		if (m_State.swimming == SwimState.SWIMMING_NOT)
 		{
 			// if the back angle (pitch) is less than 40 degrees from
@@ -332,17 +713,17 @@ public class SwimMetricExtractor
 			// be swimming (the alternative is that it isn't strapped on yet and
 			// is still
 			// in someone's hands)
-			if (Math.abs(m_State.lastOrientation.pitch) < SWIM_MAX_ANGLE_FROM_HORIZONTAL)
+			if (Math.abs(m_State.lastOrientation.pitch) < m_Config.swimMaxAngleFromHorizontal)
 			{
 				// mark this as the start of the length if we
 				// haven't just turned (turning sets the lengthstart too)
 				
-				if(m_State.lastPitchChange != null && m_State.lastTimestamp
-								- m_State.lastPitchChange.timestamp <= 1000000000L && m_State.lastPitchChange.timestamp>m_State.lengthStart)
+				if(m_State.hasPitchChange && m_State.lastTimestamp
+								- m_State.lastPitchChangeTimestamp <= m_Config.pitchDebounceNs && m_State.lastPitchChangeTimestamp>m_State.lengthStart)
 				{
 					// if we just popped up very quickly it might just be a sensor error
 					// caused by accelerations, ignore
-				}else if(m_State.lastOrientation.timestamp - m_State.lengthStart < 2000000000L)
+				}else if(m_State.lastOrientation.timestamp - m_State.lengthStart < m_Config.turnWindowNs)
 				{
 					// after a turn, we did the turn
 					// need to finalise the turn length
@@ -352,23 +733,23 @@ public class SwimMetricExtractor
 					// this was not a turn, finalize the previous length
 					onEndOfLength(EndType.END_NOT_TURNED);
 					m_State.lengthStart = m_State.lastOrientation.timestamp;
-					m_State.addEvent(new EventPoint(m_State.lastTimestamp,
-							EventType.EVENT_START, 0));
+					m_State.addEvent(m_State.lastTimestamp,
+							EventType.EVENT_START, 0);
 				}
-				m_State.lastPitchChange = new EventPoint(
-						m_State.lastTimestamp, EventType.EVENT_PITCH_CHANGE,
-						0);
-				m_State.addEvent(m_State.lastPitchChange);
+				m_State.hasPitchChange = true;
+				m_State.lastPitchChangeTimestamp = m_State.lastTimestamp;
+				m_State.addEvent(m_State.lastTimestamp,
+						EventType.EVENT_PITCH_CHANGE, 0);
 				m_State.swimming = SwimState.SWIMMING_MAYBE;
 			} else
 			{
-				if (m_State.lastPitchChange != null)
+				if (m_State.hasPitchChange)
 				{
 					if(m_State.events.size()>0)
 					{
 						long timeDiff = m_State.lastTimestamp
-								- m_State.lastPitchChange.timestamp;
-						if (timeDiff > 5000000000L)
+								- m_State.lastPitchChangeTimestamp;
+						if (timeDiff > m_Config.standingTimeoutNs)
 						{
 							// hanging around for 5 seconds standing up = end of
 							// length for sure
@@ -382,13 +763,12 @@ public class SwimMetricExtractor
 			// if we go from horizontal to vertical (in the front to back axis)
 			// that means we are standing up (or doing a turn), or at least
 			// definitely not swimming
-			if (Math.abs(m_State.lastOrientation.pitch) > SWIM_MAX_ANGLE_FROM_HORIZONTAL)
+			if (Math.abs(m_State.lastOrientation.pitch) > m_Config.swimMaxAngleFromHorizontal)
 			{
 				m_State.swimming = SwimState.SWIMMING_NOT;
-				m_State.lastPitchChange = new EventPoint(
-						m_State.lastTimestamp, EventType.EVENT_PITCH_CHANGE,
-						1);
-				if(m_State.lastOrientation.pitch > SWIM_MAX_ANGLE_FROM_HORIZONTAL)
+				m_State.hasPitchChange = true;
+				m_State.lastPitchChangeTimestamp = m_State.lastTimestamp;
+				if(m_State.lastOrientation.pitch > m_Config.swimMaxAngleFromHorizontal)
 				{
 					// pointing downwards, i.e. doing a tumble turn
 					m_State.isTumbleTurn=true;
@@ -396,53 +776,61 @@ public class SwimMetricExtractor
 				{
 					m_State.isTumbleTurn=false;
 				}
-				m_State.addEvent(m_State.lastPitchChange);
-				return;
+				m_State.addEvent(m_State.lastTimestamp,
+						EventType.EVENT_PITCH_CHANGE, 1);
+				return false;
 			}
 			
 		}
+		return true;
+	}
 
-		// detect roll events (flat vs on side vs upside down)
-		if (m_State.swimming != SwimState.SWIMMING_NOT
-				&& m_State.timeInLength > 1000000000L)
+	// roll state (flat vs on side vs upside down) for an orientation
+	private int classifyRoll(OrientationHistoryPoint ori)
+	{
+		if (Math.abs(ori.roll) > Math.PI * 0.5)
 		{
-			int rollState = -5;
-
-			OrientationHistoryPoint ori = m_State.lastOrientation;
-			if (Math.abs(ori.roll) > Math.PI * 0.5)
+			// upside down roll events
+			if (Math.abs(ori.roll) > Math.PI - m_Config.rollStrokeThreshold)
 			{
-				// upside down roll events
-				if (Math.abs(ori.roll) > Math.PI - ROLL_STROKE_THRESHOLD)
-				{
-					// upside down flat
-					rollState = 10;
-				} else if (ori.roll < 0)
-				{
-					// upside down left
-					rollState = 11;
-				} else
-				{
-					// upside down right
-					rollState = 9;
-				}
-			} else if (ori.roll > ROLL_STROKE_THRESHOLD)
+				// upside down flat
+				return 10;
+			} else if (ori.roll < 0)
 			{
-				// 20 degrees one way
-				rollState = 1;
-			} else if (ori.roll < -ROLL_STROKE_THRESHOLD)
-			{
-				// 20 degrees the other way
-				rollState = -1;
+				// upside down left
+				return 11;
 			} else
 			{
-				rollState = 0;
+				// upside down right
+				return 9;
 			}
-			if (m_State.lastRoll == null
-					|| m_State.lastRoll.m_Value != rollState)
+		} else if (ori.roll > m_Config.rollStrokeThreshold)
+		{
+			// 20 degrees one way
+			return 1;
+		} else if (ori.roll < -m_Config.rollStrokeThreshold)
+		{
+			// 20 degrees the other way
+			return -1;
+		} else
+		{
+			return 0;
+		}
+	}
+
+	// detect roll events (flat vs on side vs upside down)
+	// returns true if there was a roll event
+	private boolean detectRoll()
+	{
+		if (m_State.swimming != SwimState.SWIMMING_NOT
+				&& m_State.timeInLength > m_Config.lengthSettleNs)
+		{
+			int rollState = m_State.rollState;
+			if (m_State.lastRollValue != rollState)
 			{
-				m_State.lastRoll = new EventPoint(m_State.lastTimestamp,
+				m_State.lastRollValue = rollState;
+				m_State.addEvent(m_State.lastTimestamp,
 						EventType.EVENT_ROLL_CHANGE, rollState);
-				m_State.addEvent(m_State.lastRoll);
 				switch(rollState)
 				{
 				case -1:
@@ -494,71 +882,90 @@ public class SwimMetricExtractor
 				{
 					m_State.leftOrRightLast =rollState;
 				}
+				return true;
 			}
 		}
+		return false;
+	}
 
+	// vector mean of the compass direction while swimming, to estimate the
+	// pool direction
+	private void updateDirection()
+	{
 		if (m_State.swimming != SwimState.SWIMMING_NOT
-				&& m_State.timeInLength > 1000000000L
-				&& m_State.lastHistory instanceof OrientationHistoryPoint)
+				&& m_State.timeInLength > m_Config.lengthSettleNs)
 		{
 			m_State.direction_count += 1.0;
 			m_State.direction_meanX += Math.cos(m_State.lastOrientation.yaw);
 			m_State.direction_meanY += Math.sin(m_State.lastOrientation.yaw);
-			if (m_State.direction_count > 100.0)
+			if (m_State.direction_count > m_Config.directionWarmupSamples)
 			{
 				m_State.currentDirection = Math.atan2(
 						m_State.direction_meanY, m_State.direction_meanX);
 //				m_State.debugVals = "" + m_State.currentDirection;
+				// the new direction could already be >90 degrees from where we
+				// are pointing, in which case the next sample of either kind is a turn
+				m_State.turnPending = angleDifference(
+						m_State.lastOrientation.yaw, m_State.currentDirection) > m_Config.turnAngle;
 			}
 		}
+	}
+
+	// detect thrust events (breaststroke kicks)
+	// returns true if there was a thrust
+	// forward acceleration, or without linear acceleration the size of the
+	// acceleration less gravity
+	private static double thrustValue(AccelHistoryPoint pt)
+	{
+		if (pt.isLinearAcceleration)
+		{
+			return pt.y;
+		}
+		return Math.sqrt(pt.x * pt.x + pt.y * pt.y + pt.z * pt.z)
+				- GRAVITY_EARTH;
+	}
 
-		// detect thrust events (breaststroke kicks), only if we have not
-		// detected that we're swimming crawl already
+	private boolean detectThrust(AccelHistoryPoint pt)
+	{
 		if (m_State.swimming != SwimState.SWIMMING_NOT
-				&& m_State.timeInLength > 1000000000L)
+				&& m_State.timeInLength > m_Config.lengthSettleNs)
 		{
-			if (m_State.lastHistory instanceof AccelHistoryPoint)
+			double value = thrustValue(pt);
+
+			boolean tooClose = true;
+			if (!m_State.hasThrust
+					|| m_State.lastTimestamp
+							- m_State.lastThrustTimestamp > m_Config.thrustSpacingNs)
 			{
-				double value = 0.0;
-				AccelHistoryPoint pt = ((AccelHistoryPoint) m_State.lastHistory);
-				if (pt.isLinearAcceleration)
-				{
-					value = pt.y;
-				} else
-				{
-					value = Math.sqrt(pt.x * pt.x + pt.y * pt.y + pt.z * pt.z)
-							- GRAVITY_EARTH;
-				}
-				
-				boolean tooClose = true;
-				if (m_State.lastThrust == null
-						|| m_State.lastTimestamp
-								- m_State.lastThrust.timestamp > 500000000L)
-				{
-					tooClose = false;
-				}
-				
-				m_State.pd.addValue(pt.timestamp, (float)value);
-				if (tooClose == false && m_State.pd.isPeak() )
-				{
-					// detected a thrust
-					m_State.thrustCount += 1;
-					m_State.lastThrust = new EventPoint(
-							m_State.lastTimestamp,
-							EventType.EVENT_THRUST, 0);
-					m_State.addEvent(m_State.lastThrust);
-					
-				}
+				tooClose = false;
+			}
+			
+			m_State.pd.addValue(pt.timestamp, (float)value);
+			if (tooClose == false && m_State.pd.isPeak() )
+			{
+				// detected a thrust
+				m_State.thrustCount += 1;
+				m_State.hasThrust = true;
+				m_State.lastThrustTimestamp = m_State.lastTimestamp;
+				m_State.addEvent(m_State.lastTimestamp,
+						EventType.EVENT_THRUST, 0);
+				return true;
 			}
 		}
+		return false;
+	}
 
-		// detect stroke - if we've already detected lots of roll, then rule out
-		// breaststroke
-		// but if we detect breaststroke then let it switch to crawl
-		// because we could has misclassified a push off as a breaststroke kick or something
+	// detect stroke - if we've already detected lots of roll, then rule out
+	// breaststroke
+	// but if we detect breaststroke then let it switch to crawl
+	// because we could has misclassified a push off as a breaststroke kick or something
+	// Only depends on the roll and thrust counts, so only needs calling
+	// when one of those has changed
+	private void updateStroke()
+	{
 		if (m_State.swimming != SwimState.SWIMMING_NOT)
 		{
-			EventPoint lastRoll = m_State.lastRoll;
+			int lastRoll = m_State.lastRollValue;
 			if (m_State.stroke != StrokeState.STROKE_CRAWL
 					&& m_State.stroke != StrokeState.STROKE_BACK)
 			{
@@ -567,10 +974,10 @@ public class SwimMetricExtractor
 				if (m_State.leftCount + m_State.rightCount >= 3)
 				{
 					m_State.stroke = StrokeState.STROKE_CRAWL;
-					if (lastRoll != null)
+					if (lastRoll != NO_ROLL)
 					{
 						// just choose front or back crawl
-						if (lastRoll.m_Value > 1)
+						if (lastRoll > 1)
 						{
 							m_State.stroke = StrokeState.STROKE_BACK;
 						}
@@ -582,10 +989,10 @@ public class SwimMetricExtractor
 			} else
 			{
 				// some kind of crawl, just use upsidedownness to detect it
-				if (lastRoll != null)
+				if (lastRoll != NO_ROLL)
 				{
 					// just choose front or back crawl
-					if (lastRoll.m_Value > 1)
+					if (lastRoll > 1)
 					{
 						m_State.stroke = StrokeState.STROKE_BACK;
 					} else
@@ -631,6 +1038,30 @@ public class SwimMetricExtractor
 		public long lengthStart=0;
 		public double direction=0;
 		public TurnType turnType=TurnType.TURN_STOP;
+		// strokes going by the stroke rate, to check strokes against
+		public float rateStrokes=0;
+
+		LengthStatistics(ByteBuffer in)
+		{
+			lengthTime=in.getLong();
+			strokes=in.getInt();
+			stroke=StrokeState.values()[in.get()];
+			lengthStart=in.getLong();
+			direction=in.getDouble();
+			turnType=TurnType.values()[in.get()];
+			rateStrokes=in.getFloat();
+		}
+
+		void save(ByteBuffer out)
+		{
+			out.putLong(lengthTime);
+			out.putInt(strokes);
+			out.put((byte)stroke.ordinal());
+			out.putLong(lengthStart);
+			out.putDouble(direction);
+			out.put((byte)turnType.ordinal());
+			out.putFloat(rateStrokes);
+		}
 
 		public LengthStatistics(State state)
 		{
@@ -639,13 +1070,16 @@ public class SwimMetricExtractor
 			lengthStart=state.lengthStart;
 			stroke=state.stroke;	
 			direction=state.currentDirection;
+			rateStrokes=(float)state.rateStrokes;
 		}
 		
 		public void write()
 		{
-			if(	lengthTime>4000000000L &&lengthTime<300000000000L)
+			if(	lengthTime>m_Config.minLengthNs &&lengthTime<m_Config.maxLengthNs)
 			{
+				m_Profiler.callbackStart();
 				m_Callback.onLengthComplete(this);
+				m_Profiler.callbackEnd();
 //				Log.v("length",String.format("%f,%d,%s,%b",((double)lengthTime)/1000000000.0,strokes,stroke.toString(),turned));
 			}
 		}		
@@ -707,7 +1141,7 @@ public class SwimMetricExtractor
 				{
 					m_FinishedLength.turnType=TurnType.TURN_FLIP;
 				}
-				long lengthEndTime=m_State.events.get(0).timestamp;
+				long lengthEndTime=m_State.events.firstTimestamp();
 				m_FinishedLength.lengthTime=lengthEndTime-m_FinishedLength.lengthStart;
 				m_FinishedLength.write();
 				m_PreviousLength=m_FinishedLength;
@@ -753,7 +1187,7 @@ public class SwimMetricExtractor
 		m_State.lastOrientation = oriPoint;
 		m_State.lastTimestamp = timestamp;
 
-		updateState();
+		updateOrientationState();
 	}
 
 	AccelHistoryPoint accPoint=new AccelHistoryPoint();
@@ -762,22 +1196,135 @@ public class SwimMetricExtractor
 		m_State.lastTimestamp = timestamp;
 		accPoint.init(timestamp, x, y, z, true);
 		m_State.lastHistory = accPoint;
-		updateState();
+		updateAccelerationState(accPoint);
 	}
 
 	public State getState()
 	{
 		return m_State;
 	}
+
+	// write everything needed to carry on exactly where this left off (the
+	// state, the last samples and any length waiting to see if it was a
+	// turn) to out, a few KB at most. Throws BufferOverflowException if out
+	// is too small
+	public void saveState(ByteBuffer out)
+	{
+		out.putInt(STATE_VERSION);
+		m_Config.save(out);
+		out.putLong(oriPoint.timestamp);
+		out.putFloat(oriPoint.pitch);
+		out.putFloat(oriPoint.roll);
+		out.putFloat(oriPoint.yaw);
+		out.putLong(accPoint.timestamp);
+		out.putFloat(accPoint.x);
+		out.putFloat(accPoint.y);
+		out.putFloat(accPoint.z);
+		out.put((byte) (accPoint.isLinearAcceleration ? 1 : 0));
+		saveLength(out, m_PreviousLength);
+		saveLength(out, m_FinishedLength);
+		m_State.save(out);
+	}
+
+	// load what saveState wrote. Returns false, leaving this as it was, if
+	// it was saved by a different version or with a different config.
+	// Throws BufferUnderflowException if in is cut short, after which this
+	// extractor is only part restored and should be thrown away
+	public boolean restoreState(ByteBuffer in)
+	{
+		if (in.getInt() != STATE_VERSION
+				|| !m_Config.equals(ExtractorConfig.restore(in)))
+		{
+			return false;
+		}
+		oriPoint.init(in.getLong(), in.getFloat(), in.getFloat(),
+				in.getFloat());
+		accPoint.init(in.getLong(), in.getFloat(), in.getFloat(),
+				in.getFloat(), in.get() != 0);
+		m_PreviousLength = restoreLength(in);
+		m_FinishedLength = restoreLength(in);
+		m_State.restore(in);
+		return true;
+	}
+
+	private static void saveLength(ByteBuffer out, LengthStatistics length)
+	{
+		out.put((byte) (length == null ? 0 : 1));
+		if (length != null)
+		{
+			length.save(out);
+		}
+	}
+
+	private LengthStatistics restoreLength(ByteBuffer in)
+	{
+		return in.get() == 0 ? null : new LengthStatistics(in);
+	}
+
+	public StageProfiler getProfiler()
+	{
+		return m_Profiler;
+	}
+
+	public void setDebugValues(boolean debugValues)
+	{
+		m_DebugValues = debugValues;
+	}
 	
 	public void onGlobalAcceleration(long timestamp, float x, float y, float z)
 	{
 		m_State.lastTimestamp = timestamp;
 		accPoint.init(timestamp, x, y, z, false);
 		m_State.lastHistory = accPoint;
-		updateState();
+		updateAccelerationState(accPoint);
 	}
 
-	
+	// batch versions of the above, for a block of samples from one sensor
+	// (e.g. a sensor FIFO or a network frame). values holds 3 floats per
+	// sample in the same order as the single sample call. Exactly the same
+	// as calling the single sample version for each one, just without the
+	// call overhead
+	public void onOrientationBatch(long[] timestamps, float[] values,
+			int offset, int count)
+	{
+		OrientationHistoryPoint ori = oriPoint;
+		for (int c = offset, v = offset * 3; c < offset + count; c++, v += 3)
+		{
+			// yaw, pitch, roll
+			ori.init(timestamps[c], values[v + 1], values[v + 2], values[v]);
+			// only once it holds a real sample
+			m_State.lastOrientation = ori;
+			// a length ending clears lastHistory
+			m_State.lastHistory = ori;
+			m_State.lastTimestamp = timestamps[c];
+			updateOrientationState();
+		}
+	}
+
+	public void onLinearAccelerationBatch(long[] timestamps, float[] values,
+			int offset, int count)
+	{
+		accelerationBatch(timestamps, values, offset, count, true);
+	}
+
+	public void onGlobalAccelerationBatch(long[] timestamps, float[] values,
+			int offset, int count)
+	{
+		accelerationBatch(timestamps, values, offset, count, false);
+	}
+
+	private void accelerationBatch(long[] timestamps, float[] values,
+			int offset, int count, boolean linear)
+	{
+		AccelHistoryPoint acc = accPoint;
+		for (int c = offset, v = offset * 3; c < offset + count; c++, v += 3)
+		{
+			m_State.lastTimestamp = timestamps[c];
+			acc.init(timestamps[c], values[v], values[v + 1], values[v + 2],
+					linear);
+			m_State.lastHistory = acc;
+			updateAccelerationState(acc);
+		}
+	}
 }
 
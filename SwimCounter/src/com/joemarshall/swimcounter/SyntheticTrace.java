@@ -0,0 +1,146 @@
+package com.joemarshall.swimcounter;
+
+import java.util.Random;
+
+import android.hardware.Sensor;
+
+// generates fake but plausible sensor traces for each part of a swim
+// (standing about, crawl, breaststroke, turns) into a SensorTrace
+//
+// orientation comes out as preprocessed yaw/pitch/roll, acceleration as either
+// linear or raw accelerometer (with gravity) depending on accelType
+public class SyntheticTrace
+{
+	private static final float PITCH_STANDING = 1.4f;
+	private static final float PITCH_SWIMMING = 0.1f;
+
+	private SensorTrace m_Target;
+	private Random m_Random = new Random(1234);
+	private long m_Time;
+	private long m_Interval;
+	private int m_AccelType;
+
+	// which sensors to put in the trace
+	public boolean emitOrientation = true;
+	public boolean emitAcceleration = true;
+
+	public SyntheticTrace(SensorTrace target, double rateHz, int accelType)
+	{
+		m_Target = target;
+		m_Interval = (long) (1000000000.0 / rateHz);
+		m_AccelType = accelType;
+		m_Time = 1000000000L;
+	}
+
+	// carry on generating into a different trace, timestamps carry on from
+	// where they were
+	public void setTarget(SensorTrace target)
+	{
+		m_Target = target;
+	}
+
+	public long getTime()
+	{
+		return m_Time;
+	}
+
+	// upright, not swimming
+	public void standing(double seconds, float yaw)
+	{
+		long end = m_Time + (long) (seconds * 1000000000.0);
+		while (m_Time < end)
+		{
+			sample(yaw + noise(0.05f), PITCH_STANDING + noise(0.05f),
+					noise(0.1f), noise(0.3f), noise(0.3f), noise(0.3f));
+		}
+	}
+
+	// flat, rolling side to side at stroke rate, small acceleration
+	public void crawl(double seconds, float yaw)
+	{
+		long end = m_Time + (long) (seconds * 1000000000.0);
+		long start = m_Time;
+		while (m_Time < end)
+		{
+			double t = (m_Time - start) / 1000000000.0;
+			float roll = (float) (0.8 * Math.sin(2.0 * Math.PI * 0.6 * t));
+			sample(yaw + noise(0.05f), PITCH_SWIMMING + noise(0.05f), roll
+					+ noise(0.05f), noise(0.3f), noise(0.5f), noise(0.3f));
+		}
+	}
+
+	// flat, no roll, sharp forward thrust on each kick
+	public void breaststroke(double seconds, float yaw)
+	{
+		long end = m_Time + (long) (seconds * 1000000000.0);
+		long start = m_Time;
+		while (m_Time < end)
+		{
+			double t = (m_Time - start) / 1000000000.0;
+			double phase = (t * 0.7) % 1.0;
+			// kick is a short positive pulse then a slow glide
+			float thrust = phase < 0.15 ? (float) (6.0 * Math.sin(Math.PI
+					* phase / 0.15)) : -0.4f;
+			sample(yaw + noise(0.05f), PITCH_SWIMMING + noise(0.05f),
+					noise(0.1f), noise(0.3f), thrust + noise(0.3f), noise(0.3f));
+		}
+	}
+
+	// pitch up and swing round from yawFrom to yawTo over a second and a half
+	public void turn(float yawFrom, float yawTo, boolean flip)
+	{
+		long end = m_Time + 1500000000L;
+		long start = m_Time;
+		while (m_Time < end)
+		{
+			double f = (m_Time - start) / 1500000000.0;
+			float yaw = (float) (yawFrom + (yawTo - yawFrom) * f);
+			float pitch = (float) (Math.sin(Math.PI * f) * 1.2 * (flip ? 1.0
+					: -1.0));
+			sample(wrap(yaw), pitch, noise(0.1f), noise(1f), noise(1f),
+					noise(1f));
+		}
+	}
+
+	private void sample(float yaw, float pitch, float roll, float ax,
+			float ay, float az)
+	{
+		if (emitOrientation)
+		{
+			m_Target.onSample(LiveCounterActivity.PREPROCESSED_ORIENTATION,
+					yaw, pitch, roll, m_Time);
+		}
+		if (emitAcceleration)
+		{
+			long accelTime = m_Time + m_Interval / 2;
+			if (m_AccelType == Sensor.TYPE_ACCELEROMETER)
+			{
+				m_Target.onSample(m_AccelType, ax, ay,
+						az + (float) SwimMetricExtractor.GRAVITY_EARTH,
+						accelTime);
+			} else
+			{
+				m_Target.onSample(m_AccelType, ax, ay, az, accelTime);
+			}
+		}
+		m_Time += m_Interval;
+	}
+
+	private float noise(float size)
+	{
+		return (float) (m_Random.nextGaussian() * size);
+	}
+
+	private static float wrap(float angle)
+	{
+		while (angle > Math.PI)
+		{
+			angle -= 2.0 * Math.PI;
+		}
+		while (angle < -Math.PI)
+		{
+			angle += 2.0 * Math.PI;
+		}
+		return angle;
+	}
+}
@@ -0,0 +1,105 @@
+package com.joemarshall.swimcounter;
+
+import java.nio.ByteBuffer;
+
+// counts taps on the phone: short sharp spikes in the acceleration
+//
+// a tap is a peak in |value - running mean| that is the biggest thing within
+// HALF_WINDOW_NS either side and at least MIN_HEIGHT. numPeaks() is the number
+// of taps in the last COUNT_WINDOW_NS, so a double tap shows up as 2. O(1)
+// amortised per sample, no allocation.
+public class TapDetector
+{
+	static final long HALF_WINDOW_NS = 60000000L;
+	static final long COUNT_WINDOW_NS = 1500000000L;
+	static final float MIN_HEIGHT = 5.0f;
+	private static final float STATS_WEIGHT = 0.01f;
+	// most taps remembered for counting, more than anyone can do in the window
+	private static final int MAX_TAPS = 16;
+
+	private SlidingMax m_Max = new SlidingMax(HALF_WINDOW_NS * 2, 256);
+	private RunningStats m_Stats = new RunningStats(STATS_WEIGHT);
+	private long m_LastCandidate = Long.MIN_VALUE;
+
+	// times of recent taps, oldest first
+	private long[] m_Taps = new long[MAX_TAPS];
+	private int m_TapStart = 0;
+	private int m_TapCount = 0;
+
+	public void clear()
+	{
+		m_Max.clear();
+		m_Stats.clear();
+		m_LastCandidate = Long.MIN_VALUE;
+		m_TapCount = 0;
+	}
+
+	public void addValue(long timestamp, float value)
+	{
+		m_Stats.add(value);
+		m_Max.add(timestamp, Math.abs(value - m_Stats.mean()));
+		long candidate = m_Max.maxTimestamp();
+		// as SinglePeakDetector: a candidate within half a window after the
+		// last one checked is only at the front because that bigger one went
+		// out of the window, e.g. the ringing after a tap
+		if (candidate != m_LastCandidate
+				&& timestamp - candidate >= HALF_WINDOW_NS)
+		{
+			boolean shadowed = m_LastCandidate != Long.MIN_VALUE
+					&& candidate - m_LastCandidate < HALF_WINDOW_NS;
+			m_LastCandidate = candidate;
+			if (!shadowed && m_Max.max() >= MIN_HEIGHT)
+			{
+				if (m_TapCount == MAX_TAPS)
+				{
+					m_TapStart = (m_TapStart + 1) % MAX_TAPS;
+					m_TapCount--;
+				}
+				m_Taps[(m_TapStart + m_TapCount) % MAX_TAPS] = candidate;
+				m_TapCount++;
+			}
+		}
+		long oldest = timestamp - COUNT_WINDOW_NS;
+		while (m_TapCount > 0 && m_Taps[m_TapStart] < oldest)
+		{
+			m_TapStart = (m_TapStart + 1) % MAX_TAPS;
+			m_TapCount--;
+		}
+	}
+
+	// taps in the last COUNT_WINDOW_NS
+	public int numPeaks()
+	{
+		return m_TapCount;
+	}
+
+	public void save(ByteBuffer out)
+	{
+		m_Max.save(out);
+		m_Stats.save(out);
+		out.putLong(m_LastCandidate);
+		out.put((byte) m_TapCount);
+		for (int c = 0; c < m_TapCount; c++)
+		{
+			out.putLong(m_Taps[(m_TapStart + c) % MAX_TAPS]);
+		}
+	}
+
+	public void restore(ByteBuffer in)
+	{
+		m_Max.restore(in);
+		m_Stats.restore(in);
+		m_LastCandidate = in.getLong();
+		int count = in.get();
+		m_TapStart = 0;
+		m_TapCount = 0;
+		for (int c = 0; c < count; c++)
+		{
+			long tap = in.getLong();
+			if (m_TapCount < MAX_TAPS)
+			{
+				m_Taps[m_TapCount++] = tap;
+			}
+		}
+	}
+}
@@ -0,0 +1,187 @@
+package com.joemarshall.swimcounter;
+
+// puts interleaved sensor streams back into timestamp order
+//
+// samples are held in a heap (primitive arrays, nothing allocated per sample)
+// until the newest timestamp seen is more than the reorder window past them,
+// then passed on oldest first. So the added delay is at most the window, in
+// sensor time. A sample that turns up after something newer has already
+// been passed on is too late to put in order, it is dropped and counted. If
+// the heap fills up, the oldest sample is passed on early.
+public class TimestampMerger implements SensorSampleSink
+{
+	private SensorSampleSink m_Target;
+	private long m_Window;
+
+	private int m_Capacity;
+	private int m_Size = 0;
+	// heap ordered by timestamp then arrival order
+	private long[] m_Timestamps;
+	private long[] m_Sequence;
+	private int[] m_Types;
+	private float[] m_Values;
+	private long m_NextSequence = 0;
+
+	private long m_Newest = Long.MIN_VALUE;
+	private long m_LastReleased = Long.MIN_VALUE;
+
+	// samples that arrived out of order but were put right
+	public long reordered = 0;
+	// samples that arrived too late and were dropped
+	public long late = 0;
+	// samples passed on before the window was up because the heap was full
+	public long forced = 0;
+
+	public TimestampMerger(SensorSampleSink target, long windowNs,
+			int capacity)
+	{
+		m_Target = target;
+		m_Window = windowNs;
+		m_Capacity = capacity;
+		m_Timestamps = new long[capacity];
+		m_Sequence = new long[capacity];
+		m_Types = new int[capacity];
+		m_Values = new float[capacity * 3];
+	}
+
+	public void setTarget(SensorSampleSink target)
+	{
+		m_Target = target;
+	}
+
+	public int size()
+	{
+		return m_Size;
+	}
+
+	@Override
+	public void onSample(int type, float x, float y, float z, long timestamp)
+	{
+		if (timestamp < m_LastReleased)
+		{
+			late++;
+			return;
+		}
+		if (timestamp < m_Newest)
+		{
+			reordered++;
+		} else
+		{
+			m_Newest = timestamp;
+		}
+		if (m_Size == m_Capacity)
+		{
+			forced++;
+			release();
+		}
+		push(type, x, y, z, timestamp);
+		long until = m_Newest - m_Window;
+		while (m_Size > 0 && m_Timestamps[0] <= until)
+		{
+			release();
+		}
+	}
+
+	// pass on everything still held, e.g. at the end of a recording
+	public void flush()
+	{
+		while (m_Size > 0)
+		{
+			release();
+		}
+	}
+
+	// forget everything held, e.g. when a new connection starts
+	public void reset()
+	{
+		m_Size = 0;
+		m_Newest = Long.MIN_VALUE;
+		m_LastReleased = Long.MIN_VALUE;
+	}
+
+	private boolean less(int a, int b)
+	{
+		if (m_Timestamps[a] != m_Timestamps[b])
+		{
+			return m_Timestamps[a] < m_Timestamps[b];
+		}
+		return m_Sequence[a] < m_Sequence[b];
+	}
+
+	private void push(int type, float x, float y, float z, long timestamp)
+	{
+		int c = m_Size++;
+		set(c, type, x, y, z, timestamp, m_NextSequence++);
+		// sift up
+		while (c > 0)
+		{
+			int parent = (c - 1) >> 1;
+			if (!less(c, parent))
+			{
+				break;
+			}
+			swap(c, parent);
+			c = parent;
+		}
+	}
+
+	// pass on the oldest sample and take it out of the heap
+	private void release()
+	{
+		long timestamp = m_Timestamps[0];
+		m_LastReleased = timestamp;
+		m_Target.onSample(m_Types[0], m_Values[0], m_Values[1], m_Values[2],
+				timestamp);
+		m_Size--;
+		if (m_Size == 0)
+		{
+			return;
+		}
+		swap(0, m_Size);
+		// sift down
+		int c = 0;
+		while (true)
+		{
+			int left = c * 2 + 1;
+			if (left >= m_Size)
+			{
+				break;
+			}
+			int smallest = left;
+			if (left + 1 < m_Size && less(left + 1, left))
+			{
+				smallest = left + 1;
+			}
+			if (!less(smallest, c))
+			{
+				break;
+			}
+			swap(c, smallest);
+			c = smallest;
+		}
+	}
+
+	private void set(int c, int type, float x, float y, float z,
+			long timestamp, long sequence)
+	{
+		m_Types[c] = type;
+		m_Timestamps[c] = timestamp;
+		m_Sequence[c] = sequence;
+		m_Values[c * 3] = x;
+		m_Values[c * 3 + 1] = y;
+		m_Values[c * 3 + 2] = z;
+	}
+
+	private void swap(int a, int b)
+	{
+		int type = m_Types[a];
+		long timestamp = m_Timestamps[a];
+		long sequence = m_Sequence[a];
+		float x = m_Values[a * 3];
+		float y = m_Values[a * 3 + 1];
+		float z = m_Values[a * 3 + 2];
+		set(a, m_Types[b], m_Values[b * 3], m_Values[b * 3 + 1],
+				m_Values[b * 3 + 2], m_Timestamps[b], m_Sequence[b]);
+		set(b, type, x, y, z, timestamp, sequence);
+	}
+}
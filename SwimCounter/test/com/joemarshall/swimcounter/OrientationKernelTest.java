@@ -0,0 +1,248 @@
+package com.joemarshall.swimcounter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+// OrientationKernel against android.hardware.SensorManager's own maths
+// (getRotationMatrixFromVector, getRotationMatrix and getOrientation, as in
+// AOSP) for a fixed set of inputs
+public class OrientationKernelTest
+{
+	static final float TOLERANCE = 1e-6f;
+
+	// SensorManager.getRotationMatrixFromVector, 3x3 version
+	static float[] aospRotationMatrixFromVector(float[] rotationVector)
+	{
+		float q0;
+		float q1 = rotationVector[0];
+		float q2 = rotationVector[1];
+		float q3 = rotationVector[2];
+		if (rotationVector.length >= 4)
+		{
+			q0 = rotationVector[3];
+		} else
+		{
+			q0 = 1 - q1 * q1 - q2 * q2 - q3 * q3;
+			q0 = (q0 > 0) ? (float) Math.sqrt(q0) : 0;
+		}
+		float sq_q1 = 2 * q1 * q1;
+		float sq_q2 = 2 * q2 * q2;
+		float sq_q3 = 2 * q3 * q3;
+		float q1_q2 = 2 * q1 * q2;
+		float q3_q0 = 2 * q3 * q0;
+		float q1_q3 = 2 * q1 * q3;
+		float q2_q0 = 2 * q2 * q0;
+		float q2_q3 = 2 * q2 * q3;
+		float q1_q0 = 2 * q1 * q0;
+		float[] R = new float[9];
+		R[0] = 1 - sq_q2 - sq_q3;
+		R[1] = q1_q2 - q3_q0;
+		R[2] = q1_q3 + q2_q0;
+		R[3] = q1_q2 + q3_q0;
+		R[4] = 1 - sq_q1 - sq_q3;
+		R[5] = q2_q3 - q1_q0;
+		R[6] = q1_q3 - q2_q0;
+		R[7] = q2_q3 + q1_q0;
+		R[8] = 1 - sq_q1 - sq_q2;
+		return R;
+	}
+
+	// SensorManager.getRotationMatrix, 3x3 version without I, null if it
+	// would return false
+	static float[] aospRotationMatrix(float[] gravity, float[] geomagnetic)
+	{
+		float Ax = gravity[0];
+		float Ay = gravity[1];
+		float Az = gravity[2];
+		final float Ex = geomagnetic[0];
+		final float Ey = geomagnetic[1];
+		final float Ez = geomagnetic[2];
+		float Hx = Ey * Az - Ez * Ay;
+		float Hy = Ez * Ax - Ex * Az;
+		float Hz = Ex * Ay - Ey * Ax;
+		final float normH = (float) Math.sqrt(Hx * Hx + Hy * Hy + Hz * Hz);
+		if (normH < 0.1f)
+		{
+			return null;
+		}
+		final float invH = 1.0f / normH;
+		Hx *= invH;
+		Hy *= invH;
+		Hz *= invH;
+		final float invA = 1.0f / (float) Math.sqrt(Ax * Ax + Ay * Ay + Az
+				* Az);
+		Ax *= invA;
+		Ay *= invA;
+		Az *= invA;
+		final float Mx = Ay * Hz - Az * Hy;
+		final float My = Az * Hx - Ax * Hz;
+		final float Mz = Ax * Hy - Ay * Hx;
+		return new float[] { Hx, Hy, Hz, Mx, My, Mz, Ax, Ay, Az };
+	}
+
+	// SensorManager.getOrientation, 3x3 version
+	static float[] aospOrientation(float[] R)
+	{
+		return new float[] { (float) Math.atan2(R[1], R[4]),
+				(float) Math.asin(-R[7]), (float) Math.atan2(-R[6], R[8]) };
+	}
+
+	static void assertOrientation(String message, float[] expected,
+			OrientationKernel kernel)
+	{
+		assertEquals(message + " yaw", expected[0], kernel.yaw, TOLERANCE);
+		assertEquals(message + " pitch", expected[1], kernel.pitch, TOLERANCE);
+		assertEquals(message + " roll", expected[2], kernel.roll, TOLERANCE);
+	}
+
+	// unit quaternion (x,y,z,w) for a rotation of angle about an axis
+	static float[] quaternion(double angle, double ax, double ay, double az)
+	{
+		double norm = Math.sqrt(ax * ax + ay * ay + az * az);
+		double s = Math.sin(angle / 2) / norm;
+		return new float[] { (float) (ax * s), (float) (ay * s),
+				(float) (az * s), (float) Math.cos(angle / 2) };
+	}
+
+	static float[][] quaternions()
+	{
+		return new float[][] {
+				// identity, and both signs of the same rotations
+				{ 0, 0, 0, 1 },
+				{ 0, 0, 0, -1 },
+				quaternion(0.3, 0, 0, 1),
+				quaternion(-2.5, 0, 0, 1),
+				quaternion(1.0, 1, 0, 0),
+				quaternion(-1.0, 0, 1, 0),
+				quaternion(0.7, 1, 2, 3),
+				quaternion(2.9, -1, 0.5, 0.2),
+				// w < 0
+				quaternion(4.0, 0.3, -0.8, 0.5),
+				quaternion(5.5, 1, 1, 0),
+				{ 0.1f, -0.2f, 0.3f, -0.9273618f },
+				// w near 0
+				quaternion(Math.PI - 0.001, 0, 0, 1),
+				quaternion(Math.PI, 1, 0, 1),
+				// gimbal lock: pitch at +-90 degrees
+				quaternion(Math.PI / 2, 1, 0, 0),
+				quaternion(-Math.PI / 2, 1, 0, 0),
+				{ 0.5f, 0.5f, 0.5f, 0.5f },
+				{ 0.5f, -0.5f, -0.5f, 0.5f }, };
+	}
+
+	@Test
+	public void quaternionMatchesSensorManager()
+	{
+		OrientationKernel kernel = new OrientationKernel();
+		for (float[] q : quaternions())
+		{
+			kernel.fromQuaternion(q[0], q[1], q[2], q[3]);
+			float[] expected = aospOrientation(aospRotationMatrixFromVector(q));
+			assertOrientation(q[0] + "," + q[1] + "," + q[2] + "," + q[3],
+					expected, kernel);
+		}
+	}
+
+	@Test
+	public void negatedQuaternionIsSameRotation()
+	{
+		OrientationKernel kernel = new OrientationKernel();
+		OrientationKernel negated = new OrientationKernel();
+		for (float[] q : quaternions())
+		{
+			kernel.fromQuaternion(q[0], q[1], q[2], q[3]);
+			negated.fromQuaternion(-q[0], -q[1], -q[2], -q[3]);
+			assertEquals(kernel.yaw, negated.yaw, TOLERANCE);
+			assertEquals(kernel.pitch, negated.pitch, TOLERANCE);
+			assertEquals(kernel.roll, negated.roll, TOLERANCE);
+		}
+	}
+
+	@Test
+	public void rotationVectorMatchesSensorManager()
+	{
+		OrientationKernel kernel = new OrientationKernel();
+		for (float[] q : quaternions())
+		{
+			// only x,y,z, as from a recording; SensorManager works w out
+			// the same way
+			float[] vector = { q[0], q[1], q[2] };
+			kernel.fromRotationVector(q[0], q[1], q[2]);
+			float[] expected = aospOrientation(aospRotationMatrixFromVector(vector));
+			assertOrientation(q[0] + "," + q[1] + "," + q[2], expected, kernel);
+		}
+	}
+
+	@Test
+	public void rotationVectorLosesSignOfW()
+	{
+		// the reason live rotation vectors keep their w: with w < 0 and not
+		// just the negated quaternion, x,y,z alone give a different rotation
+		float[] q = { 0.1f, -0.2f, 0.3f, -0.9273618f };
+		OrientationKernel full = new OrientationKernel();
+		OrientationKernel xyz = new OrientationKernel();
+		full.fromQuaternion(q[0], q[1], q[2], q[3]);
+		xyz.fromRotationVector(q[0], q[1], q[2]);
+		assertTrue(Math.abs(full.yaw - xyz.yaw) > 0.1f);
+	}
+
+	static float[][] gravityAndMagnetic()
+	{
+		return new float[][] {
+				// flat on its back, face up and face down
+				{ 0, 0, 9.81f, 0, 22, -40 },
+				{ 0, 0, -9.81f, 0, 22, 40 },
+				// upright, landscape
+				{ 0, 9.81f, 0, 5, -30, -25 },
+				{ 9.81f, 0, 0, -30, 10, 20 },
+				// tilted, with some noise
+				{ 1.2f, -3.4f, 8.9f, 12.5f, 18.3f, -35.1f },
+				{ -6.1f, 5.2f, -5.0f, -20, -15, 30 },
+				{ 0.3f, 9.7f, 1.1f, 40, 1, -2 },
+				// not normalised
+				{ 0, 0, 30, 0, 220, -400 }, };
+	}
+
+	@Test
+	public void gravityAndMagneticMatchSensorManager()
+	{
+		OrientationKernel kernel = new OrientationKernel();
+		for (float[] in : gravityAndMagnetic())
+		{
+			float[] gravity = { in[0], in[1], in[2] };
+			float[] magnetic = { in[3], in[4], in[5] };
+			float[] R = aospRotationMatrix(gravity, magnetic);
+			assertTrue(R != null);
+			assertTrue(kernel.fromGravityAndMagnetic(in[0], in[1], in[2],
+					in[3], in[4], in[5]));
+			assertOrientation(in[0] + "," + in[1] + "," + in[2],
+					aospOrientation(R), kernel);
+		}
+	}
+
+	@Test
+	public void noFixWhenParallel()
+	{
+		OrientationKernel kernel = new OrientationKernel();
+		kernel.fromGravityAndMagnetic(0, 0, 9.81f, 0, 22, -40);
+		float yaw = kernel.yaw;
+		float pitch = kernel.pitch;
+		float roll = kernel.roll;
+		float[][] bad = { { 0, 0, 9.81f, 0, 0, 40 },
+				{ 0, 9.81f, 0, 0, 0.001f, 0 }, { 0, 0, 9.81f, 0, 0, 0 } };
+		for (float[] in : bad)
+		{
+			assertTrue(aospRotationMatrix(new float[] { in[0], in[1], in[2] },
+					new float[] { in[3], in[4], in[5] }) == null);
+			assertFalse(kernel.fromGravityAndMagnetic(in[0], in[1], in[2],
+					in[3], in[4], in[5]));
+			// left as it was
+			assertEquals(yaw, kernel.yaw, 0);
+			assertEquals(pitch, kernel.pitch, 0);
+			assertEquals(roll, kernel.roll, 0);
+		}
+	}
+}
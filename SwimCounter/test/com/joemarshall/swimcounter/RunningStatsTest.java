@@ -0,0 +1,61 @@
+package com.joemarshall.swimcounter;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class RunningStatsTest
+{
+	@Test
+	public void plainMeanAtFirst()
+	{
+		RunningStats stats = new RunningStats(0.01f);
+		stats.add(1);
+		stats.add(2);
+		stats.add(3);
+		assertEquals(3, stats.count());
+		assertEquals(2, stats.mean(), 1e-6);
+	}
+
+	@Test
+	public void settlesOnSignalLevel()
+	{
+		Random random = new Random(5);
+		RunningStats stats = new RunningStats(0.01f);
+		for (int c = 0; c < 20000; c++)
+		{
+			stats.add(3 + (float) random.nextGaussian() * 2);
+		}
+		assertEquals(3, stats.mean(), 0.5);
+		assertEquals(2, stats.standardDeviation(), 0.3);
+	}
+
+	@Test
+	public void saveRestore()
+	{
+		Random random = new Random(6);
+		RunningStats original = new RunningStats(0.01f);
+		for (int c = 0; c < 500; c++)
+		{
+			original.add((float) random.nextGaussian());
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(64);
+		original.save(buffer);
+		buffer.flip();
+		RunningStats restored = new RunningStats(0.01f);
+		restored.restore(buffer);
+		for (int c = 0; c < 500; c++)
+		{
+			float value = (float) random.nextGaussian();
+			original.add(value);
+			restored.add(value);
+			assertEquals(original.mean(), restored.mean(), 0);
+			assertEquals(original.standardDeviation(),
+					restored.standardDeviation(), 0);
+		}
+		assertEquals(original.count(), restored.count());
+	}
+}
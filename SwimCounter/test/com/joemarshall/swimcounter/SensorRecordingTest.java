@@ -0,0 +1,222 @@
+package com.joemarshall.swimcounter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+// SensorRecordingWriter and SensorRecordingReader together: what goes in comes
+// back out, and damaged files fail cleanly
+public class SensorRecordingTest
+{
+	static final float QUANTUM = 0.001f;
+
+	@Rule
+	public TemporaryFolder m_Folder = new TemporaryFolder();
+
+	// several types (including orientation, -1), jittered and sometimes
+	// out of order timestamps, and enough samples for a few blocks
+	static SensorTrace samples(Random random, int count)
+	{
+		int[] types = { 10, LiveCounterActivity.PREPROCESSED_ORIENTATION, 11,
+				1, 2, 4 };
+		SensorTrace trace = new SensorTrace(count);
+		long timestamp = 123456789012345L;
+		for (int c = 0; c < count; c++)
+		{
+			timestamp += random.nextInt(20) == 0 ? -random.nextInt(5000000)
+					: random.nextInt(20000000);
+			trace.onSample(types[random.nextInt(types.length)],
+					(float) random.nextGaussian() * 10,
+					(float) random.nextGaussian() * 100,
+					(float) random.nextGaussian(), timestamp);
+		}
+		return trace;
+	}
+
+	File write(SensorTrace trace, float quantum) throws IOException
+	{
+		File file = m_Folder.newFile();
+		SensorRecordingWriter writer = new SensorRecordingWriter(
+				new FileOutputStream(file), quantum);
+		trace.replay(writer);
+		writer.close();
+		assertEquals(file.length(), writer.bytesWritten);
+		return file;
+	}
+
+	static SensorTrace read(File file) throws IOException
+	{
+		SensorTrace trace = new SensorTrace();
+		SensorRecordingReader reader = new SensorRecordingReader(file);
+		try
+		{
+			reader.readAll(trace);
+		} finally
+		{
+			reader.close();
+		}
+		return trace;
+	}
+
+	static void assertSameSamples(SensorTrace expected, SensorTrace actual,
+			int count, float tolerance)
+	{
+		assertEquals(count, actual.count);
+		for (int c = 0; c < count; c++)
+		{
+			assertEquals("type " + c, expected.types[c], actual.types[c]);
+			assertEquals("timestamp " + c, expected.timestamps[c],
+					actual.timestamps[c]);
+			for (int v = c * 3; v < c * 3 + 3; v++)
+			{
+				if (tolerance == 0)
+				{
+					assertEquals("value " + v,
+							Float.floatToRawIntBits(expected.values[v]),
+							Float.floatToRawIntBits(actual.values[v]));
+				} else
+				{
+					assertEquals("value " + v, expected.values[v],
+							actual.values[v], tolerance);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void roundTripExact() throws IOException
+	{
+		SensorTrace trace = samples(new Random(10), 10000);
+		// values that have to come back bit for bit
+		trace.onSample(1, Float.NaN, Float.POSITIVE_INFINITY, -0.0f,
+				trace.lastTimestamp() + 1);
+		trace.onSample(1, Float.MIN_VALUE, -Float.MAX_VALUE, 0,
+				Long.MAX_VALUE);
+		assertTrue(SensorRecordingReader.isRecording(write(trace, 0)));
+		assertSameSamples(trace, read(write(trace, 0)), trace.count, 0);
+	}
+
+	@Test
+	public void roundTripQuantised() throws IOException
+	{
+		SensorTrace trace = samples(new Random(11), 10000);
+		File file = write(trace, QUANTUM);
+		// the nearest step, give or take float rounding
+		assertSameSamples(trace, read(file), trace.count, QUANTUM * 0.51f);
+		// and smaller than the exact version
+		assertTrue(file.length() < write(trace, 0).length());
+	}
+
+	@Test
+	public void skipAndSeekBlocks() throws IOException
+	{
+		int count = SensorRecordingWriter.MAX_BLOCK_SAMPLES * 2 + 100;
+		SensorTrace trace = samples(new Random(12), count);
+		SensorRecordingReader reader = new SensorRecordingReader(write(trace,
+				QUANTUM));
+		assertTrue(reader.skipBlock());
+		assertEquals(trace.timestamps[0], reader.blockFirstTimestamp);
+		long second = reader.position();
+		assertTrue(reader.skipBlock());
+		assertTrue(reader.skipBlock());
+		assertEquals(100, reader.blockSamples);
+		assertEquals(trace.lastTimestamp(), reader.blockLastTimestamp);
+		assertFalse(reader.skipBlock());
+		// each block decodes on its own
+		reader.seek(second);
+		SensorTrace block = new SensorTrace();
+		assertTrue(reader.readBlock(block));
+		reader.close();
+		assertEquals(SensorRecordingWriter.MAX_BLOCK_SAMPLES, block.count);
+		int first = SensorRecordingWriter.MAX_BLOCK_SAMPLES;
+		assertEquals(trace.timestamps[first], block.timestamps[0]);
+		assertEquals(trace.values[first * 3], block.values[0], QUANTUM);
+	}
+
+	@Test
+	public void truncatedBlockEndsRecording() throws IOException
+	{
+		int count = SensorRecordingWriter.MAX_BLOCK_SAMPLES + 500;
+		SensorTrace trace = samples(new Random(13), count);
+		File file = write(trace, QUANTUM);
+		RandomAccessFile cut = new RandomAccessFile(file, "rw");
+		SensorRecordingReader reader = new SensorRecordingReader(file);
+		reader.skipBlock();
+		long second = reader.position();
+		reader.close();
+		// cut off part way through the last block's samples, then part way
+		// through its header
+		long[] lengths = { file.length() - 7,
+				second + SensorRecordingWriter.BLOCK_HEADER_SIZE / 2 };
+		for (long length : lengths)
+		{
+			cut.setLength(length);
+			assertSameSamples(trace, read(file),
+					SensorRecordingWriter.MAX_BLOCK_SAMPLES, QUANTUM);
+		}
+		cut.close();
+	}
+
+	@Test
+	public void flippedChecksumByte() throws IOException
+	{
+		SensorTrace trace = samples(new Random(14), 1000);
+		File file = write(trace, 0);
+		long crc = SensorRecordingWriter.FILE_HEADER_SIZE + 24;
+		flipByte(file, crc + 2);
+		assertReadFails(file, "checksum mismatch");
+		// and the same for a flipped byte in the samples
+		flipByte(file, crc + 2);
+		read(file);
+		flipByte(file, file.length() - 3);
+		assertReadFails(file, "checksum mismatch");
+	}
+
+	@Test
+	public void corruptHeader() throws IOException
+	{
+		SensorTrace trace = samples(new Random(15), 1000);
+		File file = write(trace, QUANTUM);
+		// sample count with its top bit flipped
+		flipByte(file, SensorRecordingWriter.FILE_HEADER_SIZE + 4);
+		assertReadFails(file, "corrupt block header");
+	}
+
+	static void flipByte(File file, long offset) throws IOException
+	{
+		RandomAccessFile f = new RandomAccessFile(file, "rw");
+		try
+		{
+			f.seek(offset);
+			int b = f.read();
+			f.seek(offset);
+			f.write(b ^ 0x80);
+		} finally
+		{
+			f.close();
+		}
+	}
+
+	static void assertReadFails(File file, String message)
+	{
+		try
+		{
+			read(file);
+			fail("read " + file);
+		} catch (IOException e)
+		{
+			assertTrue(e.getMessage(), e.getMessage().startsWith(message));
+		}
+	}
+}
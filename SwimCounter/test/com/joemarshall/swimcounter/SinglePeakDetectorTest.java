@@ -0,0 +1,175 @@
+package com.joemarshall.swimcounter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SinglePeakDetectorTest
+{
+	static final long PERIOD_NS = 10000000L;
+
+	@Test
+	public void peakConfirmedHalfWindowLater()
+	{
+		SinglePeakDetector detector = new SinglePeakDetector();
+		long peakTime = 100 * PERIOD_NS;
+		int peaks = 0;
+		for (int c = 0; c < 300; c++)
+		{
+			long timestamp = c * PERIOD_NS;
+			detector.addValue(timestamp, timestamp == peakTime ? 10 : 0);
+			if (detector.isPeak())
+			{
+				peaks++;
+				// the first sample at least half a window after the peak
+				assertEquals(peakTime + SinglePeakDetector.HALF_WINDOW_NS,
+						timestamp);
+				assertEquals(peakTime, detector.peakTimestamp());
+				assertEquals(10, detector.peakValue(), 0);
+			}
+		}
+		assertEquals(1, peaks);
+	}
+
+	@Test
+	public void smallBumpIsNotPeak()
+	{
+		SinglePeakDetector detector = new SinglePeakDetector();
+		for (int c = 0; c < 300; c++)
+		{
+			detector.addValue(c * PERIOD_NS, c == 100 ? 1.5f : 0);
+			assertFalse(detector.isPeak());
+		}
+	}
+
+	@Test
+	public void peaksCloserThanWindowGiveOne()
+	{
+		SinglePeakDetector detector = new SinglePeakDetector();
+		int peaks = 0;
+		for (int c = 0; c < 300; c++)
+		{
+			float value = c == 100 ? 8 : (c == 110 ? 10 : 0);
+			detector.addValue(c * PERIOD_NS, value);
+			if (detector.isPeak())
+			{
+				peaks++;
+				assertEquals(110 * PERIOD_NS, detector.peakTimestamp());
+			}
+		}
+		assertEquals(1, peaks);
+	}
+
+	@Test
+	public void smallerPeakJustAfterBiggerIsNotPeak()
+	{
+		SinglePeakDetector detector = new SinglePeakDetector();
+		int peaks = 0;
+		for (int c = 0; c < 300; c++)
+		{
+			float value = c == 100 ? 10 : (c == 110 ? 9 : 0);
+			detector.addValue(c * PERIOD_NS, value);
+			if (detector.isPeak())
+			{
+				peaks++;
+				assertEquals(100 * PERIOD_NS, detector.peakTimestamp());
+				assertEquals(10, detector.peakValue(), 0);
+			}
+		}
+		assertEquals(1, peaks);
+	}
+
+	@Test
+	public void fallingRunGivesOnePeak()
+	{
+		// each one within half a window of the one before
+		SinglePeakDetector detector = new SinglePeakDetector();
+		int peaks = 0;
+		for (int c = 0; c < 400; c++)
+		{
+			float value = (c >= 100 && c <= 160 && c % 20 == 0) ? 20 - (c - 100)
+					/ 10 : 0;
+			detector.addValue(c * PERIOD_NS, value);
+			if (detector.isPeak())
+			{
+				peaks++;
+				assertEquals(100 * PERIOD_NS, detector.peakTimestamp());
+			}
+		}
+		assertEquals(1, peaks);
+	}
+
+	@Test
+	public void peaksFurtherApartThanHalfWindowGiveTwo()
+	{
+		SinglePeakDetector detector = new SinglePeakDetector();
+		int peaks = 0;
+		for (int c = 0; c < 300; c++)
+		{
+			// 300ms apart, the second one smaller
+			float value = c == 100 ? 10 : (c == 130 ? 9 : 0);
+			detector.addValue(c * PERIOD_NS, value);
+			if (detector.isPeak())
+			{
+				peaks++;
+			}
+		}
+		assertEquals(2, peaks);
+	}
+
+	// noisy signal with a kick every second
+	static float kickSignal(Random random, int sample)
+	{
+		float value = (float) random.nextGaussian() * 0.3f;
+		if (sample % 100 == 50)
+		{
+			value += 6;
+		}
+		return value;
+	}
+
+	@Test
+	public void saveRestoreMidStream()
+	{
+		Random random = new Random(4);
+		SinglePeakDetector original = new SinglePeakDetector();
+		SinglePeakDetector restored = new SinglePeakDetector();
+		ByteBuffer buffer = ByteBuffer.allocate(16384);
+		int split = 1234;
+		int peaks = 0;
+		for (int c = 0; c < 3000; c++)
+		{
+			long timestamp = c * PERIOD_NS;
+			float value = kickSignal(random, c);
+			original.addValue(timestamp, value);
+			if (c == split)
+			{
+				original.save(buffer);
+				buffer.flip();
+				restored.restore(buffer);
+				assertEquals(0, buffer.remaining());
+			} else if (c > split)
+			{
+				restored.addValue(timestamp, value);
+			}
+			if (c >= split)
+			{
+				assertEquals(original.isPeak(), restored.isPeak());
+				assertEquals(original.peakTimestamp(),
+						restored.peakTimestamp());
+				assertEquals(original.peakValue(), restored.peakValue(), 0);
+			}
+			if (original.isPeak())
+			{
+				peaks++;
+			}
+		}
+		// every kick found
+		assertTrue(peaks >= 29 && peaks <= 30);
+	}
+}
@@ -0,0 +1,158 @@
+package com.joemarshall.swimcounter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SlidingMaxTest
+{
+	static final long WINDOW_NS = 100000000L;
+
+	// max of the samples in [newest - window, newest], the slow way
+	static float bruteMax(long[] timestamps, float[] values, int newest,
+			long window, int maxSamples)
+	{
+		float max = Float.NEGATIVE_INFINITY;
+		int first = Math.max(0, newest - maxSamples + 1);
+		for (int c = first; c <= newest; c++)
+		{
+			if (timestamps[c] >= timestamps[newest] - window)
+			{
+				max = Math.max(max, values[c]);
+			}
+		}
+		return max;
+	}
+
+	// uneven sample spacing, so the number of samples in the window varies
+	static long[] jitteredTimestamps(Random random, int count)
+	{
+		long[] timestamps = new long[count];
+		long time = 0;
+		for (int c = 0; c < count; c++)
+		{
+			time += 1000000L + random.nextInt(20000000);
+			timestamps[c] = time;
+		}
+		return timestamps;
+	}
+
+	@Test
+	public void maxMatchesBruteForce()
+	{
+		Random random = new Random(1);
+		int count = 5000;
+		long[] timestamps = jitteredTimestamps(random, count);
+		float[] values = new float[count];
+		SlidingMax max = new SlidingMax(WINDOW_NS, 256);
+		assertTrue(max.isEmpty());
+		for (int c = 0; c < count; c++)
+		{
+			values[c] = (float) random.nextGaussian();
+			max.add(timestamps[c], values[c]);
+			assertFalse(max.isEmpty());
+			assertEquals(bruteMax(timestamps, values, c, WINDOW_NS, count),
+					max.max(), 0);
+			assertTrue(timestamps[c] - max.maxTimestamp() <= WINDOW_NS);
+		}
+	}
+
+	@Test
+	public void minMatchesBruteForceWithNegatedSignal()
+	{
+		Random random = new Random(2);
+		int count = 5000;
+		long[] timestamps = jitteredTimestamps(random, count);
+		float[] negated = new float[count];
+		SlidingMax min = new SlidingMax(WINDOW_NS, 256);
+		for (int c = 0; c < count; c++)
+		{
+			float value = random.nextInt(10) - 5;
+			negated[c] = -value;
+			min.add(timestamps[c], -value);
+			assertEquals(-bruteMax(timestamps, negated, c, WINDOW_NS, count),
+					-min.max(), 0);
+		}
+	}
+
+	@Test
+	public void ties()
+	{
+		SlidingMax max = new SlidingMax(WINDOW_NS, 16);
+		max.add(0, 1);
+		max.add(10, 1);
+		assertEquals(1, max.max(), 0);
+		// the newest of equal values is kept, so it lasts longest
+		assertEquals(10, max.maxTimestamp());
+	}
+
+	@Test
+	public void keepsNewestSampleAfterGap()
+	{
+		SlidingMax max = new SlidingMax(WINDOW_NS, 16);
+		max.add(0, 5);
+		max.add(WINDOW_NS * 10, 1);
+		assertEquals(1, max.max(), 0);
+		assertEquals(WINDOW_NS * 10, max.maxTimestamp());
+	}
+
+	@Test
+	public void overflowDropsOldest()
+	{
+		// a falling signal keeps every sample in the deque, so more than
+		// capacity of them in one window overflows it
+		int capacity = 16;
+		SlidingMax max = new SlidingMax(WINDOW_NS, capacity);
+		int count = 100;
+		long[] timestamps = new long[count];
+		float[] values = new float[count];
+		for (int c = 0; c < count; c++)
+		{
+			timestamps[c] = c * 100000L;
+			values[c] = count - c;
+			max.add(timestamps[c], values[c]);
+			// the max of whatever is still held, i.e. the newest capacity
+			assertEquals(bruteMax(timestamps, values, c, WINDOW_NS, capacity),
+					max.max(), 0);
+		}
+		// and it still works once the signal goes back to normal
+		max.add(timestamps[count - 1] + 1, 1000);
+		assertEquals(1000, max.max(), 0);
+	}
+
+	@Test
+	public void saveRestore()
+	{
+		Random random = new Random(3);
+		int count = 2000;
+		long[] timestamps = jitteredTimestamps(random, count);
+		SlidingMax original = new SlidingMax(WINDOW_NS, 256);
+		SlidingMax restored = new SlidingMax(WINDOW_NS, 256);
+		ByteBuffer buffer = ByteBuffer.allocate(8192);
+		for (int c = 0; c < count; c++)
+		{
+			float value = (float) random.nextGaussian();
+			original.add(timestamps[c], value);
+			if (c == count / 2)
+			{
+				original.save(buffer);
+				buffer.flip();
+				restored.restore(buffer);
+				assertEquals(0, buffer.remaining());
+			} else if (c > count / 2)
+			{
+				restored.add(timestamps[c], value);
+			}
+			if (c >= count / 2)
+			{
+				assertEquals(original.max(), restored.max(), 0);
+				assertEquals(original.maxTimestamp(), restored.maxTimestamp());
+			}
+		}
+	}
+}
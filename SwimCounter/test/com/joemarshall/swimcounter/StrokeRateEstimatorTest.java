@@ -0,0 +1,156 @@
+package com.joemarshall.swimcounter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class StrokeRateEstimatorTest
+{
+	static final long PERIOD_NS = 20000000L;
+	// long enough to fill the window twice over
+	static final int SAMPLES = 1000;
+
+	// rolling from side to side at frequency (Hz), about 30 degrees each way
+	static float roll(int sample, double frequency)
+	{
+		return (float) (0.5 * Math.sin(2 * Math.PI * frequency * sample
+				* PERIOD_NS / 1e9));
+	}
+
+	// a short push every stroke, so most of it is at the harmonics
+	static float thrust(int sample, double strokesPerSecond)
+	{
+		double phase = strokesPerSecond * sample * PERIOD_NS / 1e9;
+		phase -= Math.floor(phase);
+		return phase < 0.25 ? (float) (3 * Math.sin(4 * Math.PI * phase)) : 0;
+	}
+
+	static StrokeRateEstimator fromRoll(double frequency)
+	{
+		StrokeRateEstimator estimator = new StrokeRateEstimator();
+		for (int c = 0; c < SAMPLES; c++)
+		{
+			estimator.addRoll(c * PERIOD_NS, roll(c, frequency));
+		}
+		return estimator;
+	}
+
+	@Test
+	public void rollRates()
+	{
+		// including the lowest and highest rates, which interpolate off the
+		// outermost bins
+		double[] frequencies = { 0.25, 0.3, 0.45, 0.6, 0.9, 1.2, 1.45, 1.5 };
+		for (double frequency : frequencies)
+		{
+			StrokeRateEstimator estimator = fromRoll(frequency);
+			// two strokes per roll
+			assertEquals("roll at " + frequency, frequency * 120,
+					estimator.strokeRate(), 1.0);
+			assertTrue(estimator.rollConfidence() > 0.8f);
+		}
+	}
+
+	@Test
+	public void thrustRatesNotHarmonics()
+	{
+		double[] rates = { 0.3, 0.5, 0.75, 1.0, 1.4 };
+		for (double rate : rates)
+		{
+			StrokeRateEstimator estimator = new StrokeRateEstimator();
+			for (int c = 0; c < SAMPLES; c++)
+			{
+				// with an offset, as the size of the acceleration has
+				estimator.addThrust(c * PERIOD_NS, 1.5f + thrust(c, rate));
+			}
+			assertEquals(0, estimator.rollConfidence(), 0);
+			assertEquals("thrust at " + rate, rate * 60,
+					estimator.strokeRate(), 1.0);
+			assertTrue(estimator.confidence() >= StrokeRateEstimator.MIN_CONFIDENCE);
+		}
+	}
+
+	@Test
+	public void clearerSignalWins()
+	{
+		Random random = new Random(7);
+		StrokeRateEstimator estimator = new StrokeRateEstimator();
+		for (int c = 0; c < SAMPLES; c++)
+		{
+			long timestamp = c * PERIOD_NS;
+			estimator.addRoll(timestamp, roll(c, 0.4));
+			estimator.addThrust(timestamp,
+					(float) random.nextGaussian() * 2 + thrust(c, 0.9));
+		}
+		assertTrue(estimator.rollConfidence() > estimator.thrustConfidence());
+		assertEquals(48, estimator.strokeRate(), 1.0);
+	}
+
+	@Test
+	public void noRateWhenStill()
+	{
+		Random random = new Random(8);
+		StrokeRateEstimator estimator = new StrokeRateEstimator();
+		for (int c = 0; c < SAMPLES; c++)
+		{
+			long timestamp = c * PERIOD_NS;
+			estimator.addRoll(timestamp,
+					0.2f + (float) random.nextGaussian() * 0.01f);
+			// just an offset, which isn't a rate however big it is
+			estimator.addThrust(timestamp,
+					2 + (float) random.nextGaussian() * 0.05f);
+		}
+		assertEquals(0, estimator.strokeRate(), 0);
+		assertEquals(0, estimator.confidence(), 0);
+	}
+
+	@Test
+	public void gapStartsAgain()
+	{
+		StrokeRateEstimator estimator = fromRoll(0.5);
+		assertEquals(60, estimator.strokeRate(), 1.0);
+		long restart = SAMPLES * PERIOD_NS + StrokeRateEstimator.MAX_GAP_NS * 2;
+		for (int c = 0; c < 10; c++)
+		{
+			estimator.addRoll(restart + c * PERIOD_NS, roll(c, 0.5));
+		}
+		assertEquals(0, estimator.strokeRate(), 0);
+	}
+
+	@Test
+	public void saveRestoreMidStream()
+	{
+		StrokeRateEstimator original = new StrokeRateEstimator();
+		StrokeRateEstimator restored = new StrokeRateEstimator();
+		ByteBuffer buffer = ByteBuffer.allocate(8192);
+		int split = 567;
+		for (int c = 0; c < SAMPLES; c++)
+		{
+			long timestamp = c * PERIOD_NS;
+			// the rate changes after the split
+			double frequency = c < 600 ? 0.4 : 0.7;
+			original.addRoll(timestamp, roll(c, frequency));
+			original.addThrust(timestamp, thrust(c, frequency * 2));
+			if (c == split)
+			{
+				original.save(buffer);
+				buffer.flip();
+				restored.restore(buffer);
+				assertEquals(0, buffer.remaining());
+			} else if (c > split)
+			{
+				restored.addRoll(timestamp, roll(c, frequency));
+				restored.addThrust(timestamp, thrust(c, frequency * 2));
+			}
+			if (c >= split)
+			{
+				assertEquals(original.strokeRate(), restored.strokeRate(), 0);
+				assertEquals(original.confidence(), restored.confidence(), 0);
+			}
+		}
+	}
+}
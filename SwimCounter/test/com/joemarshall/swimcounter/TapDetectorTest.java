@@ -0,0 +1,123 @@
+package com.joemarshall.swimcounter;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class TapDetectorTest
+{
+	static final long PERIOD_NS = 10000000L;
+
+	static float taps(int sample, int[] tapSamples)
+	{
+		for (int tap : tapSamples)
+		{
+			if (sample == tap)
+			{
+				return 20;
+			}
+		}
+		return 0;
+	}
+
+	@Test
+	public void countsAndExpiresTaps()
+	{
+		TapDetector detector = new TapDetector();
+		int[] tapSamples = { 100, 130 };
+		long halfWindow = TapDetector.HALF_WINDOW_NS;
+		long countWindow = TapDetector.COUNT_WINDOW_NS;
+		for (int c = 0; c < 400; c++)
+		{
+			long timestamp = c * PERIOD_NS;
+			detector.addValue(timestamp, taps(c, tapSamples));
+			long first = 100 * PERIOD_NS;
+			long second = 130 * PERIOD_NS;
+			int expected = 0;
+			// a tap counts from when it is confirmed until it is too old
+			if (timestamp >= first + halfWindow
+					&& timestamp <= first + countWindow)
+			{
+				expected++;
+			}
+			if (timestamp >= second + halfWindow
+					&& timestamp <= second + countWindow)
+			{
+				expected++;
+			}
+			assertEquals("at " + timestamp, expected, detector.numPeaks());
+		}
+	}
+
+	@Test
+	public void ringingAfterTapIsOneTap()
+	{
+		// a big tap then a smaller bounce 100ms later, inside its window
+		TapDetector detector = new TapDetector();
+		int most = 0;
+		for (int c = 0; c < 300; c++)
+		{
+			float value = c == 100 ? 20 : (c == 104 ? 15 : 0);
+			detector.addValue(c * PERIOD_NS, value);
+			most = Math.max(most, detector.numPeaks());
+		}
+		assertEquals(1, most);
+	}
+
+	@Test
+	public void smallBumpsAreNotTaps()
+	{
+		TapDetector detector = new TapDetector();
+		for (int c = 0; c < 400; c++)
+		{
+			detector.addValue(c * PERIOD_NS, (c % 50 == 0) ? 3 : 0);
+			assertEquals(0, detector.numPeaks());
+		}
+	}
+
+	@Test
+	public void clearForgetsTaps()
+	{
+		TapDetector detector = new TapDetector();
+		for (int c = 0; c < 120; c++)
+		{
+			detector.addValue(c * PERIOD_NS, c == 100 ? 20 : 0);
+		}
+		assertEquals(1, detector.numPeaks());
+		detector.clear();
+		assertEquals(0, detector.numPeaks());
+	}
+
+	@Test
+	public void saveRestoreMidStream()
+	{
+		int[] tapSamples = { 100, 130, 300, 320, 340, 600 };
+		TapDetector original = new TapDetector();
+		TapDetector restored = new TapDetector();
+		ByteBuffer buffer = ByteBuffer.allocate(8192);
+		// between taps, with two of them still being counted
+		int split = 310;
+		for (int c = 0; c < 900; c++)
+		{
+			long timestamp = c * PERIOD_NS;
+			float value = taps(c, tapSamples);
+			original.addValue(timestamp, value);
+			if (c == split)
+			{
+				original.save(buffer);
+				buffer.flip();
+				restored.restore(buffer);
+				assertEquals(0, buffer.remaining());
+			} else if (c > split)
+			{
+				restored.addValue(timestamp, value);
+			}
+			if (c >= split)
+			{
+				assertEquals(original.numPeaks(), restored.numPeaks());
+			}
+		}
+	}
+}